@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Pins threads to groups of CPUs. The JDK has no API for the affinity of a thread, so it relies on Linux: the id of
+ * the current thread is read from /proc/thread-self and its affinity is set with the taskset command. On other
+ * platforms, or when taskset is missing, the thread is left free to run on any CPU. Where possible prefer to pin
+ * the whole JVM at deployment, with taskset or the cpusets of the cgroups.
+ */
+final class CpuAffinity {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CpuAffinity.class);
+
+    // the CPU lists accepted by taskset, like 0-3,8,10-11
+    private static final Pattern CPU_LIST = Pattern.compile("\\d+(-\\d+)?(,\\d+(-\\d+)?)*");
+    private static final File DEV_NULL = new File("/dev/null");
+    private static final long TASKSET_TIMEOUT_SECONDS = 5;
+
+    private CpuAffinity() {
+    }
+
+    /**
+     * @param groups the CPU lists of the groups, separated by ';', like 0-3;4-7. Empty or null for no groups.
+     * @throws IllegalArgumentException if a group is not a valid CPU list.
+     * */
+    static List<String> parseGroups(String groups) {
+        if (groups == null || groups.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<String> cpuLists = new ArrayList<>();
+        for (String group : groups.split(";")) {
+            final String cpuList = group.trim();
+            if (!CPU_LIST.matcher(cpuList).matches()) {
+                throw new IllegalArgumentException("Invalid CPU list '" + cpuList + "' in affinity groups: " + groups);
+            }
+            cpuLists.add(cpuList);
+        }
+        return cpuLists;
+    }
+
+    /**
+     * Pins the calling thread to the CPUs of the list.
+     *
+     * @return true if the affinity was set.
+     * */
+    static boolean pinCurrentThread(String cpuList) {
+        final File threadSelf = new File("/proc/thread-self");
+        if (!threadSelf.exists()) {
+            LOG.warn("Can't pin thread {} to CPUs {}, /proc/thread-self is not available",
+                Thread.currentThread().getName(), cpuList);
+            return false;
+        }
+        try {
+            final String threadId = threadSelf.getCanonicalFile().getName();
+            // the output of taskset is not of interest and must not end in the broker's one
+            final Process taskset = new ProcessBuilder("taskset", "-p", "-c", cpuList, threadId)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(DEV_NULL))
+                .start();
+            if (!taskset.waitFor(TASKSET_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                taskset.destroyForcibly();
+                LOG.warn("Can't pin thread {} to CPUs {}, taskset didn't complete in {} seconds",
+                    Thread.currentThread().getName(), cpuList, TASKSET_TIMEOUT_SECONDS);
+                return false;
+            }
+            final int exitCode = taskset.exitValue();
+            if (exitCode != 0) {
+                LOG.warn("Can't pin thread {} to CPUs {}, taskset exited with {}",
+                    Thread.currentThread().getName(), cpuList, exitCode);
+                return false;
+            }
+            LOG.info("Pinned thread {} to CPUs {}", Thread.currentThread().getName(), cpuList);
+            return true;
+        } catch (IOException ex) {
+            LOG.warn("Can't pin thread {} to CPUs {}", Thread.currentThread().getName(), cpuList, ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -41,10 +41,12 @@ import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -67,6 +69,8 @@ final class MQTTConnection {
     final Channel channel;
     private final BrokerConfiguration brokerConfig;
     private final IAuthenticator authenticator;
+    // null to authenticate on the Netty I/O thread
+    private final Executor authenticationExecutor;
     private final SessionRegistry sessionRegistry;
     private final PostOffice postOffice;
     private final int topicAliasMaximum;
@@ -78,6 +82,9 @@ final class MQTTConnection {
     private Quota sendQuota;
     private TopicAliasMapping aliasMappings;
     private AtomicReference<MqttConnectMessage> connectMessage = new AtomicReference<>();
+    // packets decoded with the CONNECT while the client is authenticated, handled once it's connected. Accessed
+    // only by the Netty I/O thread of the channel, null when not authenticating
+    private List<MqttMessage> receivedWhileAuthenticating;
 
     static final class ErrorCodeException extends Exception {
 
@@ -96,9 +103,18 @@ final class MQTTConnection {
 
     MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                    SessionRegistry sessionRegistry, PostOffice postOffice) {
+        this(channel, brokerConfig, authenticator, null, sessionRegistry, postOffice);
+    }
+
+    /**
+     * @param authenticationExecutor runs the authenticator, that could block, out of the Netty I/O thread.
+     * */
+    MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
+                   Executor authenticationExecutor, SessionRegistry sessionRegistry, PostOffice postOffice) {
         this.channel = channel;
         this.brokerConfig = brokerConfig;
         this.authenticator = authenticator;
+        this.authenticationExecutor = authenticationExecutor;
         this.sessionRegistry = sessionRegistry;
         this.postOffice = postOffice;
         this.connected = false;
@@ -109,6 +125,12 @@ final class MQTTConnection {
     void handleMessage(MqttMessage msg) {
         MqttMessageType messageType = msg.fixedHeader().messageType();
         LOG.debug("Received MQTT message, type: {}", messageType);
+        if (receivedWhileAuthenticating != null) {
+            // the channel handler releases it on return
+            Utils.retain(msg, "payload in - received while authenticating");
+            receivedWhileAuthenticating.add(msg);
+            return;
+        }
         switch (messageType) {
             case CONNECT:
                 processConnect((MqttConnectMessage) msg);
@@ -238,7 +260,56 @@ final class MQTTConnection {
         sendQuota = retrieveSendQuota(msg);
         connectMessage.set(msg);
 
-        if (!login(msg, clientId)) {
+        if (authenticationExecutor == null) {
+            return connectAuthenticated(msg, clientId, serverGeneratedClientId, login(msg, clientId));
+        }
+        // the packets that follow the CONNECT are read once the client is connected, the ones already decoded in
+        // the same read are kept until then
+        channel.config().setAutoRead(false);
+        receivedWhileAuthenticating = new ArrayList<>();
+        final String authenticatingClientId = clientId;
+        final CompletableFuture<?> connecting = CompletableFuture
+            .supplyAsync(() -> login(msg, authenticatingClientId), authenticationExecutor)
+            .thenCompose(authenticated -> {
+                final PostOffice.RouteResult result = connectAuthenticated(msg, authenticatingClientId,
+                    serverGeneratedClientId, authenticated);
+                return result.isSuccess() ? result.completableFuture() : CompletableFuture.completedFuture(null);
+            })
+            .whenComplete((result, error) -> {
+                if (error != null) {
+                    LOG.error("Failed to connect CId={}", authenticatingClientId, error);
+                    dropConnection();
+                }
+                channel.eventLoop().execute(this::handleReceivedWhileAuthenticating);
+            });
+        return PostOffice.RouteResult.success(clientId, connecting);
+    }
+
+    /**
+     * Executed by the Netty I/O thread once the CONN command completed, handles in order the packets received
+     * while authenticating, as if just read, or drops them if the connection was refused.
+     * */
+    private void handleReceivedWhileAuthenticating() {
+        final List<MqttMessage> received = receivedWhileAuthenticating;
+        receivedWhileAuthenticating = null;
+        for (MqttMessage msg : received) {
+            try {
+                if (connected) {
+                    handleMessage(msg);
+                }
+            } catch (Throwable ex) {
+                LOG.error("Error processing protocol message: {}", msg.fixedHeader().messageType(), ex);
+                channel.close().addListener(CLOSE_ON_FAILURE);
+            } finally {
+                Utils.release(msg, "payload in - received while authenticating");
+            }
+        }
+        channel.config().setAutoRead(true);
+    }
+
+    private PostOffice.RouteResult connectAuthenticated(MqttConnectMessage msg, String clientId,
+                                                        boolean serverGeneratedClientId, boolean authenticated) {
+        if (!authenticated) {
             if (isProtocolVersion(MqttVersion.MQTT_5)) {
                 final ConnAckPropertiesBuilder builder = prepareConnAckPropertiesBuilder(false, clientId);
                 builder.reasonString("User credentials provided are not recognized as valid");
@@ -686,9 +757,12 @@ final class MQTTConnection {
             .anyMatch(len -> len > BrokerConstants.MAX_TOPIC_DEPTH);
     }
 
-    private boolean checkIfAnyFilterInSubscriptionIsOversized(MqttPublishMessage msg) {
-        String topicName = msg.variableHeader().topicName();
-        return estimateTopicsDepth(topicName) > BrokerConstants.MAX_TOPIC_DEPTH;
+    private static boolean isTopicOversized(Topic topic) {
+        if (!topic.isValid()) {
+            // not valid topics have no tokens
+            return estimateTopicsDepth(topic.toString()) > BrokerConstants.MAX_TOPIC_DEPTH;
+        }
+        return topic.getTokens().size() > BrokerConstants.MAX_TOPIC_DEPTH;
     }
 
     private static int estimateTopicsDepth(String topicName) {
@@ -775,8 +849,10 @@ final class MQTTConnection {
         // in execution by SessionEventLoop
         Utils.retain(msg, PostOffice.BT_PUB_IN);
         final MqttPublishMessage finalMsg = msg;
+        // the topic is parsed once here and reused by all the subsequent publish processing
+        final Topic finalTopic = topic;
 
-        if (checkIfAnyFilterInSubscriptionIsOversized(msg)) {
+        if (isTopicOversized(topic)) {
             LOG.warn("PUBLISH received topic deeper than {}", BrokerConstants.MAX_TOPIC_DEPTH);
             dropConnection();
             return PostOffice.RouteResult.success(clientId, CompletableFuture.completedFuture(null));
@@ -789,7 +865,7 @@ final class MQTTConnection {
                     if (!isBoundToSession()) {
                         return null;
                     }
-                    postOffice.receivedPublishQos0(this, username, clientId, finalMsg, expiry);
+                    postOffice.receivedPublishQos0(this, username, clientId, finalTopic, finalMsg, expiry);
                     return null;
                 }).ifFailed(() -> Utils.release(finalMsg, PostOffice.BT_PUB_IN + " - failed"));
             case AT_LEAST_ONCE:
@@ -807,7 +883,7 @@ final class MQTTConnection {
                     if (!isBoundToSession())
                         return null;
                     receivedQuota.consumeSlot();
-                    postOffice.receivedPublishQos1(this, username, messageID, finalMsg, expiry)
+                    postOffice.receivedPublishQos1(this, username, messageID, finalTopic, finalMsg, expiry)
                         .completableFuture().thenRun(() -> {
                             receivedQuota.releaseSlot();
                         });
@@ -837,7 +913,7 @@ final class MQTTConnection {
                     return firstStepResult;
                 }
                 firstStepResult.completableFuture().thenRun(() ->
-                    postOffice.receivedPublishQos2(this, finalMsg, username, expiry).completableFuture()
+                    postOffice.receivedPublishQos2(this, finalTopic, finalMsg, username, expiry).completableFuture()
                 );
                 return firstStepResult;
             }
@@ -945,6 +1021,16 @@ final class MQTTConnection {
         sendPubCompMessage(messageID);
     }
 
+    /**
+     * @param frames the headers already encoded for the other subscribers of the same publish, null if none.
+     * */
+    void sendPublish(MqttPublishMessage publishMsg, PublishFrames frames) {
+        if (frames != null) {
+            publishMsg = frames.encodeOnce(publishMsg, isProtocolVersion5());
+        }
+        sendPublish(publishMsg);
+    }
+
     void sendPublish(MqttPublishMessage publishMsg) {
         final int packetId = publishMsg.variableHeader().packetId();
         final String topicName = publishMsg.variableHeader().topicName();
@@ -973,7 +1059,8 @@ final class MQTTConnection {
             }
 
             ChannelFuture channelFuture;
-            if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH
+                && !SessionEventLoop.flushAtEndOfBatch(channel)) {
                 channelFuture = channel.writeAndFlush(retainedDup);
             } else {
                 channelFuture = channel.write(retainedDup);
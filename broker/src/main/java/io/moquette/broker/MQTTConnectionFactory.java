@@ -18,22 +18,30 @@ package io.moquette.broker;
 import io.moquette.broker.security.IAuthenticator;
 import io.netty.channel.Channel;
 
+import java.util.concurrent.Executor;
+
 class MQTTConnectionFactory {
 
     private final BrokerConfiguration brokerConfig;
     private final IAuthenticator authenticator;
+    private final Executor authenticationExecutor;
     private final SessionRegistry sessionRegistry;
     private final PostOffice postOffice;
 
+    /**
+     * @param authenticationExecutor runs the authenticator out of the Netty I/O threads, null to run it on them.
+     * */
     MQTTConnectionFactory(BrokerConfiguration brokerConfig, IAuthenticator authenticator,
-                          SessionRegistry sessionRegistry, PostOffice postOffice) {
+                          Executor authenticationExecutor, SessionRegistry sessionRegistry, PostOffice postOffice) {
         this.brokerConfig = brokerConfig;
         this.authenticator = authenticator;
+        this.authenticationExecutor = authenticationExecutor;
         this.sessionRegistry = sessionRegistry;
         this.postOffice = postOffice;
     }
 
     MQTTConnection create(Channel channel) {
-        return new MQTTConnection(channel, brokerConfig, authenticator, sessionRegistry, postOffice);
+        return new MQTTConnection(channel, brokerConfig, authenticator, authenticationExecutor, sessionRegistry,
+            postOffice);
     }
 }
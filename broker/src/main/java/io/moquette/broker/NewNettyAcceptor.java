@@ -274,6 +274,7 @@ class NewNettyAcceptor {
         }
         pipeline.addLast("decoder", new MqttDecoder(maxBytesInMessage));
         pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+        pipeline.addLast("publishFrameEncoder", PublishFrameEncoder.INSTANCE);
         pipeline.addLast("metrics", new MessageMetricsHandler(metricsCollector));
         pipeline.addLast("messageLogger", new MQTTMessageLogger());
         pipeline.addLast("handler", handler);
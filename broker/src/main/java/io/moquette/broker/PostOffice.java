@@ -21,6 +21,7 @@ import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.ShareName;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.SubscriptionIdentifier;
+import io.moquette.broker.subscriptions.SubscriptionsByLoop;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.interception.BrokerInterceptor;
 import io.netty.buffer.ByteBuf;
@@ -53,7 +54,11 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static io.moquette.broker.Utils.messageId;
@@ -72,6 +77,8 @@ class PostOffice {
     private static final String INTERNAL_PUBLISHER = "internal_publisher";
     public static final String BT_ROUTE_TARGET = "Route to target session";
     public static final String BT_PUB_IN = "PUB in";
+    static final String BT_ROUTE_FANOUT = "Route fan-out";
+    private static final int FANOUT_PARALLELISM = Runtime.getRuntime().availableProcessors();
 
     /**
      * Maps the failed packetID per clientId (id client source, id_packet) -> [id client target]
@@ -107,29 +114,15 @@ class PostOffice {
 
         private final ConcurrentMap<PacketId, Set<String>> packetsMap = new ConcurrentHashMap<>();
 
-        private void insert(String clientId, int messageID, String failedClientId) {
-            final PacketId packetId = new PacketId(clientId, messageID);
-            packetsMap.computeIfAbsent(packetId, k -> new HashSet<>())
-                .add(failedClientId);
+        /**
+         * Replaces the clients that have to be reached by a resend of the packet with the ones that failed now.
+         * */
+        void replaceAll(String clientId, int messageID, Collection<String> failedClientIds) {
+            packetsMap.put(new PacketId(clientId, messageID), new HashSet<>(failedClientIds));
         }
 
-        public void remove(String clientId, int messageID, String targetClientId) {
-            final PacketId packetId = new PacketId(clientId, messageID);
-            packetsMap.computeIfPresent(packetId, (key, clientsSet) -> {
-               clientsSet.remove(targetClientId);
-               if (clientsSet.isEmpty()) {
-                   // the mapping key, value is removed
-                   return null;
-               } else {
-                   return clientsSet;
-               }
-            });
-        }
-
-        private void removeAll(int messageID, String clientId, Collection<String> routings) {
-            for (String targetClientId : routings) {
-                remove(clientId, messageID, targetClientId);
-            }
+        void removeAll(String clientId, int messageID) {
+            packetsMap.remove(new PacketId(clientId, messageID));
         }
 
         void cleanupForClient(String clientId) {
@@ -140,12 +133,6 @@ class PostOffice {
                 .forEach(packetsMap::remove);
         }
 
-        void insertAll(int messageID, String clientId, Collection<String> routings) {
-            for (String targetClientId : routings) {
-                insert(clientId, messageID, targetClientId);
-            }
-        }
-
         Set<String> listFailed(String clientId, int messageID) {
             final PacketId packetId = new PacketId(clientId, messageID);
             return packetsMap.getOrDefault(packetId, Collections.emptySet());
@@ -155,12 +142,20 @@ class PostOffice {
     static class RouteResult {
         private final String clientId;
         private final Status status;
-        private CompletableFuture queuedFuture;
+        private final CompletableFuture queuedFuture;
+        private final SessionCommand command;
 
         enum Status {SUCCESS, FAIL}
 
         public static RouteResult success(String clientId, CompletableFuture queuedFuture) {
-            return new RouteResult(clientId, Status.SUCCESS, queuedFuture);
+            return new RouteResult(clientId, Status.SUCCESS, queuedFuture, null);
+        }
+
+        /**
+         * The future of the command is created only if requested.
+         * */
+        static RouteResult success(String clientId, SessionCommand command) {
+            return new RouteResult(clientId, Status.SUCCESS, null, command);
         }
 
         public static RouteResult failed(String clientId) {
@@ -170,19 +165,23 @@ class PostOffice {
         public static RouteResult failed(String clientId, String error) {
            final CompletableFuture<Void> failed = new CompletableFuture<>();
             failed.completeExceptionally(new Error(error));
-            return new RouteResult(clientId, Status.FAIL, failed);
+            return new RouteResult(clientId, Status.FAIL, failed, null);
         }
 
-        private RouteResult(String clientId, Status status, CompletableFuture queuedFuture) {
+        private RouteResult(String clientId, Status status, CompletableFuture queuedFuture, SessionCommand command) {
             this.clientId = clientId;
             this.status = status;
             this.queuedFuture = queuedFuture;
+            this.command = command;
         }
 
         public CompletableFuture completableFuture() {
             if (status == Status.FAIL) {
                 throw new IllegalArgumentException("Accessing completable future on a failed result");
             }
+            if (command != null) {
+                return command.completableFuture();
+            }
             return queuedFuture;
         }
 
@@ -198,9 +197,41 @@ class PostOffice {
         }
     }
 
+    /**
+     * Resolves the properties of a publish to forward to the subscribers, only when the first MQTT5 subscriber
+     * needs them, sharing them with all the subscribers that don't add a subscription identifier.
+     * */
+    private static final class SubscriberProperties {
+
+        private static final MqttProperties.MqttProperty[] NO_PROPERTIES = new MqttProperties.MqttProperty[0];
+
+        private final MqttPublishMessage msg;
+        private MqttProperties.MqttProperty[] shared;
+
+        SubscriberProperties(MqttPublishMessage msg) {
+            this.msg = msg;
+        }
+
+        MqttProperties.MqttProperty[] forSession(Session session, Subscription sub) {
+            if (!session.isProtocolVersion5()) {
+                // properties are not encoded for previous versions of the protocol
+                return NO_PROPERTIES;
+            }
+            if (shared == null) {
+                shared = propertiesWithoutSubscriptionId(msg.variableHeader().properties().listAll());
+            }
+            if (!sub.hasSubscriptionIdentifier()) {
+                return shared;
+            }
+            final MqttProperties.MqttProperty[] properties = Arrays.copyOf(shared, shared.length + 1);
+            properties[shared.length] = createSubscriptionIdProperty(sub);
+            return properties;
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(PostOffice.class);
 
-    private static final Set<String> NO_FILTER = new HashSet<>();
+    static final Set<String> NO_FILTER = new HashSet<>();
 
     private final Authorizator authorizator;
     private final ISubscriptionsDirectory subscriptions;
@@ -209,6 +240,11 @@ class PostOffice {
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
     private TopicRewriter topicRewriter = new TopicRewriterUnity();
+    private volatile int parallelFanoutThreshold;
+    private volatile ExecutorService fanoutExecutor;
+    // the last routing of each publisher on the fan-out executor, its next publishes are routed after it
+    private final ConcurrentMap<String, CompletableFuture<Void>> fanoutsInFlight = new ConcurrentHashMap<>();
+    private volatile boolean qos0FireAndForget;
     private final FailedPublishCollection failedPublishes = new FailedPublishCollection();
     private final SessionEventLoopGroup sessionLoops;
     private final Clock clock;
@@ -278,6 +314,45 @@ class PostOffice {
         this.topicRewriter = topicRewriter;
     }
 
+    /**
+     * @param parallelFanoutThreshold number of subscriptions matched by a publish from which they are grouped by
+     *                                session loop in parallel, 0 to always group them on the calling thread.
+     * */
+    void setParallelFanoutThreshold(int parallelFanoutThreshold) {
+        setParallelFanoutThreshold(parallelFanoutThreshold,
+            parallelFanoutThreshold > 0 ? createFanoutExecutor() : null);
+    }
+
+    /**
+     * @param fanoutExecutor the executor that groups and routes the publishes above the threshold, it's shut
+     *                       down on terminate.
+     * */
+    void setParallelFanoutThreshold(int parallelFanoutThreshold, ExecutorService fanoutExecutor) {
+        final ExecutorService previous = this.fanoutExecutor;
+        this.fanoutExecutor = fanoutExecutor;
+        this.parallelFanoutThreshold = parallelFanoutThreshold;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    private static ExecutorService createFanoutExecutor() {
+        final AtomicInteger threads = new AtomicInteger();
+        return Executors.newFixedThreadPool(FANOUT_PARALLELISM, task -> {
+            final Thread thread = new Thread(task, "fanout-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param qos0FireAndForget route the QoS0 publishes without tracking their completion, so the returned future
+     *                          completes once they are enqueued to the session loops.
+     * */
+    void setQos0FireAndForget(boolean qos0FireAndForget) {
+        this.qos0FireAndForget = qos0FireAndForget;
+    }
+
     private void cleanRetainedExpired(ExpirableTopic expirable) {
         retainedRepository.cleanRetained(expirable.topic);
     }
@@ -336,11 +411,12 @@ class PostOffice {
             }
         }
         MqttPublishMessage willPublishMessage = publishBuilder.build();
-        if (!authorizator.canWrite(Topic.asTopic(will.topic), "", WILL_PUBLISHER)) {
+        final Topic willTopic = Topic.asTopic(will.topic);
+        if (!authorizator.canWrite(willTopic, "", WILL_PUBLISHER)) {
             LOG.error("client is not authorized to publish Last Will Testament on topic: {}", will.topic);
             return;
         }
-        publish2Subscribers(WILL_PUBLISHER, messageExpiryInstant, willPublishMessage);
+        publish2Subscribers(WILL_PUBLISHER, willTopic, messageExpiryInstant, willPublishMessage);
     }
 
     private static MqttProperties copyWillUserProperties(Map<String, String> willUserProperties) {
@@ -419,8 +495,9 @@ class PostOffice {
                 .filter(SharedSubscriptionUtils::isSharedSubscription)
                 .map(s -> buildSharedSubscriptionFrom(s, clientID, subscriptionIdOpt))
                 .collect(Collectors.toList());
+            // all at once, so that each node of the tree is updated a single time
+            subscriptions.addAll(sharedSubscriptions);
             for (Subscription sub : sharedSubscriptions) {
-                subscriptions.addShared(sub);
                 session.addSubscription(sub);
                 interceptor.notifyTopicSubscribed(sub, username);
             }
@@ -439,8 +516,10 @@ class PostOffice {
                 return tempSub.withRewrittenTopic(topicRewriter.rewriteTopic(tempSub));
             }).collect(Collectors.toList());
 
+        // mutating operation of SubscriptionDirectory, all at once so that each node of the tree is updated a single time
+        final Set<Subscription> createdSubscriptions = subscriptions.addAll(newSubscriptions);
         final Set<Subscription> subscriptionToSendRetained = newSubscriptions.stream()
-            .map(this::addSubscriptionReportingNewStatus) // mutating operation of SubscriptionDirectory
+            .map(sub -> new Utils.Couple<>(createdSubscriptions.contains(sub), sub))
             .filter(PostOffice::needToReceiveRetained)
             .map(couple -> couple.v2)
             .collect(Collectors.toSet());
@@ -483,12 +562,6 @@ class PostOffice {
         }
     }
 
-    private Utils.Couple<Boolean, Subscription> addSubscriptionReportingNewStatus(Subscription subscription) {
-        final boolean newlyAdded;
-        newlyAdded = subscriptions.add(subscription);
-        return new Utils.Couple<>(newlyAdded, subscription);
-    }
-
     private List<MqttTopicSubscription> updateWithMaximumSupportedQoS(List<MqttTopicSubscription> subscriptions) {
         return subscriptions.stream()
             .map(this::updateWithMaximumSupportedQoS)
@@ -601,14 +674,16 @@ class PostOffice {
             mqttConnection.sendUnsubAckMessage(topics, clientID, messageId);
             return;
         }
+        final List<Subscription> removedSubscriptions = new ArrayList<>(topics.size());
+        final List<Topic> removedTopics = new ArrayList<>(topics.size());
+        boolean validTopics = true;
         for (String t : topics) {
             Topic topic = new Topic(t);
             boolean validTopic = topic.isValid();
             if (!validTopic) {
-                // close the connection, not valid topicFilter is a protocol violation
-                mqttConnection.dropConnection();
+                validTopics = false;
                 LOG.warn("Topic filter is not valid. topics: {}, offending topic filter: {}", topics, topic);
-                return;
+                break;
             }
 
             LOG.trace("Removing subscription topic={}", topic);
@@ -617,16 +692,23 @@ class PostOffice {
                 LOG.debug("Client {} has no subscription on {}", clientID, t);
                 continue;
             }
-            if (subscription.hasShareName()) {
-                subscriptions.removeSharedSubscription(subscription);
-            } else {
-                subscriptions.removeSubscription(subscription);
-            }
+            removedSubscriptions.add(subscription);
+            removedTopics.add(topic);
+        }
 
-            session.removeSubscription(topic);
+        // the subscriptions preceding an invalid topic filter are removed anyway
+        // all at once, so that each node of the tree is updated a single time
+        subscriptions.removeAll(removedSubscriptions);
+        final String username = NettyUtils.userName(mqttConnection.channel);
+        for (int i = 0; i < removedSubscriptions.size(); i++) {
+            session.removeSubscription(removedTopics.get(i));
+            interceptor.notifyTopicUnsubscribed(removedSubscriptions.get(i), username);
+        }
 
-            String username = NettyUtils.userName(mqttConnection.channel);
-            interceptor.notifyTopicUnsubscribed(subscription, username);
+        if (!validTopics) {
+            // close the connection, not valid topicFilter is a protocol violation
+            mqttConnection.dropConnection();
+            return;
         }
 
         // ack the client
@@ -635,7 +717,15 @@ class PostOffice {
 
     CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, String username, String clientID, MqttPublishMessage msg,
                                                 Instant messageExpiry) {
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        return receivedPublishQos0(connection, username, clientID, new Topic(msg.variableHeader().topicName()), msg,
+            messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic of the PUBLISH message, reused along all the publish processing.
+     * */
+    CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, String username, String clientID, Topic topic,
+                                                MqttPublishMessage msg, Instant messageExpiry) {
         if (!authorizator.canWrite(topic, username, clientID)) {
             LOG.error("client is not authorized to publish on topic: {}", topic);
             Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, auth failed");
@@ -653,29 +743,53 @@ class PostOffice {
             }
         }
 
-        final RoutingResults publishResult = publish2Subscribers(clientID, messageExpiry, msg);
-        if (publishResult.isAllFailed()) {
-            LOG.info("No one publish was successfully enqueued to session loops");
-            Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, can't forward to next session loop");
-            return CompletableFuture.completedFuture(null);
+        if (qos0FireAndForget) {
+            return publish2SubscribersFireAndForget(clientID, topic, messageExpiry, msg).thenAccept(routed -> {
+                if (!routed) {
+                    LOG.info("No one publish was successfully enqueued to session loops");
+                    Utils.release(msg, PostOffice.BT_PUB_IN + " - ok, can't forward to next session loop");
+                    return;
+                }
+                if (msg.fixedHeader().isRetain()) {
+                    // QoS == 0 && retain => clean old retained
+                    retainedRepository.cleanRetained(topic);
+                }
+                interceptor.notifyTopicPublished(msg, clientID, username);
+                Utils.release(msg, PostOffice.BT_PUB_IN + " - ok");
+            });
         }
 
-        return publishResult.completableFuture().thenRun(() -> {
-            if (msg.fixedHeader().isRetain()) {
-                // QoS == 0 && retain => clean old retained
-                retainedRepository.cleanRetained(topic);
+        return publish2Subscribers(clientID, topic, messageExpiry, msg).whenRouted().thenCompose(publishResult -> {
+            if (publishResult.isAllFailed()) {
+                LOG.info("No one publish was successfully enqueued to session loops");
+                Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, can't forward to next session loop");
+                return CompletableFuture.completedFuture(null);
             }
 
-            interceptor.notifyTopicPublished(msg, clientID, username);
-            Utils.release(msg,PostOffice.BT_PUB_IN + " - ok");
+            return publishResult.completableFuture().thenRun(() -> {
+                if (msg.fixedHeader().isRetain()) {
+                    // QoS == 0 && retain => clean old retained
+                    retainedRepository.cleanRetained(topic);
+                }
+
+                interceptor.notifyTopicPublished(msg, clientID, username);
+                Utils.release(msg,PostOffice.BT_PUB_IN + " - ok");
+            });
         });
     }
 
     RoutingResults receivedPublishQos1(MQTTConnection connection, String username, int messageID,
                                        MqttPublishMessage msg, Instant messageExpiry) {
+        return receivedPublishQos1(connection, username, messageID, new Topic(msg.variableHeader().topicName()), msg,
+            messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic of the PUBLISH message, reused along all the publish processing.
+     * */
+    RoutingResults receivedPublishQos1(MQTTConnection connection, String username, int messageID, Topic topic,
+                                       MqttPublishMessage msg, Instant messageExpiry) {
         // verify if topic can be written
-        final Topic topic = new Topic(msg.variableHeader().topicName());
-        topic.getTokens();
         if (!topic.isValid()) {
             LOG.warn("Invalid topic format, force close the connection");
             connection.dropConnection();
@@ -714,26 +828,30 @@ class PostOffice {
         final RoutingResults routes;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            routes = publish2Subscribers(clientId, failedClients, messageExpiry, msg);
+            routes = publish2Subscribers(clientId, topic, failedClients, messageExpiry, msg);
         } else {
-            routes = publish2Subscribers(clientId, messageExpiry, msg);
-        }
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("subscriber routes: {}", routes);
+            routes = publish2Subscribers(clientId, topic, messageExpiry, msg);
         }
-        if (routes.isAllSuccess()) {
-            // QoS1 message was enqueued successfully to every event loop
-            connection.sendPubAck(messageID);
-            manageRetain(topic, msg);
-            interceptor.notifyTopicPublished(msg, clientId, username);
-        } else {
-            // some session event loop enqueue raised a problem
-            failedPublishes.insertAll(messageID, clientId, routes.failedRoutings);
-        }
-        Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, qos1");
-
-        // cleanup success resends from the failed publishes cache
-        failedPublishes.removeAll(messageID, clientId, routes.successedRoutings);
+        // a large fan-out is acknowledged once the fan-out executor routed it
+        routes.whenRouted().whenComplete((routed, error) -> {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("subscriber routes: {}", routed);
+            }
+            if (routed == null) {
+                // failed routing, already logged, the publish isn't acknowledged
+            } else if (routed.isAllSuccess()) {
+                // QoS1 message was enqueued successfully to every event loop
+                connection.sendPubAck(messageID);
+                manageRetain(topic, msg);
+                interceptor.notifyTopicPublished(msg, clientId, username);
+                // cleanup success resends from the failed publishes cache
+                failedPublishes.removeAll(clientId, messageID);
+            } else {
+                // some session event loop enqueue raised a problem, a resend has to reach only them
+                failedPublishes.replaceAll(clientId, messageID, routed.failedClientIds());
+            }
+            Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, qos1");
+        });
 
         return routes;
     }
@@ -788,14 +906,16 @@ class PostOffice {
         return mqttProperty.value();
     }
 
-    private RoutingResults publish2Subscribers(String publisherClientId,
+    private RoutingResults publish2Subscribers(String publisherClientId, Topic topic,
                                                Instant messageExpiry,
                                                MqttPublishMessage msg) {
-        return publish2Subscribers(publisherClientId, NO_FILTER, messageExpiry, msg);
+        return publish2Subscribers(publisherClientId, topic, NO_FILTER, messageExpiry, msg);
     }
 
-    private class BatchingPublishesCollector {
+    class BatchingPublishesCollector {
         final List<Subscription>[] subscriptions;
+        // the batches taken as they are from a SubscriptionsByLoop, that can be shared, are copied before appending
+        private final boolean[] sharedBatches;
         private final int eventLoops;
         private final SessionEventLoopGroup loopGroup;
 
@@ -803,22 +923,116 @@ class PostOffice {
             eventLoops = loopGroup.getEventLoopCount();
             this.loopGroup = loopGroup;
             subscriptions = new List[eventLoops];
+            sharedBatches = new boolean[eventLoops];
         }
 
         public void add(Subscription sub) {
             final int targetQueueId = subscriberEventLoop(sub.getClientId());
-            if (subscriptions[targetQueueId] == null) {
-                subscriptions[targetQueueId] = new ArrayList<>();
+            ownedBatch(targetQueueId).add(sub);
+        }
+
+        /**
+         * Adds the matching subscriptions in the range [from, to) that have to receive the publish.
+         * */
+        void addMatching(List<Subscription> matching, int from, int to, String publisherClientId,
+                         Set<String> filterTargetClients) {
+            for (int i = from; i < to; i++) {
+                final Subscription sub = matching.get(i);
+                if (filterTargetClients != NO_FILTER && !filterTargetClients.contains(sub.getClientId())) {
+                    continue;
+                }
+                if (sub.getOption().isNoLocal() && publisherClientId.equals(sub.getClientId())) {
+                    // if noLocal do not publish to the publisher
+                    continue;
+                }
+                add(sub);
             }
-            subscriptions[targetQueueId].add(sub);
+        }
+
+        /**
+         * Takes the batches already grouped by session loop, copying only the ones that have to be filtered.
+         * The batches taken as they are aren't modified, they are copied if something is appended later.
+         * */
+        void addBatches(SubscriptionsByLoop matching, String publisherClientId, Set<String> filterTargetClients) {
+            // all the subscriptions of the publisher, excluded by noLocal, are in the batch of its loop
+            final int publisherLoop = subscriberEventLoop(publisherClientId);
+            for (int i = 0; i < eventLoops; i++) {
+                final List<Subscription> batch = matching.batch(i);
+                if (batch == null) {
+                    continue;
+                }
+                if (filterTargetClients != NO_FILTER || i == publisherLoop) {
+                    addMatching(batch, 0, batch.size(), publisherClientId, filterTargetClients);
+                } else if (subscriptions[i] == null) {
+                    subscriptions[i] = batch;
+                    sharedBatches[i] = true;
+                } else {
+                    ownedBatch(i).addAll(batch);
+                }
+            }
+        }
+
+        /**
+         * Appends the batches of the other collector, that grouped the subscriptions following these.
+         * */
+        void merge(BatchingPublishesCollector other) {
+            for (int i = 0; i < eventLoops; i++) {
+                final List<Subscription> otherBatch = other.subscriptions[i];
+                if (otherBatch == null) {
+                    continue;
+                }
+                if (subscriptions[i] == null) {
+                    subscriptions[i] = otherBatch;
+                    sharedBatches[i] = other.sharedBatches[i];
+                } else {
+                    ownedBatch(i).addAll(otherBatch);
+                }
+            }
+        }
+
+        /**
+         * @return the batch of the loop that this collector can append to.
+         * */
+        private List<Subscription> ownedBatch(int loop) {
+            List<Subscription> batch = subscriptions[loop];
+            if (batch == null) {
+                batch = new ArrayList<>();
+                subscriptions[loop] = batch;
+            } else if (sharedBatches[loop]) {
+                batch = new ArrayList<>(batch);
+                subscriptions[loop] = batch;
+                sharedBatches[loop] = false;
+            }
+            return batch;
         }
 
         private int subscriberEventLoop(String clientId) {
             return loopGroup.targetQueueOrdinal(clientId);
         }
 
-        List<RouteResult> routeBatchedPublishes(Consumer<List<Subscription>> action) {
-            List<RouteResult> publishResults = new ArrayList<>(this.eventLoops);
+        /**
+         * @return the number of batches that were enqueued to their session loop.
+         * */
+        int routeBatchedPublishesFireAndForget(Consumer<List<Subscription>> action) {
+            int routed = 0;
+            for (int i = 0; i < eventLoops; i++) {
+                final List<Subscription> subscriptionsBatch = subscriptions[i];
+                if (subscriptionsBatch == null) {
+                    continue;
+                }
+                if (loopGroup.routeFireAndForget(i, "batched PUB QoS0", () -> action.accept(subscriptionsBatch))) {
+                    routed++;
+                }
+            }
+            return routed;
+        }
+
+        /**
+         * @return the routing results, that keep the batches not enqueued to their session loop.
+         * */
+        RoutingResults routeBatchedPublishes(Consumer<List<Subscription>> action) {
+            final List<CompletableFuture<?>> publishFutures = new ArrayList<>(this.eventLoops);
+            List<List<Subscription>> failedBatches = Collections.emptyList();
 
             for (List<Subscription> subscriptionsBatch : subscriptions) {
                 if (subscriptionsBatch == null) {
@@ -832,17 +1046,21 @@ class PostOffice {
                     final int loopId = subscriberEventLoop(clientId);
                     LOG.trace("Routing PUBLISH to eventLoop {}  for subscriptions [{}]", loopId, subscriptionsDetails);
                 }
-                publishResults.add(routeCommand(clientId, "batched PUB", () -> {
+                final RouteResult routeResult = routeCommand(clientId, "batched PUB", () -> {
                     action.accept(subscriptionsBatch);
                     return null;
-                }));
+                });
+                if (routeResult.isSuccess()) {
+                    publishFutures.add(routeResult.completableFuture());
+                } else {
+                    if (failedBatches.isEmpty()) {
+                        failedBatches = new ArrayList<>();
+                    }
+                    failedBatches.add(subscriptionsBatch);
+                }
             }
-            return publishResults;
-        }
-
-        Collection<String> subscriberIdsByEventLoop(String clientId) {
-            final int targetQueueId = subscriberEventLoop(clientId);
-            return subscriptions[targetQueueId].stream().map(Subscription::getClientId).collect(Collectors.toList());
+            final CompletableFuture<Void> publishes = CompletableFuture.allOf(publishFutures.toArray(new CompletableFuture[0]));
+            return new RoutingResults(publishFutures.size(), failedBatches, publishes);
         }
 
         public int countBatches() {
@@ -857,90 +1075,258 @@ class PostOffice {
         }
     }
 
-    private RoutingResults publish2Subscribers(String publisherClientId,
+    private RoutingResults publish2Subscribers(String publisherClientId, Topic topic,
                                                Set<String> filterTargetClients, Instant messageExpiry,
                                                MqttPublishMessage msg) {
         metricsProvider.addPublish();
-        final boolean retainPublish = msg.fixedHeader().isRetain();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
-        final MqttQoS publishingQos = msg.fixedHeader().qosLevel();
-        List<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
-        if (topicMatchingSubscriptions.isEmpty()) {
-            // no matching subscriptions, clean exit
-            LOG.trace("No matching subscriptions for topic: {}", topic);
-            return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
+        final CompletableFuture<RoutingResults> routed = routeMatching(publisherClientId, topic, filterTargetClients,
+            msg, collector -> routeBatches(collector, topic, messageExpiry, msg));
+        if (routed.isDone() && !routed.isCompletedExceptionally()) {
+            return routed.join();
         }
+        return RoutingResults.pending(routed);
+    }
 
-        final BatchingPublishesCollector collector = new BatchingPublishesCollector(sessionLoops);
-
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            if (filterTargetClients == NO_FILTER || filterTargetClients.contains(sub.getClientId())) {
-                if (sub.getOption().isNoLocal()) {
-                    if (publisherClientId.equals(sub.getClientId())) {
-                        // if noLocal do not publish to the publisher
-                        continue;
-                    }
-                    collector.add(sub);
-                } else {
-                    collector.add(sub);
-                }
-            }
-        }
+    private RoutingResults routeBatches(BatchingPublishesCollector collector, Topic topic, Instant messageExpiry,
+                                       MqttPublishMessage msg) {
+        final boolean retainPublish = msg.fixedHeader().isRetain();
+        final MqttQoS publishingQos = msg.fixedHeader().qosLevel();
 
         int subscriptionCount = collector.countBatches();
         if (subscriptionCount <= 0) {
             // no matching subscriptions, clean exit
             LOG.trace("No matching subscriptions for topic: {}", topic);
-            return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
+            return RoutingResults.noRoutings();
         }
         // sanity check
         if (subscriptionCount > sessionLoops.getEventLoopCount()) {
             LOG.error("Cardinality of subscription batches ({}) is bigger then the available session loops {}",
                 subscriptionCount, sessionLoops.getEventLoopCount());
-            return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
+            return RoutingResults.noRoutings();
         }
 
         Utils.retain(msg, subscriptionCount, BT_ROUTE_TARGET);
 
-        List<RouteResult> publishResults = collector.routeBatchedPublishes((batch) -> {
+        final RoutingResults routings = collector.routeBatchedPublishes((batch) -> {
             publishToSession(topic, batch, publishingQos, retainPublish, messageExpiry, msg);
             Utils.release(msg, BT_ROUTE_TARGET);
         });
+        for (int i = 0; i < routings.failedBatchesCount(); i++) {
+            Utils.release(msg, BT_ROUTE_TARGET + "- failed routing");
+        }
+        return routings;
+    }
 
-        final CompletableFuture[] publishFutures = publishResults.stream()
-            .filter(RouteResult::isSuccess)
-            .map(RouteResult::completableFuture).toArray(CompletableFuture[]::new);
-        final CompletableFuture<Void> publishes = CompletableFuture.allOf(publishFutures);
-
-        final List<String> failedRoutings = new ArrayList<>();
-        final List<String> successedRoutings = new ArrayList<>();
-        for (RouteResult rr : publishResults) {
-            Collection<String> subscibersIds = collector.subscriberIdsByEventLoop(rr.clientId);
-            if (rr.status == RouteResult.Status.FAIL) {
-                failedRoutings.addAll(subscibersIds);
+    /**
+     * Routes a publish to the matching subscribers without tracking the completion of the session loops, so no
+     * future is created for each of them.
+     *
+     * @return the future completed with false when no session loop accepted the publish of its subscribers.
+     * */
+    private CompletableFuture<Boolean> publish2SubscribersFireAndForget(String publisherClientId, Topic topic,
+                                                                        Instant messageExpiry,
+                                                                        MqttPublishMessage msg) {
+        metricsProvider.addPublish();
+        final boolean retainPublish = msg.fixedHeader().isRetain();
+        final MqttQoS publishingQos = msg.fixedHeader().qosLevel();
+        return routeMatching(publisherClientId, topic, NO_FILTER, msg, collector -> {
+            final int batchesCount = collector.countBatches();
+            if (batchesCount <= 0) {
+                // no matching subscriptions, clean exit
+                LOG.trace("No matching subscriptions for topic: {}", topic);
+                return true;
+            }
+
+            Utils.retain(msg, batchesCount, BT_ROUTE_TARGET);
+            final int routed = collector.routeBatchedPublishesFireAndForget((batch) -> {
+                publishToSession(topic, batch, publishingQos, retainPublish, messageExpiry, msg);
+                Utils.release(msg, BT_ROUTE_TARGET);
+            });
+            for (int i = routed; i < batchesCount; i++) {
                 Utils.release(msg, BT_ROUTE_TARGET + "- failed routing");
-            } else {
-                successedRoutings.addAll(subscibersIds);
             }
+            return routed > 0;
+        });
+    }
+
+    /**
+     * Groups the subscriptions matching the topic by session loop and routes them with the routing function.
+     * Above the parallel fan-out threshold the grouping and the routing are done by the fan-out executor, so the
+     * calling thread doesn't wait for them. Meanwhile, the next publishes of the same publisher are routed by the
+     * executor too, after it, to keep them in order.
+     *
+     * @return the future completed with the result of the routing, already completed when the calling thread
+     * routed the publish.
+     * */
+    private <T> CompletableFuture<T> routeMatching(String publisherClientId, Topic topic,
+                                                   Set<String> filterTargetClients, MqttPublishMessage msg,
+                                                   Function<BatchingPublishesCollector, T> routing) {
+        if (subscriptions.groupsBySessionLoop()) {
+            final BatchingPublishesCollector collector = new BatchingPublishesCollector(sessionLoops);
+            collector.addBatches(subscriptions.matchQosSharpeningBySessionLoop(topic), publisherClientId,
+                filterTargetClients);
+            return CompletableFuture.completedFuture(routing.apply(collector));
+        }
+        final List<Subscription> matching = subscriptions.matchQosSharpening(topic);
+        final int threshold = parallelFanoutThreshold;
+        final boolean largeFanout = threshold > 0 && matching.size() >= threshold;
+        if (!largeFanout && !fanoutsInFlight.containsKey(publisherClientId)) {
+            final BatchingPublishesCollector collector = new BatchingPublishesCollector(sessionLoops);
+            collector.addMatching(matching, 0, matching.size(), publisherClientId, filterTargetClients);
+            return CompletableFuture.completedFuture(routing.apply(collector));
+        }
+
+        // the caller can release the publish before the executor routes it
+        Utils.retain(msg, BT_ROUTE_FANOUT);
+        final ExecutorService executor = fanoutExecutor;
+        final CompletableFuture<Void> routedTurn = new CompletableFuture<>();
+        final CompletableFuture<Void> previous = fanoutsInFlight.put(publisherClientId, routedTurn);
+        final CompletableFuture<Void> previousTurn = previous != null ? previous : CompletableFuture.completedFuture(null);
+        final CompletableFuture<T> routed = previousTurn
+            .thenCompose(previousRouted -> collectBatches(matching, publisherClientId, filterTargetClients, executor))
+            .thenApply(routing);
+        routed.whenComplete((result, error) -> {
+            if (error != null) {
+                LOG.error("Error routing the publish on topic {} to {} subscriptions", topic, matching.size(), error);
+            }
+            Utils.release(msg, BT_ROUTE_FANOUT);
+            fanoutsInFlight.remove(publisherClientId, routedTurn);
+            routedTurn.complete(null);
+        });
+        return routed;
+    }
+
+    /**
+     * Groups the matching subscriptions by session loop on the executor, split in slices when they are more than
+     * the parallel fan-out threshold. The batches of the slices are merged in order, by the thread that completes
+     * the last slice.
+     * */
+    private CompletableFuture<BatchingPublishesCollector> collectBatches(List<Subscription> matching,
+                                                                         String publisherClientId,
+                                                                         Set<String> filterTargetClients,
+                                                                         ExecutorService executor) {
+        final int size = matching.size();
+        final int slices = fanoutSlices(size);
+        final int sliceSize = Math.max(1, (size + slices - 1) / slices);
+        final List<CompletableFuture<BatchingPublishesCollector>> sliceCollectors = new ArrayList<>(slices);
+        for (int from = 0; from < size; from += sliceSize) {
+            final int sliceStart = from;
+            final int sliceEnd = Math.min(from + sliceSize, size);
+            sliceCollectors.add(CompletableFuture.supplyAsync(() -> {
+                final BatchingPublishesCollector sliceCollector = new BatchingPublishesCollector(sessionLoops);
+                sliceCollector.addMatching(matching, sliceStart, sliceEnd, publisherClientId, filterTargetClients);
+                return sliceCollector;
+            }, executor));
+        }
+        return CompletableFuture.allOf(sliceCollectors.toArray(new CompletableFuture[0])).thenApply(allSliced -> {
+            final BatchingPublishesCollector collector = new BatchingPublishesCollector(sessionLoops);
+            for (CompletableFuture<BatchingPublishesCollector> sliceCollector : sliceCollectors) {
+                // already completed
+                collector.merge(sliceCollector.join());
+            }
+            return collector;
+        });
+    }
+
+    private int fanoutSlices(int matchingCount) {
+        final int threshold = parallelFanoutThreshold;
+        if (threshold <= 0 || matchingCount < threshold) {
+            return 1;
         }
-        return new RoutingResults(successedRoutings, failedRoutings, publishes);
+        // a slice for each threshold of subscriptions, at most one for each worker of the executor
+        return Math.min(FANOUT_PARALLELISM, matchingCount / threshold + 1);
     }
 
     private void publishToSession(Topic topic, Collection<Subscription> subscriptions,
                                   MqttQoS publishingQos, boolean retainPublish, Instant messageExpiry, MqttPublishMessage msg) {
+        if (sessionLoops.hasMigratedSessions()) {
+            subscriptions = forwardMigratedSubscribers(topic, subscriptions, publishingQos, retainPublish,
+                messageExpiry, msg);
+        }
         ByteBuf duplicatedPayload = msg.payload().duplicate();
+        // the subscribers of the batch are all served by this session loop, that encodes their headers once
+        final PublishFrames frames = new PublishFrames();
+        final SubscriberProperties subscriberProperties = new SubscriberProperties(msg);
         for (Subscription sub : subscriptions) {
             MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
             boolean retained = false;
             if (sub.getOption().isRetainAsPublished()) {
                 retained = retainPublish;
             }
-            publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, msg);
+            publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, subscriberProperties, frames);
+        }
+    }
+
+    /**
+     * Hands over to their loop the subscribers whose session migrated after the batch was grouped, and holds the
+     * ones that just migrated to the current loop until their previous loop forwarded the publishes queued before.
+     *
+     * @return the subscribers owned by the current session loop, that can be published to now.
+     * */
+    private Collection<Subscription> forwardMigratedSubscribers(Topic topic, Collection<Subscription> subscriptions,
+                                                                MqttQoS publishingQos, boolean retainPublish,
+                                                                Instant messageExpiry, MqttPublishMessage msg) {
+        final int currentLoop = SessionEventLoop.getThreadQueueId();
+        if (currentLoop < 0) {
+            return subscriptions;
+        }
+        final List<Subscription> owned = new ArrayList<>(subscriptions.size());
+        Map<Integer, List<Subscription>> migrated = null;
+        boolean held = false;
+        for (Subscription sub : subscriptions) {
+            final int ownerLoop = sessionLoops.targetQueueOrdinal(sub.getClientId());
+            if (ownerLoop == currentLoop) {
+                if (holdUntilMigrated(topic, sub, publishingQos, retainPublish, messageExpiry, msg)) {
+                    held = true;
+                } else {
+                    owned.add(sub);
+                }
+                continue;
+            }
+            if (migrated == null) {
+                migrated = new HashMap<>();
+            }
+            migrated.computeIfAbsent(ownerLoop, loop -> new ArrayList<>()).add(sub);
+        }
+        if (migrated == null) {
+            return held ? owned : subscriptions;
         }
+        for (Map.Entry<Integer, List<Subscription>> batch : migrated.entrySet()) {
+            Utils.retain(msg, 1, BT_ROUTE_TARGET);
+            final boolean routed = sessionLoops.forwardFireAndForget(batch.getKey(), "PUB to migrated sessions", () -> {
+                publishToSession(topic, batch.getValue(), publishingQos, retainPublish, messageExpiry, msg);
+                Utils.release(msg, BT_ROUTE_TARGET);
+            });
+            if (!routed) {
+                Utils.release(msg, BT_ROUTE_TARGET + "- failed routing");
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Holds the publish to a subscriber whose session just migrated to the current loop, while the publishes
+     * queued before on its previous loop are still being forwarded.
+     * */
+    private boolean holdUntilMigrated(Topic topic, Subscription sub, MqttQoS publishingQos, boolean retainPublish,
+                                      Instant messageExpiry, MqttPublishMessage msg) {
+        if (!sessionLoops.isMigrating(sub.getClientId())) {
+            return false;
+        }
+        Utils.retain(msg, 1, BT_ROUTE_TARGET);
+        final boolean held = sessionLoops.holdIfMigrating(sub.getClientId(), () -> {
+            publishToSession(topic, Collections.singletonList(sub), publishingQos, retainPublish, messageExpiry, msg);
+            Utils.release(msg, BT_ROUTE_TARGET);
+        });
+        if (!held) {
+            Utils.release(msg, BT_ROUTE_TARGET);
+        }
+        return held;
     }
 
     private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos, boolean retained,
-                                  Instant messageExpiry, MqttPublishMessage msg) {
+                                  Instant messageExpiry, SubscriberProperties subscriberProperties,
+                                  PublishFrames frames) {
         Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
 
         boolean isSessionPresent = targetSession != null;
@@ -958,10 +1344,9 @@ class PostOffice {
             }
 
             metricsProvider.addMessage(SessionEventLoop.getThreadQueueId(), qos.value());
-            Collection<? extends MqttProperties.MqttProperty> existingProperties = msg.variableHeader().properties().listAll();
-            final MqttProperties.MqttProperty[] properties = prepareSubscriptionProperties(sub, existingProperties);
+            final MqttProperties.MqttProperty[] properties = subscriberProperties.forSession(targetSession, sub);
             final SessionRegistry.PublishedMessage publishedMessage =
-                new SessionRegistry.PublishedMessage(topic, qos, payload, retained, messageExpiry, properties);
+                new SessionRegistry.PublishedMessage(topic, qos, payload, retained, messageExpiry, frames, properties);
             targetSession.sendPublishOnSessionAtQos(publishedMessage);
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
@@ -973,24 +1358,29 @@ class PostOffice {
 
     private MqttProperties.MqttProperty[] prepareSubscriptionProperties(Subscription sub,
                                         Collection<? extends MqttProperties.MqttProperty> existingProperties) {
+        final MqttProperties.MqttProperty[] properties = propertiesWithoutSubscriptionId(existingProperties);
+        if (!sub.hasSubscriptionIdentifier()) {
+            return properties;
+        }
+        final MqttProperties.MqttProperty[] withSubscriptionId = Arrays.copyOf(properties, properties.length + 1);
+        withSubscriptionId[properties.length] = createSubscriptionIdProperty(sub);
+        return withSubscriptionId;
+    }
 
+    private static MqttProperties.MqttProperty[] propertiesWithoutSubscriptionId(
+                                        Collection<? extends MqttProperties.MqttProperty> existingProperties) {
         // copy all properties except SubscriptionId
-        Collection<MqttProperties.MqttProperty> properties = new ArrayList<>(existingProperties.size() + 1);
+        Collection<MqttProperties.MqttProperty> properties = new ArrayList<>(existingProperties.size());
         for (MqttProperties.MqttProperty property : existingProperties) {
             // skip SUBSCRIPTION_IDENTIFIER because could be added by the subscription
             if (property.propertyId() != MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value()) {
                 properties.add(property);
             }
         }
-        if (sub.hasSubscriptionIdentifier()) {
-            MqttProperties.IntegerProperty subscriptionId = createSubscriptionIdProperty(sub);
-            properties.add(subscriptionId);
-        }
-
         return properties.toArray(new MqttProperties.MqttProperty[0]);
     }
 
-    private MqttProperties.IntegerProperty createSubscriptionIdProperty(Subscription sub) {
+    private static MqttProperties.IntegerProperty createSubscriptionIdProperty(Subscription sub) {
         int subscriptionId = sub.getSubscriptionIdentifier().value();
         return new MqttProperties.IntegerProperty(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), subscriptionId);
     }
@@ -1002,8 +1392,16 @@ class PostOffice {
      */
     RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username,
                                        Instant messageExpiry) {
+        return receivedPublishQos2(connection, new Topic(msg.variableHeader().topicName()), msg, username,
+            messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic of the PUBLISH message, reused along all the publish processing.
+     * */
+    RoutingResults receivedPublishQos2(MQTTConnection connection, Topic topic, MqttPublishMessage msg, String username,
+                                       Instant messageExpiry) {
         LOG.trace("Processing PUB QoS2 message on connection: {}", connection);
-        final Topic topic = new Topic(msg.variableHeader().topicName());
 
         final String clientId = connection.getClientId();
         if (!authorizator.canWrite(topic, username, clientId)) {
@@ -1027,23 +1425,27 @@ class PostOffice {
         final RoutingResults publishRoutings;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            publishRoutings = publish2Subscribers(clientId, failedClients, messageExpiry, msg);
-        } else {
-            publishRoutings = publish2Subscribers(clientId, messageExpiry, msg);
-        }
-        if (publishRoutings.isAllSuccess()) {
-            // QoS2 PUB message was enqueued successfully to every event loop
-            connection.sendPubRec(messageID);
-            manageRetain(topic, msg);
-            interceptor.notifyTopicPublished(msg, clientId, username);
+            publishRoutings = publish2Subscribers(clientId, topic, failedClients, messageExpiry, msg);
         } else {
-            // some session event loop enqueue raised a problem
-            failedPublishes.insertAll(messageID, clientId, publishRoutings.failedRoutings);
-        }
-        Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, phase 2 qos2");
-
-        // cleanup success resends from the failed publishes cache
-        failedPublishes.removeAll(messageID, clientId, publishRoutings.successedRoutings);
+            publishRoutings = publish2Subscribers(clientId, topic, messageExpiry, msg);
+        }
+        // a large fan-out is acknowledged once the fan-out executor routed it
+        publishRoutings.whenRouted().whenComplete((routed, error) -> {
+            if (routed == null) {
+                // failed routing, already logged, the publish isn't acknowledged
+            } else if (routed.isAllSuccess()) {
+                // QoS2 PUB message was enqueued successfully to every event loop
+                connection.sendPubRec(messageID);
+                manageRetain(topic, msg);
+                interceptor.notifyTopicPublished(msg, clientId, username);
+                // cleanup success resends from the failed publishes cache
+                failedPublishes.removeAll(clientId, messageID);
+            } else {
+                // some session event loop enqueue raised a problem, a resend has to reach only them
+                failedPublishes.replaceAll(clientId, messageID, routed.failedClientIds());
+            }
+            Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, phase 2 qos2");
+        });
 
         return publishRoutings;
     }
@@ -1071,7 +1473,7 @@ class PostOffice {
         final ByteBuf payload = msg.payload();
         LOG.info("Sending internal PUBLISH message Topic={}, qos={}", topic, qos);
 
-        final RoutingResults publishResult = publish2Subscribers(INTERNAL_PUBLISHER, Instant.MAX, msg);
+        final RoutingResults publishResult = publish2Subscribers(INTERNAL_PUBLISHER, topic, Instant.MAX, msg);
         LOG.trace("after routed publishes: {}", publishResult);
 
         if (!isRetained(msg)) {
@@ -1154,6 +1556,9 @@ class PostOffice {
     }
 
     public void terminate() {
+        if (fanoutExecutor != null) {
+            fanoutExecutor.shutdown();
+        }
         willExpirationService.shutdown();
         retainedMessagesExpirationService.shutdown();
         sessionLoops.terminate();
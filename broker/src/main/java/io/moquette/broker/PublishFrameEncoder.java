@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Writes the PUBLISH messages that have their header already encoded as the shared header bytes followed by the
+ * payload, so MqttEncoder doesn't encode them again and doesn't copy their payload. The two are wrapped in a single
+ * composite buffer, so each PUBLISH is written as one buffer like MqttEncoder does.
+ * It has to be placed after MqttEncoder in the pipeline, to handle the outbound messages before it.
+ */
+@ChannelHandler.Sharable
+final class PublishFrameEncoder extends MessageToMessageEncoder<PublishFrames.EncodedPublishMessage> {
+
+    static final PublishFrameEncoder INSTANCE = new PublishFrameEncoder();
+
+    private PublishFrameEncoder() {
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, PublishFrames.EncodedPublishMessage msg, List<Object> out) {
+        // a single buffer for the frame, the handlers after this one, like the WebSocket framing, expect a buffer
+        // for each MQTT packet. The message is released after the encoding
+        out.add(Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(msg.encodedHeader()), msg.payload().retain()));
+    }
+}
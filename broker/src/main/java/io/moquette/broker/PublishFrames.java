@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes once, for a publish routed to a session loop, the header of the PUBLISH frames sent to its subscribers.
+ * Frames with the same topic, QoS and flags, and without properties to encode, differ only for the packet id, so
+ * each subscriber receives the shared header, patched with its packet id when QoS > 0, followed by the payload,
+ * instead of encoding and copying the whole frame for each of them.
+ * Not thread safe, it's used only by the session loop that delivers the publish to its sessions: the messages
+ * detach it before being stored in the inflight window or in the queue of a session.
+ * */
+final class PublishFrames {
+
+    /**
+     * A PUBLISH message that carries the bytes of its fixed and variable header already encoded.
+     * */
+    static final class EncodedPublishMessage extends MqttPublishMessage {
+
+        private final byte[] encodedHeader;
+
+        EncodedPublishMessage(MqttFixedHeader fixedHeader, MqttPublishVariableHeader variableHeader,
+                              ByteBuf payload, byte[] encodedHeader) {
+            super(fixedHeader, variableHeader, payload);
+            this.encodedHeader = encodedHeader;
+        }
+
+        byte[] encodedHeader() {
+            return encodedHeader;
+        }
+
+        @Override
+        public MqttPublishMessage replace(ByteBuf content) {
+            return new EncodedPublishMessage(fixedHeader(), variableHeader(), content, encodedHeader);
+        }
+    }
+
+    private static final class Header {
+        final boolean mqtt5;
+        final String topicName;
+        final int fixedHeaderByte1;
+        final int payloadSize;
+        final byte[] bytes;
+        final int packetIdOffset;
+
+        Header(boolean mqtt5, String topicName, int fixedHeaderByte1, int payloadSize, byte[] bytes,
+               int packetIdOffset) {
+            this.mqtt5 = mqtt5;
+            this.topicName = topicName;
+            this.fixedHeaderByte1 = fixedHeaderByte1;
+            this.payloadSize = payloadSize;
+            this.bytes = bytes;
+            this.packetIdOffset = packetIdOffset;
+        }
+
+        boolean matches(boolean mqtt5, String topicName, int fixedHeaderByte1, int payloadSize) {
+            return this.mqtt5 == mqtt5 && this.fixedHeaderByte1 == fixedHeaderByte1
+                && this.payloadSize == payloadSize && this.topicName.equals(topicName);
+        }
+    }
+
+    // few distinct headers are expected for a publish, one for each resolved topic, QoS and protocol version
+    private final List<Header> headers = new ArrayList<>(2);
+
+    /**
+     * @param mqtt5 if the frame is sent on an MQTT5 connection, the only version that encodes the properties.
+     * @return the message carrying its encoded header, or the same message when it has properties to encode.
+     * */
+    MqttPublishMessage encodeOnce(MqttPublishMessage msg, boolean mqtt5) {
+        // MqttProperties.isEmpty doesn't consider the user properties and the subscription identifiers
+        if (mqtt5 && !msg.variableHeader().properties().listAll().isEmpty()) {
+            return msg;
+        }
+        final MqttFixedHeader fixedHeader = msg.fixedHeader();
+        final String topicName = msg.variableHeader().topicName();
+        final int fixedHeaderByte1 = fixedHeaderByte1(fixedHeader);
+        final int payloadSize = msg.payload().readableBytes();
+        final Header header = headerFor(mqtt5, topicName, fixedHeaderByte1, payloadSize, fixedHeader.qosLevel().value() > 0);
+
+        byte[] encodedHeader = header.bytes;
+        if (header.packetIdOffset >= 0) {
+            final int packetId = msg.variableHeader().packetId();
+            encodedHeader = Arrays.copyOf(header.bytes, header.bytes.length);
+            encodedHeader[header.packetIdOffset] = (byte) (packetId >> 8);
+            encodedHeader[header.packetIdOffset + 1] = (byte) packetId;
+        }
+        return new EncodedPublishMessage(fixedHeader, msg.variableHeader(), msg.payload(), encodedHeader);
+    }
+
+    private Header headerFor(boolean mqtt5, String topicName, int fixedHeaderByte1, int payloadSize,
+                             boolean hasPacketId) {
+        for (int i = 0; i < headers.size(); i++) {
+            final Header header = headers.get(i);
+            if (header.matches(mqtt5, topicName, fixedHeaderByte1, payloadSize)) {
+                return header;
+            }
+        }
+        final Header header = encodeHeader(mqtt5, topicName, fixedHeaderByte1, payloadSize, hasPacketId);
+        headers.add(header);
+        return header;
+    }
+
+    /**
+     * Encodes the header like MqttEncoder does for a PUBLISH without properties.
+     * */
+    private static Header encodeHeader(boolean mqtt5, String topicName, int fixedHeaderByte1, int payloadSize,
+                                       boolean hasPacketId) {
+        final byte[] topicBytes = topicName.getBytes(StandardCharsets.UTF_8);
+        // MQTT5 has always the properties length, that is 0 and takes one byte
+        final int variableHeaderSize = 2 + topicBytes.length + (hasPacketId ? 2 : 0) + (mqtt5 ? 1 : 0);
+        final int remainingLength = variableHeaderSize + payloadSize;
+        final byte[] bytes = new byte[1 + variableLengthIntSize(remainingLength) + variableHeaderSize];
+
+        int idx = 0;
+        bytes[idx++] = (byte) fixedHeaderByte1;
+        int length = remainingLength;
+        do {
+            int digit = length % 128;
+            length /= 128;
+            if (length > 0) {
+                digit |= 0x80;
+            }
+            bytes[idx++] = (byte) digit;
+        } while (length > 0);
+        bytes[idx++] = (byte) (topicBytes.length >> 8);
+        bytes[idx++] = (byte) topicBytes.length;
+        System.arraycopy(topicBytes, 0, bytes, idx, topicBytes.length);
+        idx += topicBytes.length;
+        final int packetIdOffset = hasPacketId ? idx : -1;
+        // the packet id and the empty properties length are left to 0
+        return new Header(mqtt5, topicName, fixedHeaderByte1, payloadSize, bytes, packetIdOffset);
+    }
+
+    private static int fixedHeaderByte1(MqttFixedHeader fixedHeader) {
+        int ret = MqttMessageType.PUBLISH.value() << 4;
+        if (fixedHeader.isDup()) {
+            ret |= 0x08;
+        }
+        ret |= fixedHeader.qosLevel().value() << 1;
+        if (fixedHeader.isRetain()) {
+            ret |= 0x01;
+        }
+        return ret;
+    }
+
+    private static int variableLengthIntSize(int value) {
+        int size = 0;
+        do {
+            value /= 128;
+            size++;
+        } while (value > 0);
+        return size;
+    }
+}
@@ -15,45 +15,99 @@
  */
 package io.moquette.broker;
 
+import io.moquette.broker.subscriptions.Subscription;
+
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
  * The results of routing a publish message to all clients.
+ * The batches of subscriptions, one for each session loop, that couldn't be enqueued are kept, so the ids of the
+ * clients to retry are extracted only when some routing failed.
  */
 public class RoutingResults {
 
-    final List<String> successedRoutings;
-    final List<String> failedRoutings;
+    private static final RoutingResults NO_ROUTINGS = new RoutingResults(0, Collections.emptyList(),
+        CompletableFuture.completedFuture(null));
+
+    private final int successedBatches;
+    private final List<List<Subscription>> failedBatches;
     private final CompletableFuture<Void> mergedAction;
+    private final CompletableFuture<RoutingResults> routed;
 
-    public RoutingResults(List<String> successedRoutings, List<String> failedRoutings, CompletableFuture<Void> mergedAction) {
-        this.successedRoutings = successedRoutings;
-        this.failedRoutings = failedRoutings;
+    public RoutingResults(int successedBatches, List<List<Subscription>> failedBatches, CompletableFuture<Void> mergedAction) {
+        this.successedBatches = successedBatches;
+        this.failedBatches = failedBatches;
         this.mergedAction = mergedAction;
+        this.routed = CompletableFuture.completedFuture(this);
+    }
+
+    private RoutingResults(CompletableFuture<RoutingResults> routed) {
+        this.successedBatches = 0;
+        this.failedBatches = Collections.emptyList();
+        this.mergedAction = routed.thenCompose(RoutingResults::completableFuture);
+        this.routed = routed;
     }
 
     public boolean isAllSuccess() {
-        return failedRoutings.isEmpty();
+        return failedBatches.isEmpty();
     }
 
     public boolean isAllFailed() {
-        return successedRoutings.isEmpty() && !failedRoutings.isEmpty();
+        return successedBatches == 0 && !failedBatches.isEmpty();
+    }
+
+    int failedBatchesCount() {
+        return failedBatches.size();
+    }
+
+    /**
+     * @return the ids of the clients that were in the batches not enqueued to their session loop.
+     * */
+    List<String> failedClientIds() {
+        final List<String> failedClientIds = new ArrayList<>();
+        for (List<Subscription> failedBatch : failedBatches) {
+            for (Subscription sub : failedBatch) {
+                failedClientIds.add(sub.getClientId());
+            }
+        }
+        return failedClientIds;
     }
 
     public CompletableFuture<Void> completableFuture() {
         return mergedAction;
     }
 
+    /**
+     * @return the future completed with the results once the batches are handed to their session loop. It's
+     * already completed with these results, unless the publish is still routed by the fan-out executor.
+     * */
+    public CompletableFuture<RoutingResults> whenRouted() {
+        return routed;
+    }
+
+    /**
+     * The results of a publish still routed by the fan-out executor, that don't count any batch: the actual
+     * results are the ones {@link #whenRouted()} completes with.
+     * */
+    static RoutingResults pending(CompletableFuture<RoutingResults> routed) {
+        return new RoutingResults(routed);
+    }
+
     public static RoutingResults preroutingError() {
         // WARN this is a special case failed is empty, but this result is to be considered as error.
-        return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
+        return NO_ROUTINGS;
+    }
+
+    static RoutingResults noRoutings() {
+        return NO_ROUTINGS;
     }
 
     @Override
     public String toString() {
-        return "RoutingResults{" + "successedRoutings=" + successedRoutings + ", failedRoutings=" + failedRoutings + ", mergedAction=" + mergedAction + '}';
+        return "RoutingResults{" + "successedBatches=" + successedBatches + ", failedBatches=" + failedBatches.size() + ", mergedAction=" + mergedAction + '}';
     }
 
 }
@@ -36,7 +36,6 @@ import io.moquette.persistence.MemorySessionsRepository;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
-import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.persistence.SegmentQueueRepository;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
@@ -62,10 +61,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static io.moquette.broker.Session.INFINITE_EXPIRY;
 import io.moquette.interception.TopicRewriter;
@@ -79,6 +81,8 @@ public class Server {
     public static final String MOQUETTE_VERSION = "0.19-SNAPSHOT";
 
     private ScheduledExecutorService scheduler;
+    // runs the work that could block on virtual threads, null when it runs on the platform threads
+    private ExecutorService blockingWorkExecutor;
     private NewNettyAcceptor acceptor;
     private volatile boolean initialized;
     private PostOffice dispatcher;
@@ -190,6 +194,7 @@ public class Server {
         metricsProvider = MetricsManager.createMetricsProvider(config);
 
         scheduler = Executors.newScheduledThreadPool(1);
+        blockingWorkExecutor = createBlockingWorkExecutor(config);
 
         final String handlerProp = System.getProperty(BrokerConstants.INTERCEPT_HANDLER_PROPERTY_NAME);
         if (handlerProp != null) {
@@ -235,7 +240,11 @@ public class Server {
 
             LOG.debug("Configuring persistent subscriptions store and queues, path: {}", dataPath);
             final int autosaveInterval = Integer.parseInt(config.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
-            h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock).initStore();
+            h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock);
+            if (blockingWorkExecutor != null) {
+                h2Builder.commitExecutor(blockingWorkExecutor);
+            }
+            h2Builder.initStore();
             queueRepository = initQueuesRepository(config, dataPath, h2Builder);
             LOG.trace("Configuring H2 subscriptions repository");
             subscriptionsRepository = h2Builder.subscriptionsRepository();
@@ -249,8 +258,26 @@ public class Server {
             sessionsRepository = new MemorySessionsRepository();
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final int matchCacheSize = config.intProp(IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE, 0);
+        final boolean countSubscriptionsByFirstLevel = config.boolProp(IConfig.SUBSCRIPTIONS_FIRST_LEVEL_COUNTERS, false);
+        CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory(matchCacheSize,
+            countSubscriptionsByFirstLevel, metricsProvider);
+        final int sessionQueueSize = config.intProp(IConfig.SESSION_QUEUE_SIZE, 1024);
+        final int sessionLoops = config.intProp(IConfig.SESSION_LOOPS, Runtime.getRuntime().availableProcessors());
+        final List<String> cpuAffinityGroups = CpuAffinity.parseGroups(
+            config.getProperty(IConfig.SESSION_LOOPS_CPU_AFFINITY));
+        final SessionCommandQueue.WaitStrategy waitStrategy = SessionCommandQueue.WaitStrategy.forName(
+            config.getProperty(IConfig.SESSION_QUEUE_WAIT_STRATEGY, "park"));
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, waitStrategy,
+            sessionLoops, cpuAffinityGroups, metricsProvider);
+        loopsGroup.setBatchSize(config.intProp(IConfig.SESSION_LOOP_BATCH_SIZE, 1));
+        if (config.boolProp(IConfig.SUBSCRIPTIONS_BY_SESSION_LOOP, false)) {
+            // the subscriptions are bucketed by the loop of their client, that then can't change
+            loopsGroup.disableMigration();
+            subscriptions.groupBySessionLoop(loopsGroup.getEventLoopCount(), loopsGroup::targetQueueOrdinal);
+        }
         subscriptions.init(subscriptionsRepository);
+        scheduleSubscriptionsCompaction(config, subscriptions);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
 
         final int globalSessionExpiry;
@@ -260,10 +287,9 @@ public class Server {
             globalSessionExpiry = INFINITE_EXPIRY;
         }
 
-        final int sessionQueueSize = config.intProp(IConfig.SESSION_QUEUE_SIZE, 1024);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, metricsProvider);
         sessions = new SessionRegistry(subscriptions, sessionsRepository, queueRepository, authorizator, scheduler,
             clock, globalSessionExpiry, loopsGroup, metricsProvider);
+        subscriptions.setShareGroupSelection(config.getProperty(IConfig.SHARED_SUBSCRIPTION_SELECTION, "random"), sessions);
 
         final MqttQoS serverGrantedQoS = parseMaxGrantedQoS(config);
         dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, sessionsRepository, interceptor,
@@ -271,9 +297,12 @@ public class Server {
         if (topicRewriter != null) {
             dispatcher.setTopicRewriter(topicRewriter);
         }
+        dispatcher.setParallelFanoutThreshold(config.intProp(IConfig.PARALLEL_FANOUT_THRESHOLD, 0));
+        dispatcher.setQos0FireAndForget(config.boolProp(IConfig.QOS0_FIRE_AND_FORGET, false));
+        scheduleSessionLoopsRebalance(config);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
-        MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
-                                                                            dispatcher);
+        MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator,
+            blockingWorkExecutor, sessions, dispatcher);
 
         final NewNettyMQTTHandler mqttHandler = new NewNettyMQTTHandler(connectionFactory);
         acceptor = new NewNettyAcceptor();
@@ -289,6 +318,29 @@ public class Server {
         initialized = true;
     }
 
+    private void scheduleSubscriptionsCompaction(IConfig config, CTrieSubscriptionDirectory subscriptions) {
+        final int compactionInterval = config.intProp(IConfig.SUBSCRIPTIONS_COMPACTION_INTERVAL, 0);
+        if (compactionInterval <= 0) {
+            return;
+        }
+        LOG.trace("Scheduling subscriptions tree compaction every {} seconds", compactionInterval);
+        scheduler.scheduleWithFixedDelay(() -> {
+            final int reclaimed = subscriptions.compact();
+            LOG.debug("Compacted subscriptions tree, reclaimed {} nodes, {} since start", reclaimed,
+                subscriptions.reclaimedNodes());
+        }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+    }
+
+    private void scheduleSessionLoopsRebalance(IConfig config) {
+        final int rebalanceInterval = config.intProp(IConfig.SESSION_LOOPS_REBALANCE_INTERVAL, 0);
+        if (rebalanceInterval <= 0) {
+            return;
+        }
+        LOG.trace("Scheduling session loops rebalance every {} seconds", rebalanceInterval);
+        scheduler.scheduleWithFixedDelay(() -> sessions.rebalanceSessionLoops(), rebalanceInterval,
+            rebalanceInterval, TimeUnit.SECONDS);
+    }
+
     public void setTopicRewriter(TopicRewriter topicRewriter) {
         this.topicRewriter = topicRewriter;
         if (dispatcher != null) {
@@ -551,7 +603,26 @@ public class Server {
                 observers.add(handler);
             }
         }
-        interceptor = new BrokerInterceptor(props, observers);
+        if (blockingWorkExecutor != null) {
+            // a virtual thread for each notification, so a slow handler doesn't delay the others
+            interceptor = new BrokerInterceptor(VirtualThreads.newExecutor().get(), observers);
+        } else {
+            interceptor = new BrokerInterceptor(props, observers);
+        }
+    }
+
+    private static ExecutorService createBlockingWorkExecutor(IConfig config) {
+        if (!config.boolProp(IConfig.BLOCKING_WORK_ON_VIRTUAL_THREADS, false)) {
+            return null;
+        }
+        final Optional<ExecutorService> virtualThreads = VirtualThreads.newExecutor();
+        if (!virtualThreads.isPresent()) {
+            LOG.warn("{} is enabled but the JVM doesn't support virtual threads, the blocking work runs on the " +
+                "platform threads", IConfig.BLOCKING_WORK_ON_VIRTUAL_THREADS);
+            return null;
+        }
+        LOG.info("Running the blocking work on virtual threads");
+        return virtualThreads.get();
     }
 
     @SuppressWarnings("unchecked")
@@ -626,6 +697,15 @@ public class Server {
         // calling shutdown() does not actually stop tasks that are not cancelled,
         // and SessionsRepository does not stop its tasks. Thus shutdownNow().
         scheduler.shutdownNow();
+        if (blockingWorkExecutor != null) {
+            // lets a running H2 commit complete before closing the store
+            blockingWorkExecutor.shutdown();
+            try {
+                blockingWorkExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         sessions.close();
 
@@ -723,6 +803,20 @@ public class Server {
         return sessions.dropSession(clientId, true);
     }
 
+    /**
+     * Migrates disconnected sessions from the most loaded session loop to the least loaded one, so that they are
+     * served by it once reconnected.
+     *
+     * @return the number of sessions scheduled for migration.
+     */
+    public int rebalanceSessionLoops() {
+        if (!initialized) {
+            LOG.error("Moquette is not started, session loops rebalance unavailable");
+            throw new IllegalStateException("Can't rebalance the session loops of a Server that is not yet started");
+        }
+        return sessions.rebalanceSessionLoops();
+    }
+
     public FluentConfig withConfig() {
         return new FluentConfig(this);
     }
@@ -33,6 +33,7 @@ import java.util.*;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -80,6 +81,8 @@ class Session {
 
     private boolean clean;
     private final SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue;
+    // messages enqueued by this session instance and not yet sent, readable from other threads
+    private final AtomicInteger queuedMessages = new AtomicInteger();
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
     private final Map<String, Subscription> subscriptions = new HashMap<>();
@@ -102,6 +105,10 @@ class Session {
         this.resendInflightOnTimeout = data.protocolVersion() != MqttVersion.MQTT_5;
     }
 
+    boolean isProtocolVersion5() {
+        return data.protocolVersion() == MqttVersion.MQTT_5;
+    }
+
     public boolean expireImmediately() {
         return data.expiryInterval() == 0;
     }
@@ -138,6 +145,24 @@ class Session {
         return status.get() == SessionStatus.CONNECTED;
     }
 
+    /**
+     * @return the free slots of the send quota, 0 if not connected. Read outside the session loop it's an estimation.
+     * */
+    int availableSendSlots() {
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (localMqttConnectionRef == null || !connected()) {
+            return 0;
+        }
+        return localMqttConnectionRef.sendQuota().availableSlots();
+    }
+
+    /**
+     * @return the number of messages waiting in the session queue, an estimation when read outside the session loop.
+     * */
+    int queuedMessages() {
+        return queuedMessages.get();
+    }
+
     public String getClientID() {
         return data.clientId();
     }
@@ -284,7 +309,7 @@ class Session {
         MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(publishRequest.getTopic().toString(),
             publishRequest.getPublishingQos(), publishRequest.getPayload(), 0,
             publishRequest.retained, false, mqttProperties);
-        mqttConnection.sendPublish(publishMsg);
+        mqttConnection.sendPublish(publishMsg, publishRequest.detachFrames());
     }
 
     private void sendPublishQos1(PublishedMessage publishRequest) {
@@ -312,6 +337,8 @@ class Session {
 
     private void sendPublishInFlightWindowOrQueueing(MQTTConnection localMqttConnectionRef,
                                                      PublishedMessage publishRequest) {
+        // the shared frames are used only by the session loop routing the publish, not by later resends or drains
+        final PublishFrames frames = publishRequest.detachFrames();
         // retain the payload because it's going to be added to map or to the queue.
         Utils.retain(publishRequest, "target session - forward to inflight or queue");
 
@@ -335,11 +362,12 @@ class Session {
             MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(
                 publishRequest.topic.toString(), publishRequest.getPublishingQos(),
                 publishRequest.payload, packetId, publishRequest.retained, false, mqttProperties);
-            localMqttConnectionRef.sendPublish(publishMsg);
+            localMqttConnectionRef.sendPublish(publishMsg, frames);
 
             drainQueueToConnection();
         } else {
             sessionQueue.enqueue(publishRequest);
+            queuedMessages.incrementAndGet();
             LOG.debug("Enqueue to peer session {} at QoS {}", getClientID(), publishRequest.getPublishingQos());
         }
     }
@@ -475,6 +503,8 @@ class Session {
                 // Our message was already fetched by another Thread.
                 return;
             }
+            // messages rehydrated from a persistent queue were never counted
+            queuedMessages.updateAndGet(count -> count > 0 ? count - 1 : 0);
             final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
             if (msgPub.isExpired()) {
                 LOG.debug("Drop an expired message contained in the queue");
@@ -552,6 +582,7 @@ class Session {
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
+        queuedMessages.set(0);
         inflightTimeouts.clear();
         for (EnqueuedMessage msg : inflightWindow.values()) {
             Utils.release(msg, "session cleanup - inflight window");
@@ -2,32 +2,109 @@ package io.moquette.broker;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
+/**
+ * A command executed by the session loop of its session.
+ * The future of its completion is created only when requested, so a command whose completion nobody composes on
+ * costs only this object. The future can be requested also after the command is executed.
+ * */
 final class SessionCommand {
 
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<SessionCommand, CompletableFuture> FUTURE_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(SessionCommand.class, CompletableFuture.class, "future");
+
     private final String sessionId;
     private final Callable<Void> action;
-    private final CompletableFuture<String> task;
+    // written before the state, so it's visible to who reads the failed state
+    private Throwable failure;
+    private volatile int state = PENDING;
+    private volatile CompletableFuture<String> future;
+    // set by the loop that hands the command over to the new owner of its migrated session, before queueing it
+    private boolean forwarded;
 
-    public  SessionCommand(String sessionId, Callable<Void> action) {
+    public SessionCommand(String sessionId, Callable<Void> action) {
         this.sessionId = sessionId;
         this.action = action;
-        this.task = new CompletableFuture<>();
     }
 
     public String getSessionId() {
         return this.sessionId;
     }
 
-    public void execute() throws Exception {
-        action.call();
+    boolean isForwarded() {
+        return forwarded;
+    }
+
+    void markForwarded() {
+        this.forwarded = true;
+    }
+
+    /**
+     * @return true if the command has been neither executed nor rejected.
+     * */
+    boolean isPending() {
+        return state == PENDING;
+    }
+
+    /**
+     * Executes the action, a failure completes exceptionally the future and is handed to the failure handler.
+     * */
+    void execute(BiConsumer<SessionCommand, Throwable> failureHandler) {
+        try {
+            action.call();
+        } catch (Throwable th) {
+            failure = th;
+            state = FAILED;
+            final CompletableFuture<String> requested = future;
+            if (requested != null) {
+                requested.completeExceptionally(th);
+            }
+            failureHandler.accept(this, th);
+            return;
+        }
+        state = COMPLETED;
+        final CompletableFuture<String> requested = future;
+        if (requested != null) {
+            requested.complete(sessionId);
+        }
     }
 
-    public void complete() {
-        task.complete(sessionId);
+    /**
+     * Fails the command without executing it, when it can't be handed to the loop that owns its session.
+     * */
+    void reject(Throwable cause) {
+        failure = cause;
+        state = FAILED;
+        final CompletableFuture<String> requested = future;
+        if (requested != null) {
+            requested.completeExceptionally(cause);
+        }
     }
 
     public CompletableFuture<String> completableFuture() {
-        return task;
+        CompletableFuture<String> requested = future;
+        if (requested == null) {
+            final CompletableFuture<String> created = new CompletableFuture<>();
+            requested = FUTURE_UPDATER.compareAndSet(this, null, created) ? created : future;
+        }
+        // the command could have been executed before the future was visible to it
+        switch (state) {
+            case COMPLETED:
+                requested.complete(sessionId);
+                break;
+            case FAILED:
+                requested.completeExceptionally(failure);
+                break;
+            default:
+                break;
+        }
+        return requested;
     }
 }
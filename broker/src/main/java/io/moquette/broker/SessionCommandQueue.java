@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of the commands of a session loop, written by many threads and read only by the loop.
+ * The producers claim a slot by moving the producer index with a CAS and then publish the command in it, so they
+ * never take a lock; the consumer frees the slot and moves the consumer index with ordered writes.
+ * When the queue is empty the consumer waits as defined by its {@link WaitStrategy}.
+ * */
+final class SessionCommandQueue<E> {
+
+    /**
+     * How the consumer waits for new commands when the queue is empty.
+     * */
+    enum WaitStrategy {
+        /**
+         * Parks the consumer until a producer wakes it up, frees the CPU but pays the wake up on each command
+         * that finds the loop idle.
+         * */
+        PARK,
+        /**
+         * Spins and yields for a while before parking, to catch the commands that follow closely without
+         * the cost of a wake up.
+         * */
+        SPIN_THEN_PARK,
+        /**
+         * Never parks, the loop keeps a CPU busy to have the lowest latency.
+         * */
+        BUSY_SPIN;
+
+        /**
+         * @param name one of park, spin_then_park, busy_spin.
+         * @throws IllegalArgumentException if the name doesn't identify a strategy.
+         * */
+        static WaitStrategy forName(String name) {
+            for (WaitStrategy strategy : values()) {
+                if (strategy.name().equals(name.trim().toUpperCase(Locale.ROOT))) {
+                    return strategy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown session queue wait strategy: " + name
+                + ", admitted only park, spin_then_park, busy_spin");
+        }
+    }
+
+    private static final int SPINS = 1_000;
+    private static final int YIELDS = 100;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final int capacity;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+    // the consumer thread while it's parked, or about to be
+    private volatile Thread parkedConsumer;
+
+    SessionCommandQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Session queue size must be at least 1, found: " + capacity);
+        }
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        int bufferSize = 1;
+        while (bufferSize < capacity) {
+            bufferSize <<= 1;
+        }
+        this.buffer = new AtomicReferenceArray<>(bufferSize);
+        this.mask = bufferSize - 1;
+    }
+
+    /**
+     * Can be invoked by any thread.
+     *
+     * @return false if the queue is full and the command was not added.
+     * */
+    boolean offer(E command) {
+        Objects.requireNonNull(command);
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        // a volatile write, so that it's ordered with the read of the parked consumer
+        buffer.set(offset(index), command);
+        if (waitStrategy != WaitStrategy.BUSY_SPIN) {
+            final Thread consumer = parkedConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * To be invoked only by the consumer.
+     *
+     * @return the oldest command or null if the queue is empty.
+     * */
+    E poll() {
+        final long index = consumerIndex.get();
+        final int offset = offset(index);
+        E command = buffer.get(offset);
+        if (command == null) {
+            if (index == producerIndex.get()) {
+                return null;
+            }
+            // the slot is claimed by a producer that has still to publish the command
+            do {
+                command = buffer.get(offset);
+            } while (command == null);
+        }
+        buffer.lazySet(offset, null);
+        consumerIndex.lazySet(index + 1);
+        return command;
+    }
+
+    /**
+     * To be invoked only by the consumer, waits for a command if the queue is empty.
+     *
+     * @throws InterruptedException if the consumer is interrupted while waiting.
+     * */
+    E take() throws InterruptedException {
+        E command = poll();
+        if (command != null) {
+            return command;
+        }
+        if (waitStrategy == WaitStrategy.BUSY_SPIN) {
+            while (true) {
+                command = pollUnlessInterrupted();
+                if (command != null) {
+                    return command;
+                }
+            }
+        }
+        if (waitStrategy == WaitStrategy.SPIN_THEN_PARK) {
+            for (int i = 0; i < SPINS + YIELDS; i++) {
+                command = pollUnlessInterrupted();
+                if (command != null) {
+                    return command;
+                }
+                if (i >= SPINS) {
+                    Thread.yield();
+                }
+            }
+        }
+        return parkAndPoll();
+    }
+
+    private E pollUnlessInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return poll();
+    }
+
+    private E parkAndPoll() throws InterruptedException {
+        final Thread consumer = Thread.currentThread();
+        while (true) {
+            parkedConsumer = consumer;
+            // check again once visible to the producers, an offer done before would not unpark it
+            E command = poll();
+            if (command == null) {
+                LockSupport.park(this);
+                command = poll();
+            }
+            parkedConsumer = null;
+            if (command != null) {
+                return command;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * To be invoked only by the consumer, hands to the action the commands present, up to limit, without waiting.
+     *
+     * @return the number of the drained commands.
+     * */
+    int drain(Consumer<? super E> action, int limit) {
+        int drained = 0;
+        E command;
+        while (drained < limit && (command = poll()) != null) {
+            action.accept(command);
+            drained++;
+        }
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return consumerIndex.get() == producerIndex.get();
+    }
+
+    int size() {
+        // read the consumer first, so that the difference is never negative
+        final long consumed = consumerIndex.get();
+        return (int) Math.min(producerIndex.get() - consumed, capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private int offset(long index) {
+        return (int) index & mask;
+    }
+}
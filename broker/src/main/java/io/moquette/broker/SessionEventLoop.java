@@ -2,74 +2,163 @@ package io.moquette.broker;
 
 import io.moquette.metrics.MetricsManager;
 import io.moquette.metrics.MetricsProvider;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 final class SessionEventLoop extends Thread {
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoop.class);
 
-    private final BlockingQueue<FutureTask<String>> taskQueue;
+    private final SessionCommandQueue<SessionCommand> taskQueue;
     private final boolean flushOnExit;
     private final int queueId;
     private final MetricsProvider metricsProvider;
+    private final BiConsumer<SessionCommand, Throwable> failureHandler;
+    private volatile String cpuAffinity;
+    private volatile int batchSize = 1;
+    private Predicate<SessionCommand> migratedCommandsForwarder = command -> false;
+    // time spent executing commands, written only by this loop
+    private volatile long busyNanos;
+    // channels written by the commands of the current batch, flushed once it's completed
+    private final Set<Channel> channelsToFlush = new HashSet<>();
+    private final Consumer<SessionCommand> commandExecutor = this::executeCommand;
     /**
      * Allows a task to fetch the id of the session queue that is executing it.
      */
     private static final ThreadLocal<Integer> threadQueueId = new ThreadLocal<>();
 
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> taskQueue, int queueId, MetricsProvider metricsProvider) {
-        this(taskQueue, queueId, true, metricsProvider);
+    public SessionEventLoop(SessionCommandQueue<SessionCommand> taskQueue, int queueId, MetricsProvider metricsProvider) {
+        this(taskQueue, queueId, true, SessionEventLoop::logFailure, metricsProvider);
     }
 
     /**
      * @param flushOnExit consume the commands queue before exit.
-     *
+     * @param failureHandler receives the commands that failed, with their error.
      */
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> taskQueue, int queueId, boolean flushOnExit, MetricsProvider metricsProvider) {
+    public SessionEventLoop(SessionCommandQueue<SessionCommand> taskQueue, int queueId, boolean flushOnExit,
+                            BiConsumer<SessionCommand, Throwable> failureHandler, MetricsProvider metricsProvider) {
         this.taskQueue = taskQueue;
         this.queueId = queueId;
         this.flushOnExit = flushOnExit;
+        this.failureHandler = failureHandler;
         this.metricsProvider = metricsProvider;
     }
 
+    /**
+     * Pins the loop to the CPUs of the list once started, must be called before start.
+     * */
+    void setCpuAffinity(String cpuList) {
+        this.cpuAffinity = cpuList;
+    }
+
+    /**
+     * Sets the maximum number of commands executed at each wake up. When more than one, the channels written by the
+     * commands of a batch are flushed once at its end, instead of on each write.
+     * */
+    void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Session loop batch size must be at least 1, found: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets who hands over to their new loop the commands of the sessions that migrated away from this one,
+     * must be called before start.
+     *
+     * @param forwarder returns false for the commands to execute in this loop.
+     * */
+    void setMigratedCommandsForwarder(Predicate<SessionCommand> forwarder) {
+        this.migratedCommandsForwarder = forwarder;
+    }
+
+    /**
+     * @return the nanoseconds spent by the loop executing commands since its start.
+     * */
+    long busyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Defers the flush of the channel to the end of the batch of commands, if invoked by a session loop that
+     * executes commands in batches.
+     *
+     * @return false if the caller has to flush the channel itself.
+     * */
+    static boolean flushAtEndOfBatch(Channel channel) {
+        final Thread current = Thread.currentThread();
+        if (!(current instanceof SessionEventLoop)) {
+            return false;
+        }
+        final SessionEventLoop loop = (SessionEventLoop) current;
+        if (loop.batchSize == 1) {
+            return false;
+        }
+        loop.channelsToFlush.add(channel);
+        return true;
+    }
+
     @Override
     public void run() {
         threadQueueId.set(queueId);
+        if (cpuAffinity != null) {
+            CpuAffinity.pinCurrentThread(cpuAffinity);
+        }
         while (!Thread.interrupted() || (Thread.interrupted() && !taskQueue.isEmpty() && flushOnExit)) {
             try {
                 // blocking call
-                final FutureTask<String> task = taskQueue.take();
-                metricsProvider.sessionQueueDec(queueId);
-                executeTask(task);
+                final SessionCommand command = taskQueue.take();
+                final long batchStart = System.nanoTime();
+                try {
+                    executeCommand(command);
+                    final int batch = batchSize;
+                    if (batch > 1) {
+                        taskQueue.drain(commandExecutor, batch - 1);
+                    }
+                } finally {
+                    flushWrittenChannels();
+                    busyNanos += System.nanoTime() - batchStart;
+                }
             } catch (InterruptedException e) {
                 LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
                 Thread.currentThread().interrupt();
             } catch (Throwable th) {
-                // Keep the shared loop alive on a failing command; the FutureTask already captured the
-                // failure for its submitter, so co-located sessions must not be taken down with it.
-                LOG.error("SessionEventLoop {} caught an unhandled error while processing a command; "
-                        + "the loop continues", Thread.currentThread().getName(), th);
+                // the commands catch their failures, this keeps the loop alive on a failing handler or flush
+                LOG.error("SessionEventLoop {} caught an unhandled error; the loop continues",
+                    Thread.currentThread().getName(), th);
             }
         }
         LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
     }
 
-    public static void executeTask(final FutureTask<String> task) {
-        if (!task.isCancelled()) {
-            try {
-                task.run();
+    private void executeCommand(SessionCommand command) {
+        metricsProvider.sessionQueueDec(queueId);
+        if (migratedCommandsForwarder.test(command)) {
+            return;
+        }
+        command.execute(failureHandler);
+    }
 
-                // we ran it, but we have to grab the exception if raised
-                task.get();
-            } catch (Throwable th) {
-                LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
-                throw new RuntimeException(th);
-            }
+    private void flushWrittenChannels() {
+        if (channelsToFlush.isEmpty()) {
+            return;
         }
+        for (Channel channel : channelsToFlush) {
+            channel.flush();
+        }
+        channelsToFlush.clear();
+    }
+
+    private static void logFailure(SessionCommand command, Throwable error) {
+        LOG.error("SessionEventLoop {} caught an error processing a command for session {}; the loop continues",
+            Thread.currentThread().getName(), command.getSessionId(), error);
     }
 
     public static int getThreadQueueId() {
@@ -7,34 +7,135 @@ import io.moquette.metrics.MetricsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.FutureTask;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 class SessionEventLoopGroup {
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoopGroup.class);
 
+    /**
+     * Keeps the order of the commands of a session that migrated while some of them were still queued on its
+     * previous loop: the commands routed straight to the new owner are held until the forwarded ones it awaits
+     * have been executed. The last awaited is the marker queued by the migration after the commands of the
+     * previous loop.
+     * */
+    private static final class MigrationFence {
+        private final Set<SessionCommand> awaited = new HashSet<>();
+        private final List<SessionCommand> held = new ArrayList<>();
+        private boolean open;
+
+        MigrationFence(SessionCommand forwarded) {
+            awaited.add(forwarded);
+        }
+
+        synchronized void await(SessionCommand forwarded) {
+            // a held command is executed after the fence opens, waiting for it would never open it
+            if (!held.contains(forwarded)) {
+                awaited.add(forwarded);
+            }
+        }
+
+        /**
+         * @return true if the command is held, false if the fence is open or the command is one of the awaited.
+         * */
+        synchronized boolean hold(SessionCommand cmd) {
+            if (open || awaited.contains(cmd)) {
+                return false;
+            }
+            held.add(cmd);
+            return true;
+        }
+
+        /**
+         * Opens the fence if the command is the last awaited, moving the held commands to released.
+         *
+         * @return true if the fence opened.
+         * */
+        synchronized boolean pass(SessionCommand forwarded, List<SessionCommand> released) {
+            if (!awaited.remove(forwarded) || !awaited.isEmpty()) {
+                return false;
+            }
+            open = true;
+            released.addAll(held);
+            held.clear();
+            return true;
+        }
+    }
+
+    // minimum difference of load between the most and least loaded loops that triggers a rebalance
+    private static final double REBALANCE_THRESHOLD = 0.2;
+
     private final SessionEventLoop[] sessionExecutors;
-    private final BlockingQueue<FutureTask<String>>[] sessionQueues;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    private final SessionCommandQueue<SessionCommand>[] sessionQueues;
+    private final int eventLoops;
     private final ConcurrentMap<String, Throwable> loopThrownExceptions = new ConcurrentHashMap<>();
     private final MetricsProvider metricsProvider;
+    private final BrokerInterceptor interceptor;
+    private final BiConsumer<SessionCommand, Throwable> failureHandler = this::commandFailed;
+    private final SessionLoopRing ring;
+    // sessions moved away from the loop assigned by the ring, only the current owner loop changes their entry
+    private final ConcurrentMap<String, Integer> migratedSessions = new ConcurrentHashMap<>();
+    // sessions whose commands routed to the new owner wait for the ones forwarded by the previous, created and removed
+    // only by the remapping functions, that serialize them with the checks of the awaited commands
+    private final ConcurrentMap<String, MigrationFence> migrationFences = new ConcurrentHashMap<>();
+    // set at the first migration, until then the ownership is decided only by the ring
+    private volatile boolean migrations;
+    private volatile boolean migrationDisabled;
+    // set while a loop executes a forwarded command, whose publishes precede the ones held by the fences
+    private final boolean[] executingForwarded;
+    // busy time of each loop at the previous load sampling
+    private final long[] sampledBusyNanos;
+    private long sampledAtNanos;
 
     SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, MetricsProvider metricsProvider) {
+        this(interceptor, sessionQueueSize, SessionCommandQueue.WaitStrategy.PARK,
+            Runtime.getRuntime().availableProcessors(), Collections.emptyList(), metricsProvider);
+    }
+
+    /**
+     * @param waitStrategy how the session loops wait for commands when their queue is empty.
+     * @param eventLoops number of the session loops.
+     * @param cpuAffinityGroups CPU lists the loops are pinned to, assigned round robin, empty to not pin them.
+     * */
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize,
+                          SessionCommandQueue.WaitStrategy waitStrategy, int eventLoops,
+                          List<String> cpuAffinityGroups, MetricsProvider metricsProvider) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("Session loops must be at least 1, found: " + eventLoops);
+        }
+        this.eventLoops = eventLoops;
         this.metricsProvider = metricsProvider;
-        this.sessionQueues = new BlockingQueue[eventLoops];
+        this.interceptor = interceptor;
+        this.ring = new SessionLoopRing(eventLoops);
+        this.sampledBusyNanos = new long[eventLoops];
+        this.executingForwarded = new boolean[eventLoops];
+        this.sampledAtNanos = System.nanoTime();
+        this.sessionQueues = new SessionCommandQueue[eventLoops];
         metricsProvider.initSessionQueues(eventLoops, sessionQueueSize);
         for (int i = 0; i < eventLoops; i++) {
-            this.sessionQueues[i] = new ArrayBlockingQueue<>(sessionQueueSize);
+            this.sessionQueues[i] = new SessionCommandQueue<>(sessionQueueSize, waitStrategy);
         }
         this.sessionExecutors = new SessionEventLoop[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            SessionEventLoop newLoop = new SessionEventLoop(this.sessionQueues[i], i, metricsProvider);
+            SessionEventLoop newLoop = new SessionEventLoop(this.sessionQueues[i], i, true, failureHandler,
+                metricsProvider);
+            final int loopId = i;
+            newLoop.setMigratedCommandsForwarder(cmd -> forwardIfMigrated(cmd, loopId));
             newLoop.setName(sessionLoopName(i));
+            if (!cpuAffinityGroups.isEmpty()) {
+                newLoop.setCpuAffinity(cpuAffinityGroups.get(i % cpuAffinityGroups.size()));
+            }
             newLoop.setUncaughtExceptionHandler((loopThread, ex) -> {
                 // executed in session loop thread
                 // collect the exception thrown to later re-throw
@@ -49,7 +150,13 @@ class SessionEventLoopGroup {
     }
 
     int targetQueueOrdinal(String clientId) {
-        return Math.abs(clientId.hashCode()) % this.eventLoops;
+        if (migrations) {
+            final Integer migratedTo = migratedSessions.get(clientId);
+            if (migratedTo != null) {
+                return migratedTo;
+            }
+        }
+        return ring.loopOf(clientId);
     }
 
     private String sessionLoopName(int i) {
@@ -65,32 +172,352 @@ class SessionEventLoopGroup {
      * Route the command to the owning SessionEventLoop
      */
     public PostOffice.RouteResult routeCommand(String clientId, String actionDescription, Callable<Void> action) {
-        SessionCommand cmd = new SessionCommand(clientId, action);
-
         if (clientId == null) {
             LOG.warn("Routing collision for action [{}]", actionDescription);
             return PostOffice.RouteResult.failed(null, "Seems awaiting new route feature completion, skipping.");
         }
+        final SessionCommand cmd = new SessionCommand(clientId, action);
+
+        final int targetQueueId = targetQueueOrdinal(clientId);
+        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, clientId, targetQueueId);
+        if (route(targetQueueId, actionDescription, cmd)) {
+            if (migrations && targetQueueOrdinal(clientId) != targetQueueId) {
+                awaitForwarding(cmd);
+            }
+            return PostOffice.RouteResult.success(clientId, cmd);
+        }
+        return PostOffice.RouteResult.failed(clientId);
+    }
+
+    /**
+     * Route the action to the session loop, without tracking its completion.
+     *
+     * @return false if the queue of the session loop is full and the action was dropped.
+     */
+    boolean routeFireAndForget(int targetQueueId, String actionDescription, Runnable action) {
+        return route(targetQueueId, actionDescription, new SessionCommand(null, () -> {
+            action.run();
+            return null;
+        }));
+    }
 
-        final int targetQueueId = targetQueueOrdinal(cmd.getSessionId());
-        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
+    /**
+     * Route to the loop that owns their sessions the publishes of subscribers that migrated after the publish was
+     * routed, without tracking its completion.
+     *
+     * @return false if the queue of the session loop is full and the action was dropped.
+     */
+    boolean forwardFireAndForget(int targetQueueId, String actionDescription, Runnable action) {
+        final SessionCommand cmd = new SessionCommand(null, () -> {
+            action.run();
+            return null;
         });
+        cmd.markForwarded();
+        return route(targetQueueId, actionDescription, cmd);
+    }
+
+    private boolean route(int targetQueueId, String actionDescription, SessionCommand cmd) {
         if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
-            SessionEventLoop.executeTask(task);
-            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+            if (!forwardIfMigrated(cmd, targetQueueId)) {
+                cmd.execute(failureHandler);
+            }
+            return true;
         }
-        final BlockingQueue<FutureTask<String>> targetQueue = this.sessionQueues[targetQueueId];
-        if (targetQueue.offer(task)) {
+        if (this.sessionQueues[targetQueueId].offer(cmd)) {
             metricsProvider.sessionQueueInc(targetQueueId);
-            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+            return true;
+        }
+        LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
+        metricsProvider.addSessionQueueOverrun(targetQueueId);
+        return false;
+    }
+
+    /**
+     * Executed by the loop that dequeued the command, hands it over to the loop that owns its session when this
+     * migrated after the command was routed. On the owner loop, holds the command if it was routed there while
+     * the migration fence of the session is closed.
+     *
+     * @return true if the command was forwarded, held or executed, or rejected if the owner queue is full.
+     * */
+    private boolean forwardIfMigrated(SessionCommand cmd, int loopId) {
+        if (!migrations) {
+            return false;
+        }
+        if (cmd.getSessionId() == null) {
+            if (!cmd.isForwarded()) {
+                return false;
+            }
+            executeForwarded(cmd, loopId);
+            return true;
+        }
+        final int ownerLoop = targetQueueOrdinal(cmd.getSessionId());
+        if (ownerLoop != loopId) {
+            forward(cmd, loopId, ownerLoop);
+            return true;
+        }
+        if (cmd.isForwarded()) {
+            executeForwarded(cmd, loopId);
+        } else {
+            if (migrationFences.isEmpty()) {
+                return false;
+            }
+            if (hold(cmd)) {
+                return true;
+            }
+            cmd.execute(failureHandler);
+        }
+        for (SessionCommand released : passFence(cmd)) {
+            released.execute(failureHandler);
+        }
+        return true;
+    }
+
+    private void executeForwarded(SessionCommand cmd, int loopId) {
+        final boolean outer = executingForwarded[loopId];
+        executingForwarded[loopId] = true;
+        try {
+            cmd.execute(failureHandler);
+        } finally {
+            executingForwarded[loopId] = outer;
+        }
+    }
+
+    private void forward(SessionCommand cmd, int loopId, int ownerLoop) {
+        LOG.debug("Forwarding command for migrated session [{}] from event processor {} to {}", cmd.getSessionId(),
+            loopId, ownerLoop);
+        cmd.markForwarded();
+        if (route(ownerLoop, "forward to migrated session", cmd)) {
+            return;
+        }
+        // can't be executed here, would race with the owner loop
+        final IllegalStateException cause =
+            new IllegalStateException("Session command queue " + ownerLoop + " is full");
+        cmd.reject(cause);
+        for (SessionCommand released : passFence(cmd)) {
+            released.reject(cause);
+        }
+    }
+
+    private boolean hold(SessionCommand cmd) {
+        final MigrationFence fence = migrationFences.get(cmd.getSessionId());
+        return fence != null && fence.hold(cmd);
+    }
+
+    /**
+     * @return the commands held by the fence of the session, if the forwarded command was the last it awaited.
+     * */
+    private List<SessionCommand> passFence(SessionCommand forwarded) {
+        final List<SessionCommand> released = new ArrayList<>();
+        migrationFences.computeIfPresent(forwarded.getSessionId(),
+            (clientId, fence) -> fence.pass(forwarded, released) ? null : fence);
+        return released;
+    }
+
+    /**
+     * The session migrated while the command was routed, that could have been queued on the previous owner after
+     * the marker of the migration: the commands that follow wait for it to be forwarded, unless already executed.
+     * */
+    private void awaitForwarding(SessionCommand cmd) {
+        migrationFences.compute(cmd.getSessionId(), (clientId, fence) -> {
+            if (!cmd.isPending()) {
+                return fence;
+            }
+            if (fence == null) {
+                return new MigrationFence(cmd);
+            }
+            fence.await(cmd);
+            return fence;
+        });
+    }
+
+    /**
+     * @return true if the commands routed straight to the new owner of the session could be held, as the ones
+     * forwarded by the loop it migrated from aren't done.
+     * */
+    boolean isMigrating(String clientId) {
+        return !migrationFences.isEmpty() && migrationFences.containsKey(clientId);
+    }
+
+    /**
+     * Executed by the loop that owns the session, holds the delivery of a publish routed straight to it while
+     * the commands queued on the loop the session migrated from are still being forwarded.
+     *
+     * @return true if the delivery is held, and executed once those commands are done.
+     * */
+    boolean holdIfMigrating(String clientId, Runnable delivery) {
+        final int loopId = SessionEventLoop.getThreadQueueId();
+        if (loopId < 0 || executingForwarded[loopId] || !isMigrating(clientId)) {
+            return false;
+        }
+        return hold(new SessionCommand(clientId, () -> {
+            delivery.run();
+            return null;
+        }));
+    }
+
+    /**
+     * Stops the migrations of the sessions, for who relies on the assignment of the ring not changing.
+     * */
+    void disableMigration() {
+        this.migrationDisabled = true;
+    }
+
+    boolean hasMigratedSessions() {
+        return migrations;
+    }
+
+    /**
+     * Moves disconnected sessions from the most loaded loop to the least loaded one, when their load differs by
+     * more than the threshold. The load of a loop is the sum of the fill of its queue and the fraction of time it
+     * was busy since the previous rebalance.
+     *
+     * @param disconnectedSessions the client ids of the sessions without connection.
+     * @param stillDisconnected checks, by the owner loop, that a session is still without connection when it's
+     *                          migrated.
+     * @return the number of migrations routed to the most loaded loop.
+     * */
+    synchronized int rebalance(Collection<String> disconnectedSessions, Predicate<String> stillDisconnected) {
+        return rebalance(disconnectedSessions, stillDisconnected, sampleLoads());
+    }
+
+    synchronized int rebalance(Collection<String> disconnectedSessions, Predicate<String> stillDisconnected,
+                               double[] loads) {
+        if (migrationDisabled) {
+            LOG.warn("Session loops rebalance skipped, the sessions can't migrate");
+            return 0;
+        }
+        int mostLoaded = 0;
+        int leastLoaded = 0;
+        for (int i = 1; i < eventLoops; i++) {
+            if (loads[i] > loads[mostLoaded]) {
+                mostLoaded = i;
+            }
+            if (loads[i] < loads[leastLoaded]) {
+                leastLoaded = i;
+            }
+        }
+        final double unbalance = loads[mostLoaded] - loads[leastLoaded];
+        if (unbalance < REBALANCE_THRESHOLD) {
+            LOG.debug("Session loops balanced, loads {}", Arrays.toString(loads));
+            return 0;
+        }
+        final List<String> candidates = new ArrayList<>();
+        for (String clientId : disconnectedSessions) {
+            if (targetQueueOrdinal(clientId) == mostLoaded) {
+                candidates.add(clientId);
+            }
+        }
+        // move the share of sessions that would halve the unbalance, if the load follows the sessions
+        final int toMigrate = (int) Math.ceil(candidates.size() * (unbalance / 2) / loads[mostLoaded]);
+        final int fromLoop = mostLoaded;
+        final int toLoop = leastLoaded;
+        int routed = 0;
+        for (String clientId : candidates.subList(0, Math.min(toMigrate, candidates.size()))) {
+            // of the session, so that it's ordered with its commands
+            final SessionCommand migration = new SessionCommand(clientId, () -> {
+                migrate(clientId, fromLoop, toLoop, stillDisconnected);
+                return null;
+            });
+            if (!route(fromLoop, "migrate session", migration)) {
+                break;
+            }
+            routed++;
+        }
+        LOG.info("Rebalancing session loops with loads {}, migrating {} sessions from {} to {}",
+            Arrays.toString(loads), routed, fromLoop, toLoop);
+        return routed;
+    }
+
+    /**
+     * Executed in the loop that owns the session, so the commands it already dequeued are completed before the
+     * migration, and the ones that follow are forwarded to the new owner. The new owner holds the commands routed
+     * straight to it until the marker queued here after the forwarded ones reaches it.
+     * */
+    private void migrate(String clientId, int fromLoop, int toLoop, Predicate<String> stillDisconnected) {
+        if (targetQueueOrdinal(clientId) != fromLoop || !stillDisconnected.test(clientId)) {
+            return;
+        }
+        final SessionCommand marker = new SessionCommand(clientId, () -> null);
+        if (migrationFences.putIfAbsent(clientId, new MigrationFence(marker)) != null) {
+            LOG.debug("Session [{}] is still forwarding the commands of a previous migration, stays on event "
+                + "processor {}", clientId, fromLoop);
+            return;
+        }
+        migrations = true;
+        if (ring.loopOf(clientId) == toLoop) {
+            migratedSessions.remove(clientId);
+        } else {
+            migratedSessions.put(clientId, toLoop);
+        }
+        if (this.sessionQueues[fromLoop].offer(marker)) {
+            metricsProvider.sessionQueueInc(fromLoop);
+        } else {
+            LOG.warn("Session command queue {} is full, the commands of migrated session [{}] can be reordered",
+                fromLoop, clientId);
+            metricsProvider.addSessionQueueOverrun(fromLoop);
+            forward(marker, fromLoop, toLoop);
+        }
+        LOG.debug("Migrated session [{}] from event processor {} to {}", clientId, fromLoop, toLoop);
+    }
+
+    /**
+     * Gives back to the loop assigned by the ring a session that was removed, so its migration isn't kept forever.
+     * The release is queued also when invoked by the owner loop, so the command it's executing, and the ones already
+     * queued for the session, complete before.
+     *
+     * @param released checks, by the owner loop, that the client id isn't used by a connected session anymore, like
+     *                 the one that replaced it on a clean start.
+     * */
+    void releaseMigration(String clientId, Predicate<String> released) {
+        if (!migrations || !migratedSessions.containsKey(clientId)) {
+            return;
+        }
+        final int ownerLoop = targetQueueOrdinal(clientId);
+        final SessionCommand release = new SessionCommand(clientId, () -> {
+            migrate(clientId, ownerLoop, ring.loopOf(clientId), released);
+            return null;
+        });
+        if (this.sessionQueues[ownerLoop].offer(release)) {
+            metricsProvider.sessionQueueInc(ownerLoop);
         } else {
-            LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
-            metricsProvider.addSessionQueueOverrun(targetQueueId);
-            return PostOffice.RouteResult.failed(clientId);
+            LOG.warn("Session command queue {} is full, the migration of removed session [{}] is kept", ownerLoop,
+                clientId);
+            metricsProvider.addSessionQueueOverrun(ownerLoop);
+        }
+    }
+
+    private double[] sampleLoads() {
+        final long now = System.nanoTime();
+        final long elapsed = Math.max(1, now - sampledAtNanos);
+        sampledAtNanos = now;
+        final double[] loads = new double[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            final long busy = sessionExecutors[i].busyNanos();
+            final double busyRatio = Math.min(1.0, (double) (busy - sampledBusyNanos[i]) / elapsed);
+            sampledBusyNanos[i] = busy;
+            final SessionCommandQueue<SessionCommand> queue = sessionQueues[i];
+            loads[i] = busyRatio + (double) queue.size() / queue.capacity();
+        }
+        return loads;
+    }
+
+    /**
+     * Executed in the session loop of the failed command.
+     * */
+    private void commandFailed(SessionCommand cmd, Throwable error) {
+        // keep the shared loop alive, co-located sessions must not be taken down with the failing one
+        LOG.error("SessionEventLoop {} caught an error processing a command for session {}; the loop continues",
+            Thread.currentThread().getName(), cmd.getSessionId(), error);
+        interceptor.notifyLoopException(new InterceptExceptionMessage(error));
+    }
+
+    /**
+     * @param batchSize maximum number of commands executed by each loop at a wake up, the channels written
+     *                  by them are flushed once at the end of the batch.
+     * */
+    void setBatchSize(int batchSize) {
+        for (SessionEventLoop loop : sessionExecutors) {
+            loop.setBatchSize(batchSize);
         }
     }
 
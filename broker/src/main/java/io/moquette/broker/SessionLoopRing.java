@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring that assigns the sessions to the session loops. Each loop owns many virtual nodes spread
+ * over the ring, a client is owned by the loop of the first node that follows the hash of its id, so clients with
+ * similar ids are scattered over all the loops.
+ * */
+final class SessionLoopRing {
+
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    // hashes of the virtual nodes, sorted, with the loop owning each of them at the same index
+    private final int[] nodeHashes;
+    private final int[] nodeLoops;
+
+    SessionLoopRing(int loops) {
+        this(loops, DEFAULT_VIRTUAL_NODES);
+    }
+
+    SessionLoopRing(int loops, int virtualNodes) {
+        if (loops < 1) {
+            throw new IllegalArgumentException("Session loops must be at least 1, found: " + loops);
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes must be at least 1, found: " + virtualNodes);
+        }
+        final int nodes = loops * virtualNodes;
+        // hash in the high half and loop in the low half, so sorting them sorts the nodes by hash
+        final long[] ring = new long[nodes];
+        for (int loop = 0; loop < loops; loop++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                final int hash = mix(loop * 0x9E3779B9 + node * 0x85EBCA6B + 1);
+                ring[loop * virtualNodes + node] = ((long) hash << 32) | loop;
+            }
+        }
+        Arrays.sort(ring);
+        nodeHashes = new int[nodes];
+        nodeLoops = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            nodeHashes[i] = (int) (ring[i] >> 32);
+            nodeLoops[i] = (int) ring[i];
+        }
+    }
+
+    int loopOf(String clientId) {
+        final int hash = mix(clientId.hashCode());
+        int index = Arrays.binarySearch(nodeHashes, hash);
+        if (index < 0) {
+            // insertion point, the first node that follows the hash
+            index = -index - 1;
+            if (index == nodeHashes.length) {
+                index = 0;
+            }
+        }
+        return nodeLoops[index];
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of the String hash codes that differ only in the last characters.
+     * */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
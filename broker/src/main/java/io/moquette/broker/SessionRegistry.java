@@ -17,6 +17,7 @@ package io.moquette.broker;
 
 import io.moquette.broker.Session.SessionStatus;
 import io.moquette.broker.scheduler.ScheduledExpirationService;
+import io.moquette.broker.subscriptions.ISubscribersStatus;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
@@ -41,7 +42,7 @@ import java.util.stream.Collectors;
 import static io.moquette.broker.Session.INFINITE_EXPIRY;
 import io.moquette.metrics.MetricsProvider;
 
-public class SessionRegistry {
+public class SessionRegistry implements ISubscribersStatus {
 
     private int globalExpirySeconds;
     private final SessionEventLoopGroup loopsGroup;
@@ -73,17 +74,35 @@ public class SessionRegistry {
         final boolean retained;
         final Instant messageExpiry;
         final MqttProperties.MqttProperty[] mqttProperties;
+        // headers shared with the other subscribers of the same publish, when sent while routing it. Detached
+        // before the message is stored in the session, so no other thread reaches them from its queues
+        private PublishFrames frames;
 
         public PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
                                 Instant messageExpiry, MqttProperties.MqttProperty... mqttProperties) {
+            this(topic, publishingQos, payload, retained, messageExpiry, null, mqttProperties);
+        }
+
+        PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
+                         Instant messageExpiry, PublishFrames frames, MqttProperties.MqttProperty... mqttProperties) {
             this.topic = topic;
             this.publishingQos = publishingQos;
             this.payload = payload;
             this.retained = retained; // TODO has to store retained param into the field
             this.messageExpiry = messageExpiry;
+            this.frames = frames;
             this.mqttProperties = mqttProperties;
         }
 
+        /**
+         * @return the frames shared while routing the publish, or null, and removes them from this message.
+         * */
+        PublishFrames detachFrames() {
+            final PublishFrames detached = frames;
+            frames = null;
+            return detached;
+        }
+
         public Topic getTopic() {
             return topic;
         }
@@ -125,10 +144,11 @@ public class SessionRegistry {
             final int indexOfExpiry = findPublicationExpiryProperty(mqttProperties);
             MqttProperties.IntegerProperty updatedProperty = new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), (int) remainingSeconds);
 
-            // update existing property
+            // update existing property, on a copy because the properties can be shared with other subscribers
             if (indexOfExpiry != -1) {
-                mqttProperties[indexOfExpiry] = updatedProperty;
-                return mqttProperties;
+                MqttProperties.MqttProperty[] updatedProperties = Arrays.copyOf(mqttProperties, mqttProperties.length);
+                updatedProperties[indexOfExpiry] = updatedProperty;
+                return updatedProperties;
             }
 
             // insert a new property
@@ -353,30 +373,27 @@ public class SessionRegistry {
 
     private void reactivateSubscriptions(Session session, String username) {
         //verify if subscription still satisfy read ACL permissions
+        final List<Subscription> notReadable = new ArrayList<>();
         for (Subscription existingSub : session.getSubscriptions()) {
             final boolean topicReadable = authorizator.canRead(existingSub.getTopicFilterRewritten(), username,
                 session.getClientID());
             if (!topicReadable) {
-                if (existingSub.hasShareName()) {
-                    subscriptionsDirectory.removeSharedSubscription(existingSub);
-                } else {
-                    subscriptionsDirectory.removeSubscription(existingSub);
-                }
-                session.removeSubscription(existingSub.getTopicFilterClient());
+                notReadable.add(existingSub);
             }
             // TODO
 //            subscriptionsDirectory.reactivate(existingSub.getTopicFilter(), session.getClientID());
         }
+        if (notReadable.isEmpty()) {
+            return;
+        }
+        subscriptionsDirectory.removeAll(notReadable);
+        for (Subscription removed : notReadable) {
+            session.removeSubscription(removed.getTopicFilterClient());
+        }
     }
 
     private void unsubscribe(Session session) {
-        for (Subscription existingSub : session.getSubscriptions()) {
-            if (existingSub.hasShareName()) {
-                subscriptionsDirectory.removeSharedSubscription(existingSub);
-            } else {
-                subscriptionsDirectory.removeSubscription(existingSub);
-            }
-        }
+        subscriptionsDirectory.removeAll(session.getSubscriptions());
     }
 
     private Session createNewSession(MqttConnectMessage msg, String clientId) {
@@ -493,6 +510,24 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    @Override
+    public boolean isConnected(String clientId) {
+        final Session session = pool.get(clientId);
+        return session != null && session.connected();
+    }
+
+    @Override
+    public int availableSendSlots(String clientId) {
+        final Session session = pool.get(clientId);
+        return session == null ? 0 : session.availableSendSlots();
+    }
+
+    @Override
+    public int queuedMessages(String clientId) {
+        final Session session = pool.get(clientId);
+        return session == null ? 0 : session.queuedMessages();
+    }
+
     void connectionClosed(Session session) {
         session.disconnect();
         if (session.expireImmediately()) {
@@ -527,6 +562,10 @@ public class SessionRegistry {
                 old.cleanUp();
                 return null;
             });
+            loopsGroup.releaseMigration(clientID, clientId -> {
+                final Session session = pool.get(clientId);
+                return session == null || session.disconnected();
+            });
         }
     }
 
@@ -539,6 +578,22 @@ public class SessionRegistry {
             .collect(Collectors.toList());
     }
 
+    /**
+     * Migrates disconnected sessions from the most loaded session loop to the least loaded one.
+     *
+     * @return the number of sessions scheduled for migration.
+     * */
+    int rebalanceSessionLoops() {
+        final List<String> disconnected = pool.values().stream()
+            .filter(Session::disconnected)
+            .map(Session::getClientID)
+            .collect(Collectors.toList());
+        return loopsGroup.rebalance(disconnected, clientId -> {
+            final Session session = pool.get(clientId);
+            return session != null && session.disconnected();
+        });
+    }
+
    /**
     * Close the connection bound to the session for the clintId. If removeSessionState is provided
     * remove any session state like queues and subscription from broker memory.
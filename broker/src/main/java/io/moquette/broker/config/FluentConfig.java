@@ -14,6 +14,7 @@ import static io.moquette.broker.config.IConfig.ACL_FILE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.AUTHENTICATOR_CLASS_NAME;
 import static io.moquette.broker.config.IConfig.AUTHORIZATOR_CLASS_NAME;
+import static io.moquette.broker.config.IConfig.BLOCKING_WORK_ON_VIRTUAL_THREADS;
 import static io.moquette.broker.config.IConfig.BUFFER_FLUSH_MS_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.DATA_PATH_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE;
@@ -24,17 +25,29 @@ import static io.moquette.broker.config.IConfig.KEY_MANAGER_PASSWORD_PROPERTY_NA
 import static io.moquette.broker.config.IConfig.KEY_STORE_PASSWORD_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.KEY_STORE_TYPE;
 import static io.moquette.broker.config.IConfig.NETTY_MAX_BYTES_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.PARALLEL_FANOUT_THRESHOLD;
 import static io.moquette.broker.config.IConfig.PASSWORD_FILE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PEER_CERTIFICATE_AS_USERNAME;
 import static io.moquette.broker.config.IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PORT_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.QOS0_FIRE_AND_FORGET;
 import static io.moquette.broker.config.IConfig.RECEIVE_MAXIMUM;
 import static io.moquette.broker.config.IConfig.SERVER_KEEP_ALIVE_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.SESSION_LOOPS;
+import static io.moquette.broker.config.IConfig.SESSION_LOOPS_CPU_AFFINITY;
+import static io.moquette.broker.config.IConfig.SESSION_LOOPS_REBALANCE_INTERVAL;
+import static io.moquette.broker.config.IConfig.SESSION_LOOP_BATCH_SIZE;
 import static io.moquette.broker.config.IConfig.SESSION_QUEUE_SIZE;
+import static io.moquette.broker.config.IConfig.SESSION_QUEUE_WAIT_STRATEGY;
+import static io.moquette.broker.config.IConfig.SHARED_SUBSCRIPTION_SELECTION;
 import static io.moquette.broker.config.IConfig.SSL_PORT_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.SSL_PROVIDER;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_BY_SESSION_LOOP;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_COMPACTION_INTERVAL;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_FIRST_LEVEL_COUNTERS;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE;
 import static io.moquette.broker.config.IConfig.TOPIC_ALIAS_MAXIMUM_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.WEB_SOCKET_PORT_PROPERTY_NAME;
 
@@ -197,6 +210,71 @@ public class FluentConfig {
         return this;
     }
 
+    public FluentConfig sessionQueueWaitStrategy(String strategy) {
+        configAccumulator.put(SESSION_QUEUE_WAIT_STRATEGY, strategy);
+        return this;
+    }
+
+    public FluentConfig sessionLoops(int value) {
+        configAccumulator.put(SESSION_LOOPS, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig sessionLoopsCpuAffinity(String groups) {
+        configAccumulator.put(SESSION_LOOPS_CPU_AFFINITY, groups);
+        return this;
+    }
+
+    public FluentConfig sessionLoopsRebalanceInterval(int seconds) {
+        configAccumulator.put(SESSION_LOOPS_REBALANCE_INTERVAL, Integer.valueOf(seconds).toString());
+        return this;
+    }
+
+    public FluentConfig sessionLoopBatchSize(int value) {
+        configAccumulator.put(SESSION_LOOP_BATCH_SIZE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig subscriptionsMatchCacheSize(int value) {
+        configAccumulator.put(SUBSCRIPTIONS_MATCH_CACHE_SIZE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig subscriptionsCompactionInterval(int seconds) {
+        configAccumulator.put(SUBSCRIPTIONS_COMPACTION_INTERVAL, Integer.valueOf(seconds).toString());
+        return this;
+    }
+
+    public FluentConfig enableSubscriptionsFirstLevelCounters() {
+        configAccumulator.put(SUBSCRIPTIONS_FIRST_LEVEL_COUNTERS, "true");
+        return this;
+    }
+
+    public FluentConfig enableSubscriptionsBySessionLoop() {
+        configAccumulator.put(SUBSCRIPTIONS_BY_SESSION_LOOP, "true");
+        return this;
+    }
+
+    public FluentConfig parallelFanoutThreshold(int subscriptions) {
+        configAccumulator.put(PARALLEL_FANOUT_THRESHOLD, Integer.valueOf(subscriptions).toString());
+        return this;
+    }
+
+    public FluentConfig enableQos0FireAndForget() {
+        configAccumulator.put(QOS0_FIRE_AND_FORGET, "true");
+        return this;
+    }
+
+    public FluentConfig enableBlockingWorkOnVirtualThreads() {
+        configAccumulator.put(BLOCKING_WORK_ON_VIRTUAL_THREADS, "true");
+        return this;
+    }
+
+    public FluentConfig sharedSubscriptionSelection(String selection) {
+        configAccumulator.put(SHARED_SUBSCRIPTION_SELECTION, selection);
+        return this;
+    }
+
     public FluentConfig disableTelemetry() {
         configAccumulator.put(ENABLE_TELEMETRY_NAME, "false");
         return this;
@@ -50,6 +50,68 @@ public abstract class IConfig {
     public static final String ACL_FILE_PROPERTY_NAME = "acl_file";
     public static final String PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME = "persistent_client_expiration";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
+    /**
+     * How the session loops wait for commands when their queue is empty: park, spin_then_park or busy_spin.
+     * Default to park.
+     * */
+    public static final String SESSION_QUEUE_WAIT_STRATEGY = "session_queue_wait_strategy";
+    /**
+     * Number of the session loops that run the commands of the sessions, default to the number of available CPUs.
+     * */
+    public static final String SESSION_LOOPS = "session_loops";
+    /**
+     * Groups of CPUs the session loops are pinned to, separated by ';', like 0-3;4-7. The loops are assigned to the
+     * groups round robin. Default empty, which doesn't pin them. Works only on Linux with the taskset command.
+     * */
+    public static final String SESSION_LOOPS_CPU_AFFINITY = "session_loops_cpu_affinity";
+    /**
+     * Interval in seconds of the rebalance of the session loops, that migrates disconnected sessions from the most
+     * loaded loop to the least loaded one. Default 0 which disables it. Ignored when the subscriptions are kept
+     * by session loop.
+     * */
+    public static final String SESSION_LOOPS_REBALANCE_INTERVAL = "session_loops_rebalance_interval";
+    /**
+     * Maximum number of commands a session loop executes at each wake up. With the immediate buffer flush, the
+     * channels written by a batch are flushed once at its end. Default 1, which flushes on each write.
+     * */
+    public static final String SESSION_LOOP_BATCH_SIZE = "session_loop_batch_size";
+    /**
+     * Maximum number of topics whose matching subscriptions are cached, default 0 which disables the cache.
+     * */
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions_match_cache_size";
+    /**
+     * Interval in seconds of the compaction of the subscriptions tree, that removes the branches left empty,
+     * default 0 which disables it.
+     * */
+    public static final String SUBSCRIPTIONS_COMPACTION_INTERVAL = "subscriptions_compaction_interval";
+    /**
+     * Enables the counters of the subscriptions for each first level of the topic filters, default false.
+     * */
+    public static final String SUBSCRIPTIONS_FIRST_LEVEL_COUNTERS = "subscriptions_first_level_counters";
+    /**
+     * Keeps the subscriptions of each topic filter split by the session loop of their client, so a publish hands
+     * each loop its subscribers without hashing every client, default false.
+     * */
+    public static final String SUBSCRIPTIONS_BY_SESSION_LOOP = "subscriptions_by_session_loop";
+    /**
+     * How a member of a shared subscription group is selected: random, round_robin, least_inflight or sticky_topic.
+     * Default to random.
+     * */
+    public static final String SHARED_SUBSCRIPTION_SELECTION = "shared_subscription_selection";
+    /**
+     * Number of subscriptions matched by a publish from which they are grouped by session loop in parallel,
+     * default 0 which always groups them on the thread that received the publish.
+     * */
+    public static final String PARALLEL_FANOUT_THRESHOLD = "parallel_fanout_threshold";
+    /**
+     * Routes the QoS0 publishes to the session loops without tracking their completion, default false.
+     * */
+    public static final String QOS0_FIRE_AND_FORGET = "qos0_fire_and_forget";
+    /**
+     * Runs the work that could block on virtual threads, when the JVM supports them (JDK 21+), default false.
+     * This covers the authenticator, the interceptors notifications and the H2 commits.
+     * */
+    public static final String BLOCKING_WORK_ON_VIRTUAL_THREADS = "blocking_work_on_virtual_threads";
     public static final String ENABLE_TELEMETRY_NAME = "telemetry_enabled";
     public static final String RECEIVE_MAXIMUM = "receive_maximum";
     /**
@@ -15,47 +15,46 @@
  */
 package io.moquette.broker.subscriptions;
 
-import io.netty.handler.codec.mqtt.MqttQoS;
-import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
-
-import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Random;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 class CNode implements Comparable<CNode> {
 
-    public static final Random SECURE_RANDOM = new SecureRandom();
     private final Token token;
-    private final List<INode> children;
-    // Sorted list of subscriptions. The sort is necessary for fast access, instead of linear scan.
-    private List<Subscription> subscriptions;
-    // the list of SharedSubscription is sorted. The sort is necessary for fast access, instead of linear scan.
-    private Map<ShareName, List<Subscription>> sharedSubscriptions;
+    // children indexed by token, to look up the next level without scanning or searching.
+    private final Map<Token, INode> children;
+    // Sorted lists of subscriptions, one for each session loop or a single one. The sort is necessary for fast
+    // access, instead of linear scan. They are persistent, so the copy shares them and a change copies only the
+    // chunk that contains the subscription.
+    private SubscriptionBuckets subscriptions;
+    // the members of each share group are sorted. The sort is necessary for fast access, instead of linear scan.
+    private Map<ShareName, ShareGroup> sharedSubscriptions;
 
     CNode(Token token) {
-        this.children = new ArrayList<>();
-        this.subscriptions = new ArrayList<>();
+        this(token, SubscriptionBuckets.SINGLE);
+    }
+
+    /**
+     * @param emptySubscriptions the empty buckets that define how the subscriptions are split by session loop.
+     * */
+    CNode(Token token, SubscriptionBuckets emptySubscriptions) {
+        this.children = new HashMap<>();
+        this.subscriptions = emptySubscriptions;
         this.sharedSubscriptions = new HashMap<>();
         this.token = token;
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, List<Subscription> subscriptions, Map<ShareName,
-                  List<Subscription>> sharedSubscriptions) {
+    private CNode(Token token, Map<Token, INode> children, SubscriptionBuckets subscriptions,
+                  Map<ShareName, ShareGroup> sharedSubscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
-        this.subscriptions = new ArrayList<>(subscriptions);
+        this.subscriptions = subscriptions;
         this.sharedSubscriptions = new HashMap<>(sharedSubscriptions);
-        this.children = new ArrayList<>(children);
+        this.children = new HashMap<>(children);
     }
 
     public Token getToken() {
@@ -63,20 +62,18 @@ class CNode implements Comparable<CNode> {
     }
 
     List<INode> allChildren() {
-        return new ArrayList<>(this.children);
+        return new ArrayList<>(this.children.values());
     }
 
     Optional<INode> childOf(Token token) {
-        int idx = findIndexForToken(token);
-        if (idx < 0) {
-            return Optional.empty();
-        }
-        return Optional.of(children.get(idx));
+        return Optional.ofNullable(childOrNull(token));
     }
 
-    private int findIndexForToken(Token token) {
-        final INode tempTokenNode = new INode(new CNode(token));
-        return Collections.binarySearch(children, tempTokenNode, (INode node, INode tokenHolder) -> node.mainNode().token.compareTo(tokenHolder.mainNode().token));
+    /**
+     * @return the child INode for the token or null if not present.
+     * */
+    INode childOrNull(Token token) {
+        return children.get(token);
     }
 
     @Override
@@ -88,70 +85,103 @@ class CNode implements Comparable<CNode> {
         return new CNode(this.token, this.children, this.subscriptions, this.sharedSubscriptions);
     }
 
+    /**
+     * @return true if the node has no subscriptions, shared subscriptions and children.
+     * */
+    boolean isEmpty() {
+        return subscriptions.isEmpty() && sharedSubscriptions.isEmpty() && children.isEmpty();
+    }
+
     public void add(INode newINode) {
-        int idx = findIndexForToken(newINode.mainNode().token);
-        if (idx < 0) {
-            children.add(-1 - idx, newINode);
-        } else {
-            children.add(idx, newINode);
-        }
+        children.put(newINode.mainNode().token, newINode);
     }
 
+    /**
+     * @return the child INode that was registered with the same token of the node, or null if not present.
+     * */
     public INode remove(INode node) {
-        int idx = findIndexForToken(node.mainNode().token);
-        return this.children.remove(idx);
+        return this.children.remove(node.mainNode().token);
     }
 
     private List<Subscription> sharedSubscriptions() {
         List<Subscription> selectedSubscriptions = new ArrayList<>(sharedSubscriptions.size());
+        selectSharedSubscriptions(selectedSubscriptions, ShareGroupSelectors.RANDOM_SELECTOR, null);
+        return selectedSubscriptions;
+    }
+
+    private void selectSharedSubscriptions(List<Subscription> selectedSubscriptions, ShareGroupSelector selector,
+                                           Topic topicName) {
         // for each sharedSubscription related to a ShareName, select one subscription
-        for (Map.Entry<ShareName, List<Subscription>> subsForName : sharedSubscriptions.entrySet()) {
-            List<Subscription> list = subsForName.getValue();
-            final String shareName = subsForName.getKey().getShareName();
-            // select a subscription randomly
-            int randIdx = SECURE_RANDOM.nextInt(list.size());
-            Subscription sub = list.get(randIdx);
-            selectedSubscriptions.add(sub);
+        for (ShareGroup group : sharedSubscriptions.values()) {
+            selectedSubscriptions.add(selector.select(group, topicName));
         }
-        return selectedSubscriptions;
     }
 
     List<Subscription> subscriptions() {
+        return subscriptions.toList();
+    }
+
+    SubscriptionBuckets subscriptionBuckets() {
         return subscriptions;
     }
 
+    /**
+     * @return the number of non shared subscriptions.
+     * */
+    int subscriptionsCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the number of members of all the share groups.
+     * */
+    int sharedSubscriptionsCount() {
+        int count = 0;
+        for (ShareGroup group : sharedSubscriptions.values()) {
+            count += group.size();
+        }
+        return count;
+    }
+
+    int sharedGroupsCount() {
+        return sharedSubscriptions.size();
+    }
+
+    /**
+     * @return a subscription of this node, shared or not, or null if there are none.
+     * */
+    Subscription anySubscription() {
+        if (!subscriptions.isEmpty()) {
+            return subscriptions.any();
+        }
+        for (ShareGroup group : sharedSubscriptions.values()) {
+            if (group.size() > 0) {
+                return group.member(0);
+            }
+        }
+        return null;
+    }
+
     // Mutating operation
     CNode addSubscription(final Subscription subscription) {
         if (subscription.hasShareName()) {
             final ShareName shareName = subscription.getShareName();
-            List<Subscription> subscriptionsForShare = sharedSubscriptions.getOrDefault(shareName, new ArrayList<>());
-            // if a shared subscription already exists for same clientId and share name, overwrite, because
-            // the client could desire to update it.
-            int idx = Collections.binarySearch(subscriptionsForShare, subscription);
-            if (idx >= 0) {
-                subscriptionsForShare.set(idx, subscription);
-            } else {
-                subscriptionsForShare.add(-1 - idx, subscription);
+            ShareGroup group = sharedSubscriptions.get(shareName);
+            if (group == null) {
+                group = new ShareGroup();
             }
-            sharedSubscriptions.put(shareName, subscriptionsForShare);
+            sharedSubscriptions.put(shareName, group.withSubscription(subscription));
         } else {
             // if already contains one with same topic and same client, keep that with higher QoS
-            int idx = Collections.binarySearch(subscriptions, subscription);
-            if (idx >= 0) {
-                // Subscription already exists
-                final Subscription existing = subscriptions.get(idx);
-                if (needsToUpdateExistingSubscription(subscription, existing)) {
-                    subscriptions.set(idx, subscription);
-                }
-            } else {
-                // insert into the expected index so that the sorting is maintained
-                this.subscriptions.add(-1 - idx, subscription);
+            final Subscription existing = subscriptions.find(subscription);
+            if (existing == null || needsToUpdateExistingSubscription(subscription, existing)) {
+                subscriptions = subscriptions.with(subscription);
             }
         }
         return this;
     }
 
-    private static boolean needsToUpdateExistingSubscription(Subscription newSubscription, Subscription existing) {
+    static boolean needsToUpdateExistingSubscription(Subscription newSubscription, Subscription existing) {
         if ((newSubscription.hasSubscriptionIdentifier() && existing.hasSubscriptionIdentifier()) &&
             newSubscription.getSubscriptionIdentifier().equals(existing.getSubscriptionIdentifier())
         ) {
@@ -172,12 +202,7 @@ class CNode implements Comparable<CNode> {
      *   AND at least one subscription is actually present for that clientId
      * */
     boolean containsOnly(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (!sub.clientId.equals(clientId)) {
-                return false;
-            }
-        }
-        return !this.subscriptions.isEmpty();
+        return subscriptions.containsOnly(clientId);
     }
 
     public boolean contains(String clientId) {
@@ -185,56 +210,40 @@ class CNode implements Comparable<CNode> {
     }
 
     private boolean containsSharedSubscriptionsForClient(String clientId) {
-        boolean result = false;
-        for (List<Subscription> sharedForShareName : this.sharedSubscriptions.values()) {
-            Subscription keyWrapper = wrapKey(clientId);
-            Comparator<Subscription> compareByClientId = Comparator.comparing(Subscription::getClientId);
-            int res = Collections.binarySearch(sharedForShareName, keyWrapper, compareByClientId);
-            result = res >= 0 || result;
+        for (ShareGroup group : this.sharedSubscriptions.values()) {
+            if (group.containsClient(clientId)) {
+                return true;
+            }
         }
-        return result;
-    }
-
-    private static Subscription wrapKey(String clientId) {
-        MqttQoS unusedQoS = MqttQoS.AT_MOST_ONCE;
-        return new Subscription(clientId, Topic.asTopic("unused"), MqttSubscriptionOption.onlyFromQos(unusedQoS), ShareName.EMPTY_SHARENAME);
+        return false;
     }
 
     //TODO this is equivalent to negate(containsOnly(clientId))
     private boolean containsSubscriptionsForClient(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                return true;
-            }
-        }
-        return false;
+        return subscriptions.findClient(clientId) != null;
     }
 
     void removeSubscriptionsFor(Subscription subscription) {
         String clientId = subscription.getClientId();
 
         if (subscription.hasShareName()) {
-            List<Subscription> subscriptionsForName = this.sharedSubscriptions.get(subscription.getShareName());
-            List<Subscription> toRemove = subscriptionsForName.stream()
-                .filter(sub -> sub.getClientId().equals(clientId))
-                .collect(Collectors.toList());
-            subscriptionsForName.removeAll(toRemove);
+            ShareGroup group = this.sharedSubscriptions.get(subscription.getShareName());
+            if (group == null) {
+                return;
+            }
+            ShareGroup updatedGroup = group.withoutClient(clientId);
 
-            if (subscriptionsForName.isEmpty()) {
+            if (updatedGroup.isEmpty()) {
                 this.sharedSubscriptions.remove(subscription.getShareName());
             } else {
-                this.sharedSubscriptions.replace(subscription.getShareName(), subscriptionsForName);
+                this.sharedSubscriptions.replace(subscription.getShareName(), updatedGroup);
             }
         } else {
-            // collect Subscription instances to remove
-            Set<Subscription> toRemove = new HashSet<>();
-            for (Subscription sub : this.subscriptions) {
-                if (sub.clientId.equals(clientId)) {
-                    toRemove.add(sub);
-                }
+            // subscriptions in the same node differ only by client id, so there is at most one for the client
+            Subscription existing;
+            while ((existing = subscriptions.findClient(clientId)) != null) {
+                subscriptions = subscriptions.without(existing);
             }
-            // effectively remove the instances
-            this.subscriptions.removeAll(toRemove);
         }
     }
 
@@ -246,8 +255,46 @@ class CNode implements Comparable<CNode> {
     public List<Subscription> sharedAndNonSharedSubscriptions() {
         List<Subscription> shared = sharedSubscriptions();
         List<Subscription> returnedSubscriptions = new ArrayList<>(subscriptions.size() + shared.size());
-        returnedSubscriptions.addAll(subscriptions);
+        subscriptions.addAllTo(returnedSubscriptions);
         returnedSubscriptions.addAll(shared);
         return returnedSubscriptions;
     }
+
+    /**
+     * Same as {@link #sharedAndNonSharedSubscriptions()} but adds the subscriptions to the accumulator, instead of
+     * creating a new list.
+     *
+     * @param selector the strategy that selects the member of each share group.
+     * @param topicName the matched topic, passed to the selector.
+     * */
+    void collectSharedAndNonSharedSubscriptions(List<Subscription> accumulator, ShareGroupSelector selector,
+                                                Topic topicName) {
+        subscriptions.addAllTo(accumulator);
+        collectSharedSubscriptions(accumulator, selector, topicName);
+    }
+
+    /**
+     * Adds to the accumulator only the member selected from each share group, the non shared subscriptions of
+     * exact topic filters are matched by the {@link ExactFiltersIndex}.
+     * */
+    void collectSharedSubscriptions(List<Subscription> accumulator, ShareGroupSelector selector, Topic topicName) {
+        if (!sharedSubscriptions.isEmpty()) {
+            selectSharedSubscriptions(accumulator, selector, topicName);
+        }
+    }
+
+    /**
+     * Same as {@link #collectSharedAndNonSharedSubscriptions(List, ShareGroupSelector, Topic)}, or
+     * {@link #collectSharedSubscriptions(List, ShareGroupSelector, Topic)} when sharedOnly, but adds the
+     * subscriptions to the batch of the session loop of their client.
+     * */
+    void collectBySessionLoop(SubscriptionsByLoop accumulator, boolean sharedOnly, ShareGroupSelector selector,
+                              Topic topicName) {
+        if (!sharedOnly) {
+            accumulator.addAll(subscriptions);
+        }
+        for (ShareGroup group : sharedSubscriptions.values()) {
+            accumulator.add(selector.select(group, topicName));
+        }
+    }
 }
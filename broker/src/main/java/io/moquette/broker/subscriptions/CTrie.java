@@ -1,11 +1,17 @@
 package io.moquette.broker.subscriptions;
 
 import io.moquette.BrokerConstants;
+import io.moquette.metrics.SubscriptionsStatistics;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public class CTrie {
 
@@ -16,6 +22,7 @@ public class CTrie {
         T getResult();
     }
 
+    // not interned, so that can't be confused with a "root" topic level
     private static final Token ROOT = new Token("root");
     private static final INode NO_PARENT = null;
 
@@ -24,11 +31,168 @@ public class CTrie {
         OK_NEW // used to indicate that the action was successful and the subscription created a new branch
     }
 
+    /**
+     * Changes of a batch of subscriptions grouped by the path of their topic filter, so that each node of the
+     * tree is changed once.
+     * */
+    private static final class PendingNode {
+        private final Map<Token, PendingNode> children = new HashMap<>();
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private boolean wildcardSubtree;
+
+        static PendingNode groupByPath(Collection<Subscription> subscriptions) {
+            final PendingNode root = new PendingNode();
+            for (Subscription sub : subscriptions) {
+                final boolean wildcard = !ExactFiltersIndex.isIndexed(sub);
+                PendingNode current = root;
+                current.wildcardSubtree |= wildcard;
+                for (Token token : sub.getTopicFilterRewritten().getTokens()) {
+                    current = current.children.computeIfAbsent(token, unused -> new PendingNode());
+                    current.wildcardSubtree |= wildcard;
+                }
+                current.subscriptions.add(sub);
+            }
+            return root;
+        }
+    }
+
+    private static final int INITIAL_STACK_SIZE = 32;
+
+    /**
+     * Frames of the pending work of a match, reused by all the matches done by a thread. A frame is a node to
+     * visit with the index of the token of its level, or a node whose subscriptions have to be collected, when
+     * the inode is null. Literal path tells if the node has been reached without passing by wildcards.
+     * */
+    private static final class MatchStack {
+        private INode[] inodes = new INode[INITIAL_STACK_SIZE];
+        private CNode[] collectNodes = new CNode[INITIAL_STACK_SIZE];
+        private int[] tokenIdxs = new int[INITIAL_STACK_SIZE];
+        private int[] depths = new int[INITIAL_STACK_SIZE];
+        private boolean[] literalPaths = new boolean[INITIAL_STACK_SIZE];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return the index of the top frame, that stays valid until the next push.
+         * */
+        int pop() {
+            return --size;
+        }
+
+        void pushVisit(INode inode, int tokenIdx, int depth, boolean literalPath) {
+            ensureCapacity();
+            inodes[size] = inode;
+            tokenIdxs[size] = tokenIdx;
+            depths[size] = depth;
+            literalPaths[size] = literalPath;
+            size++;
+        }
+
+        void pushCollect(CNode cnode, boolean literalPath) {
+            ensureCapacity();
+            collectNodes[size] = cnode;
+            literalPaths[size] = literalPath;
+            size++;
+        }
+
+        /**
+         * Drops the references of the popped frame, so that the stack doesn't retain removed nodes.
+         * */
+        void clear(int frame) {
+            inodes[frame] = null;
+            collectNodes[frame] = null;
+        }
+
+        void reset() {
+            while (size > 0) {
+                clear(--size);
+            }
+        }
+
+        private void ensureCapacity() {
+            if (size == inodes.length) {
+                final int newLength = inodes.length * 2;
+                inodes = Arrays.copyOf(inodes, newLength);
+                collectNodes = Arrays.copyOf(collectNodes, newLength);
+                tokenIdxs = Arrays.copyOf(tokenIdxs, newLength);
+                depths = Arrays.copyOf(depths, newLength);
+                literalPaths = Arrays.copyOf(literalPaths, newLength);
+            }
+        }
+    }
+
+    /**
+     * Nodes from the root to the parent of the current node of a removal, reused by all the removals done by
+     * a thread.
+     * */
+    private static final class PathStack {
+        private INode[] inodes = new INode[INITIAL_STACK_SIZE];
+        private int size;
+
+        void push(INode inode) {
+            if (size == inodes.length) {
+                inodes = Arrays.copyOf(inodes, inodes.length * 2);
+            }
+            inodes[size++] = inode;
+        }
+
+        INode get(int idx) {
+            return inodes[idx];
+        }
+
+        /**
+         * @return the last pushed node, or null if empty.
+         * */
+        INode top() {
+            return size > 0 ? inodes[size - 1] : null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(inodes, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private static final ThreadLocal<MatchStack> MATCH_STACK = ThreadLocal.withInitial(MatchStack::new);
+    private static final ThreadLocal<PathStack> PATH_STACK = ThreadLocal.withInitial(PathStack::new);
+
     INode root;
+    private volatile ShareGroupSelector shareGroupSelector = ShareGroupSelectors.RANDOM_SELECTOR;
+
+    private final SubscriptionsCounters counters;
+    // defines how the subscriptions of every node are split by session loop
+    private final SubscriptionBuckets emptySubscriptions;
 
     CTrie() {
-        final CNode mainNode = new CNode(ROOT);
+        this(false);
+    }
+
+    CTrie(boolean countSubscriptionsByFirstLevel) {
+        this(countSubscriptionsByFirstLevel, SubscriptionBuckets.SINGLE);
+    }
+
+    /**
+     * @param countSubscriptionsByFirstLevel true to keep also the number of subscriptions for each first level
+     *                                       of the topic filters.
+     * @param emptySubscriptions the empty buckets of the subscriptions of a node, one for each session loop or
+     *                           a single one.
+     * */
+    CTrie(boolean countSubscriptionsByFirstLevel, SubscriptionBuckets emptySubscriptions) {
+        this.emptySubscriptions = emptySubscriptions;
+        final CNode mainNode = new CNode(ROOT, emptySubscriptions);
         this.root = new INode(mainNode);
+        this.counters = new SubscriptionsCounters(countSubscriptionsByFirstLevel);
+    }
+
+    void setShareGroupSelector(ShareGroupSelector shareGroupSelector) {
+        this.shareGroupSelector = shareGroupSelector;
     }
 
     Optional<CNode> lookup(Topic topic) {
@@ -54,11 +218,19 @@ public class CTrie {
     }
 
     private NavigationAction evaluate(Topic topicName, CNode cnode, int depth) {
+        return evaluate(topicName.isEmpty() ? null : topicName.headToken(), cnode, depth);
+    }
+
+    /**
+     * @param token the head token of the remaining topic name, null if the topic name is consumed.
+     * */
+    private NavigationAction evaluate(Token token, CNode cnode, int depth) {
         // depth 0 is the root node of all the topics, so for topic filter
         // monitor/sensor we have <root> -> monitor -> sensor
         final boolean isFirstLevel = depth == 1;
-        if (Token.MULTI.equals(cnode.getToken())) {
-            Token token = topicName.headToken();
+        // tokens are interned, so they can be compared by identity
+        final Token cnodeToken = cnode.getToken();
+        if (cnodeToken == Token.MULTI) {
             if (token != null && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 // if reserved token is the first of the topicName
@@ -66,12 +238,11 @@ public class CTrie {
             }
             return NavigationAction.MATCH;
         }
-        if (topicName.isEmpty()) {
+        if (token == null) {
             return NavigationAction.STOP;
         }
-        final Token token = topicName.headToken();
-        if (Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken())) {
-            if (Token.SINGLE.equals(cnode.getToken()) && token.isReserved() && isFirstLevel) {
+        if (cnodeToken == Token.SINGLE || cnodeToken == token || cnodeToken == ROOT) {
+            if (cnodeToken == Token.SINGLE && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 return NavigationAction.STOP;
             }
@@ -80,44 +251,142 @@ public class CTrie {
         return NavigationAction.STOP;
     }
 
+    /**
+     * Same as {@link #match(Topic, List)}, but returns the matching subscriptions in a new list.
+     * */
     public List<Subscription> recursiveMatch(Topic topicName) {
-        return recursiveMatch(topicName, this.root, 0);
+        final List<Subscription> subscriptions = new ArrayList<>();
+        match(topicName, subscriptions);
+        return subscriptions;
     }
 
-    private List<Subscription> recursiveMatch(Topic topicName, INode inode, int depth) {
-        CNode cnode = inode.mainNode();
-        if (cnode instanceof TNode) {
-            return Collections.emptyList();
-        }
-        NavigationAction action = evaluate(topicName, cnode, depth);
-        if (action == NavigationAction.MATCH) {
-            return cnode.sharedAndNonSharedSubscriptions();
-        }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptyList();
-        }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topicName : topicName.exceptHeadToken();
-        List<Subscription> subscriptions = new ArrayList<>();
+    /**
+     * Collects into the accumulator all the subscriptions that match the topic name.
+     * It walks the tree iteratively, with an index over the already parsed tokens of the topic and the
+     * stack of the thread, so that no intermediate Topic, list or stack frame is created for each level.
+     *
+     * @param topicName the topic to match, without wildcards.
+     * @param accumulator the list where matching subscriptions are added.
+     * */
+    public void match(Topic topicName, List<Subscription> accumulator) {
+        match(topicName, accumulator, false);
+    }
+
+    /**
+     * Same as {@link #match(Topic, List)}, but skips the non shared subscriptions with exact topic filter, that are
+     * matched by the {@link ExactFiltersIndex}. The branches that don't contain other subscriptions aren't walked.
+     * */
+    public void matchNotIndexed(Topic topicName, List<Subscription> accumulator) {
+        match(topicName, accumulator, true);
+    }
+
+    /**
+     * Same as {@link #matchNotIndexed(Topic, List)}, but collects the subscriptions in the batch of the session
+     * loop of their client, adding whole buckets for the non shared subscriptions.
+     * */
+    void matchNotIndexedBySessionLoop(Topic topicName, SubscriptionsByLoop accumulator) {
+        walk(topicName, null, accumulator, true);
+    }
 
-        // We should only consider the maximum three children children of
-        // type #, + or exact match
-        Optional<INode> subInode = cnode.childOf(Token.MULTI);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+    private void match(Topic topicName, List<Subscription> accumulator, boolean skipIndexed) {
+        walk(topicName, accumulator, null, skipIndexed);
+    }
+
+    /**
+     * Collects into the list accumulator, or into the one by session loop when the list is null.
+     * */
+    private void walk(Topic topicName, List<Subscription> accumulator, SubscriptionsByLoop byLoop,
+                      boolean skipIndexed) {
+        final List<Token> tokens = topicName.getTokens();
+        final ShareGroupSelector selector = shareGroupSelector;
+        final MatchStack stack = MATCH_STACK.get();
+        stack.pushVisit(this.root, 0, 0, true);
+        try {
+            walkMatching(topicName, tokens, selector, stack, accumulator, byLoop, skipIndexed);
+        } finally {
+            // not empty only if the walk failed
+            stack.reset();
         }
-        subInode = cnode.childOf(Token.SINGLE);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+    }
+
+    private void walkMatching(Topic topicName, List<Token> tokens, ShareGroupSelector selector, MatchStack stack,
+                              List<Subscription> accumulator, SubscriptionsByLoop byLoop, boolean skipIndexed) {
+        while (!stack.isEmpty()) {
+            final int frame = stack.pop();
+            final INode inode = stack.inodes[frame];
+            final CNode toCollect = stack.collectNodes[frame];
+            final int tokenIdx = stack.tokenIdxs[frame];
+            final int depth = stack.depths[frame];
+            final boolean literalPath = stack.literalPaths[frame];
+            stack.clear(frame);
+            if (inode == null) {
+                // when the topic filter of the node is the topic name, its non shared subscriptions are indexed
+                collect(toCollect, skipIndexed && literalPath, selector, topicName, accumulator, byLoop);
+                continue;
+            }
+
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                continue;
+            }
+            final Token token = tokenIdx < tokens.size() ? tokens.get(tokenIdx) : null;
+            NavigationAction action = evaluate(token, cnode, depth);
+            if (action == NavigationAction.MATCH) {
+                collect(cnode, false, selector, topicName, accumulator, byLoop);
+                continue;
+            }
+            if (action == NavigationAction.STOP) {
+                continue;
+            }
+            // root node doesn't consume any token
+            final int remainingIdx = (cnode.getToken() == ROOT) ? tokenIdx : tokenIdx + 1;
+
+            // We should only consider the maximum three children children of
+            // type #, + or exact match. They are pushed in reverse order, so that the subscriptions are
+            // collected in the same order of a depth first walk: #, +, then exact match.
+            if (remainingIdx >= tokens.size()) {
+                stack.pushCollect(cnode, literalPath);
+            } else {
+                final INode exactInode = cnode.childOrNull(tokens.get(remainingIdx));
+                if (exactInode != null && (!skipIndexed || exactInode.hasWildcardSubtree())) {
+                    stack.pushVisit(exactInode, remainingIdx, depth + 1, literalPath);
+                }
+            }
+            INode subInode = cnode.childOrNull(Token.SINGLE);
+            if (subInode != null) {
+                stack.pushVisit(subInode, remainingIdx, depth + 1, false);
+            }
+            subInode = cnode.childOrNull(Token.MULTI);
+            if (subInode != null) {
+                stack.pushVisit(subInode, remainingIdx, depth + 1, false);
+            }
         }
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.sharedAndNonSharedSubscriptions());
+    }
+
+    private static void collect(CNode cnode, boolean sharedOnly, ShareGroupSelector selector, Topic topicName,
+                                List<Subscription> accumulator, SubscriptionsByLoop byLoop) {
+        if (accumulator == null) {
+            cnode.collectBySessionLoop(byLoop, sharedOnly, selector, topicName);
+        } else if (sharedOnly) {
+            cnode.collectSharedSubscriptions(accumulator, selector, topicName);
         } else {
-            subInode = cnode.childOf(remainingTopic.headToken());
-            if (subInode.isPresent()) {
-                subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+            cnode.collectSharedAndNonSharedSubscriptions(accumulator, selector, topicName);
+        }
+    }
+
+    /**
+     * @return the non shared subscriptions of the node of the topic filter, null if the node doesn't exist.
+     * */
+    SubscriptionBuckets subscriptionsOf(Topic filter) {
+        INode inode = this.root;
+        for (Token token : filter.getTokens()) {
+            inode = inode.mainNode().childOrNull(token);
+            if (inode == null) {
+                return null;
             }
         }
-        return subscriptions;
+        final CNode cnode = inode.mainNode();
+        return cnode instanceof TNode ? null : cnode.subscriptionBuckets();
     }
 
     /**
@@ -126,119 +395,294 @@ public class CTrie {
      * */
     public boolean addToTree(Subscription sub) {
         Topic topicToAdd = sub.getTopicFilterRewritten();
-        if (topicToAdd.getTokens().size() > BrokerConstants.MAX_TOPIC_DEPTH) {
-            throw new IllegalStateException(String.format("Trying to add a subscription with %d tokens while the maximum depth is %d", 
-                topicToAdd.getTokens().size(), BrokerConstants.MAX_TOPIC_DEPTH));
-        }
+        checkMaxDepth(topicToAdd);
         Action res;
         do {
-            res = insert(topicToAdd, this.root, sub);
+            res = insert(topicToAdd.getTokens(), sub);
         } while (res == Action.REPEAT);
         return res == Action.OK_NEW;
     }
 
-    private Action insert(Topic topic, final INode inode, Subscription sub) {
-        final Token token = topic.headToken();
-        final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return insert(remainingTopic, nextInode.get(), sub);
+    private Action insert(List<Token> tokens, Subscription sub) {
+        final boolean wildcard = !ExactFiltersIndex.isIndexed(sub);
+        INode iParent = NO_PARENT;
+        INode inode = this.root;
+        // root node doesn't consume any token, the index is of the token of the next level
+        int tokenIdx = 0;
+        while (true) {
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                // a tomb is never revived, because the parent could be removing it: help to clean it and retry
+                cleanTomb(inode, iParent);
+                return Action.REPEAT;
             }
-        }
-        if (topic.isEmpty()) {
-            return insertSubscription(inode, cnode, sub);
-        } else {
-            return createNodeAndInsertSubscription(topic, inode, cnode, sub);
+            if (wildcard) {
+                // before the subscription is visible, so a match that finds it doesn't skip the branch
+                inode.markWildcardSubtree();
+            }
+            if (tokenIdx == tokens.size()) {
+                return insertSubscription(inode, cnode, sub);
+            }
+            final INode nextInode = cnode.childOrNull(tokens.get(tokenIdx));
+            if (nextInode == null) {
+                return createNodeAndInsertSubscription(tokens, tokenIdx, inode, cnode, sub);
+            }
+            iParent = inode;
+            inode = nextInode;
+            tokenIdx++;
         }
     }
 
     private Action insertSubscription(INode inode, CNode cnode, Subscription newSubscription) {
-        final CNode updatedCnode;
-        if (cnode instanceof TNode) {
-            updatedCnode = new CNode(cnode.getToken());
-        } else {
-            updatedCnode = cnode.copy();
-        }
+        final CNode updatedCnode = cnode.copy();
         updatedCnode.addSubscription(newSubscription);
-        return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+        if (!inode.compareAndSet(cnode, updatedCnode)) {
+            return Action.REPEAT;
+        }
+        counters.nodeChanged(cnode, updatedCnode);
+        return Action.OK;
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, CNode cnode, Subscription sub) {
-        final INode newInode = createPathRec(topic, sub);
-        final CNode updatedCnode;
-        if (cnode instanceof TNode) {
-            updatedCnode = new CNode(cnode.getToken());
-        } else {
-            updatedCnode = cnode.copy();
-        }
+    private Action createNodeAndInsertSubscription(List<Token> tokens, int fromIdx, INode inode, CNode cnode,
+                                                   Subscription sub) {
+        final CNode newLeafCnode = new CNode(tokens.get(tokens.size() - 1), emptySubscriptions);
+        newLeafCnode.addSubscription(sub);
+        final INode newInode = createPath(tokens, fromIdx, newLeafCnode, !ExactFiltersIndex.isIndexed(sub));
+        final CNode updatedCnode = cnode.copy();
         updatedCnode.add(newInode);
 
-        return inode.compareAndSet(cnode, updatedCnode) ? Action.OK_NEW : Action.REPEAT;
+        if (!inode.compareAndSet(cnode, updatedCnode)) {
+            return Action.REPEAT;
+        }
+        counters.pathAdded(tokens.size() - fromIdx, newLeafCnode);
+        return Action.OK_NEW;
     }
 
-    private INode createPathRec(Topic topic, Subscription sub) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, sub);
-            CNode cnode = new CNode(topic.headToken());
+    /**
+     * @return the branch of nodes for the tokens starting from fromIdx, built from the leaf that contains
+     * the subscription up to the first node.
+     * */
+    private INode createPath(List<Token> tokens, int fromIdx, CNode newLeafCnode, boolean wildcard) {
+        INode inode = new INode(newLeafCnode);
+        for (int i = tokens.size() - 2; i >= fromIdx; i--) {
+            if (wildcard) {
+                inode.markWildcardSubtree();
+            }
+            final CNode cnode = new CNode(tokens.get(i), emptySubscriptions);
             cnode.add(inode);
-            return new INode(cnode);
-        } else {
-            return createLeafNodes(topic.headToken(), sub);
+            inode = new INode(cnode);
         }
+        if (wildcard) {
+            inode.markWildcardSubtree();
+        }
+        return inode;
     }
 
-    private INode createLeafNodes(Token token, Subscription sub) {
-        CNode newLeafCnode = new CNode(token);
-        newLeafCnode.addSubscription(sub);
+    static void checkMaxDepth(Topic topicFilter) {
+        if (topicFilter.getTokens().size() > BrokerConstants.MAX_TOPIC_DEPTH) {
+            throw new IllegalStateException(String.format("Trying to add a subscription with %d tokens while the maximum depth is %d",
+                topicFilter.getTokens().size(), BrokerConstants.MAX_TOPIC_DEPTH));
+        }
+    }
 
-        return new INode(newLeafCnode);
+    /**
+     * Adds all the subscriptions, grouping them by topic filter so that every node of the tree is copied and
+     * updated with a single CAS, instead of once for each subscription.
+     *
+     * @param subscriptions the subscriptions to add.
+     * @return the subscriptions that created the node of their topic filter, the same that would return true
+     * when added one by one with {@link #addToTree(Subscription)}.
+     * @throws IllegalStateException if a topic filter is deeper than the maximum depth, before changing the tree.
+     * */
+    public Set<Subscription> addAllToTree(Collection<Subscription> subscriptions) {
+        for (Subscription sub : subscriptions) {
+            checkMaxDepth(sub.getTopicFilterRewritten());
+        }
+        final Set<Subscription> created = new HashSet<>();
+        insertAll(this.root, NO_PARENT, PendingNode.groupByPath(subscriptions), created);
+        return created;
     }
 
-    public void removeFromTree(Subscription sub) {
+    /**
+     * @return false if the node is a tomb, so the parent has to insert again the pending changes of this node.
+     * */
+    private boolean insertAll(INode inode, INode iParent, PendingNode pending, Set<Subscription> created) {
+        List<Token> existingTokens;
+        List<INode> existingChildren;
+        List<PendingNode> pendingOfExistingChildren;
         Action res;
+        if (pending.wildcardSubtree) {
+            inode.markWildcardSubtree();
+        }
         do {
-            res = remove(sub.getClientId(), sub.getTopicFilterRewritten(), this.root, NO_PARENT, sub);
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                cleanTomb(inode, iParent);
+                return false;
+            }
+            existingTokens = new ArrayList<>();
+            existingChildren = new ArrayList<>();
+            pendingOfExistingChildren = new ArrayList<>();
+            final Set<Subscription> createdInThisNode = new HashSet<>();
+            final List<INode> missingChildren = new ArrayList<>();
+            final List<CNode> createdNodes = new ArrayList<>();
+            for (Map.Entry<Token, PendingNode> pendingChild : pending.children.entrySet()) {
+                final INode child = cnode.childOrNull(pendingChild.getKey());
+                if (child != null) {
+                    existingTokens.add(pendingChild.getKey());
+                    existingChildren.add(child);
+                    pendingOfExistingChildren.add(pendingChild.getValue());
+                } else {
+                    missingChildren.add(createPath(pendingChild.getKey(), pendingChild.getValue(), createdInThisNode,
+                        createdNodes));
+                }
+            }
+            if (pending.subscriptions.isEmpty() && missingChildren.isEmpty()) {
+                break;
+            }
+            final CNode updatedCnode = cnode.copy();
+            for (Subscription sub : pending.subscriptions) {
+                updatedCnode.addSubscription(sub);
+            }
+            for (INode missingChild : missingChildren) {
+                updatedCnode.add(missingChild);
+            }
+            res = inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+            if (res == Action.OK) {
+                created.addAll(createdInThisNode);
+                counters.nodeChanged(cnode, updatedCnode);
+                counters.nodesAdded(createdNodes);
+            }
         } while (res == Action.REPEAT);
+
+        // the children entombed meanwhile are cleaned, so a new retry creates them again
+        final PendingNode retry = new PendingNode();
+        for (int i = 0; i < existingChildren.size(); i++) {
+            if (!insertAll(existingChildren.get(i), inode, pendingOfExistingChildren.get(i), created)) {
+                retry.children.put(existingTokens.get(i), pendingOfExistingChildren.get(i));
+            }
+        }
+        return retry.children.isEmpty() || insertAll(inode, iParent, retry, created);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent, Subscription sub) {
-        Token token = topic.headToken();
-        final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return remove(clientId, remainingTopic, nextInode.get(), inode, sub);
+    /**
+     * @param createdNodes where the new nodes are collected, to count them as created once linked.
+     * */
+    private INode createPath(Token token, PendingNode pending, Set<Subscription> created, List<CNode> createdNodes) {
+        final CNode cnode = new CNode(token, emptySubscriptions);
+        if (!pending.subscriptions.isEmpty()) {
+            // like when added one by one, only the first subscription creates the node
+            created.add(pending.subscriptions.get(0));
+            for (Subscription sub : pending.subscriptions) {
+                cnode.addSubscription(sub);
             }
         }
-        if (cnode instanceof TNode) {
-            return cleanTomb(inode, iParent);
+        for (Map.Entry<Token, PendingNode> pendingChild : pending.children.entrySet()) {
+            cnode.add(createPath(pendingChild.getKey(), pendingChild.getValue(), created, createdNodes));
+        }
+        createdNodes.add(cnode);
+        final INode inode = new INode(cnode);
+        if (pending.wildcardSubtree) {
+            inode.markWildcardSubtree();
+        }
+        return inode;
+    }
+
+    public void removeFromTree(Subscription sub) {
+        final List<Token> tokens = sub.getTopicFilterRewritten().getTokens();
+        final PathStack path = PATH_STACK.get();
+        Action res;
+        try {
+            do {
+                res = remove(tokens, sub, path);
+            } while (res == Action.REPEAT);
+        } finally {
+            path.clear();
         }
-        if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
-            // last client to leave this node, AND there are no downstream children, remove via TNode tomb
-            if (inode == this.root) {
-                return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
+    }
+
+    private Action remove(List<Token> tokens, Subscription sub, PathStack path) {
+        path.clear();
+        INode inode = this.root;
+        // root node doesn't consume any token, the index is of the token of the next level
+        int tokenIdx = 0;
+        final Action res;
+        while (true) {
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                res = cleanTomb(inode, path.top());
+                break;
             }
-            TNode tnode = new TNode(cnode.getToken());
-            return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-        } else if (cnode.contains(clientId) && topic.isEmpty()) {
-            CNode updatedCnode = cnode.copy();
-            updatedCnode.removeSubscriptionsFor(sub);
-            return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
-        } else {
+            if (tokenIdx == tokens.size()) {
+                res = removeSubscription(inode, path.top(), cnode, sub);
+                break;
+            }
+            final INode nextInode = cnode.childOrNull(tokens.get(tokenIdx));
+            if (nextInode == null) {
+                //someone else already removed
+                res = Action.OK;
+                break;
+            }
+            path.push(inode);
+            inode = nextInode;
+            tokenIdx++;
+        }
+        if (res == Action.OK) {
+            // the removal could have left the ancestors without subscriptions and children, from the deepest up
+            for (int i = path.size() - 1; i > 0; i--) {
+                contractIfEmpty(path.get(i), path.get(i - 1));
+            }
+        }
+        return res;
+    }
+
+    private Action removeSubscription(INode inode, INode iParent, CNode cnode, Subscription sub) {
+        if (!cnode.contains(sub.getClientId())) {
             //someone else already removed
             return Action.OK;
         }
+        CNode updatedCnode = cnode.copy();
+        updatedCnode.removeSubscriptionsFor(sub);
+        if (inode != this.root && updatedCnode.isEmpty()) {
+            // last subscription to leave this node, AND there are no downstream children, remove via TNode tomb
+            TNode tnode = new TNode(cnode.getToken());
+            if (!inode.compareAndSet(cnode, tnode)) {
+                return Action.REPEAT;
+            }
+            counters.nodeChanged(cnode, tnode);
+            return cleanTomb(inode, iParent);
+        }
+        if (!inode.compareAndSet(cnode, updatedCnode)) {
+            return Action.REPEAT;
+        }
+        counters.nodeChanged(cnode, updatedCnode);
+        return Action.OK;
+    }
+
+    /**
+     * Entombs the node if it hasn't subscriptions and children, and removes it from the parent. It's a best effort:
+     * if a concurrent change wins the race the node is left in place, or the tomb is cleaned by the next
+     * operation that walks through it.
+     * */
+    private void contractIfEmpty(INode inode, INode iParent) {
+        if (inode == this.root) {
+            return;
+        }
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode || !cnode.isEmpty()) {
+            return;
+        }
+        if (inode.compareAndSet(cnode, new TNode(cnode.getToken()))) {
+            cleanTomb(inode, iParent);
+        }
     }
 
     /**
      *
      * Cleans Disposes of TNode in separate Atomic CAS operation per
      * http://bravenewgeek.com/breaking-and-entering-lose-the-lock-while-embracing-concurrency/
-     * We roughly follow this theory above, but we allow CNode with no Subscriptions to linger (for now).
+     * A tomb is never replaced by a live node, the inserts that find it help to clean it and retry, so the
+     * removal from the parent can't lose a subscription added concurrently.
      *
      * @param inode inode that handle to the tomb node.
      * @param iParent inode parent.
@@ -246,22 +690,178 @@ public class CTrie {
      */
     private Action cleanTomb(INode inode, INode iParent) {
         CNode origCnode = iParent.mainNode();
+        if (origCnode instanceof TNode) {
+            // the parent has been entombed too, it has to be cleaned first, from its own parent
+            return Action.REPEAT;
+        }
         CNode updatedCnode = origCnode.copy();
         INode removed = updatedCnode.remove(inode);
         if (removed == inode) {
-            return iParent.compareAndSet(origCnode, updatedCnode) ? Action.OK : Action.REPEAT;
+            if (iParent.compareAndSet(origCnode, updatedCnode)) {
+                nodesReclaimed(1);
+                return Action.OK;
+            }
+            return Action.REPEAT;
         } else {
             // The node removed (from the copy!) was not the node we expected to remove.
-            // Probably because another thread replaced the TNode with a live node, so
-            // we don't need to clean it and can return success.
+            // Another thread already cleaned the tomb and created a new node with the same token,
+            // so we don't need to clean it and can return success.
             return Action.OK;
         }
     }
 
+    /**
+     * Removes all the subscriptions, grouping them by topic filter so that every node of the tree is copied and
+     * updated with a single CAS, instead of once for each subscription. The nodes left without subscriptions and
+     * children are entombed and removed from their parent in the same CAS that updates the parent.
+     *
+     * @param subscriptions the subscriptions to remove.
+     * */
+    public void removeAllFromTree(Collection<Subscription> subscriptions) {
+        removeAll(this.root, PendingNode.groupByPath(subscriptions));
+    }
+
+    private void removeAll(INode inode, PendingNode pending) {
+        final CNode current = inode.mainNode();
+        if (current instanceof TNode) {
+            // already removed, the parent cleans it
+            return;
+        }
+        // children first, so that the emptied ones are removed in this node's update
+        final List<INode> touchedChildren = new ArrayList<>(pending.children.size());
+        for (Map.Entry<Token, PendingNode> pendingChild : pending.children.entrySet()) {
+            final INode child = current.childOrNull(pendingChild.getKey());
+            if (child != null) {
+                removeAll(child, pendingChild.getValue());
+                touchedChildren.add(child);
+            }
+        }
+
+        Action res;
+        do {
+            final CNode cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                return;
+            }
+            final CNode updatedCnode = cnode.copy();
+            boolean changed = false;
+            for (Subscription sub : pending.subscriptions) {
+                if (updatedCnode.contains(sub.getClientId())) {
+                    updatedCnode.removeSubscriptionsFor(sub);
+                    changed = true;
+                }
+            }
+            int removedChildren = 0;
+            for (INode child : touchedChildren) {
+                // remove only if the token still maps to the same tombed node, not to one created meanwhile
+                if (child.isTombed() && updatedCnode.childOrNull(child.mainNode().getToken()) == child) {
+                    updatedCnode.remove(child);
+                    removedChildren++;
+                }
+            }
+            if (!changed && removedChildren == 0) {
+                return;
+            }
+            res = replaceOrEntomb(inode, cnode, updatedCnode) ? Action.OK : Action.REPEAT;
+            if (res == Action.OK) {
+                counters.nodeChanged(cnode, updatedCnode);
+                nodesReclaimed(removedChildren);
+            }
+        } while (res == Action.REPEAT);
+    }
+
+    /**
+     * Swaps the node with its updated copy, or with a tomb if the copy is empty and the node isn't the root.
+     *
+     * @return true if the swap succeeded.
+     * */
+    private boolean replaceOrEntomb(INode inode, CNode cnode, CNode updatedCnode) {
+        if (inode != this.root && updatedCnode.isEmpty()) {
+            return inode.compareAndSet(cnode, new TNode(cnode.getToken()));
+        }
+        return inode.compareAndSet(cnode, updatedCnode);
+    }
+
+    /**
+     * Removes from the tree all the branches left without subscriptions, like the ones that lost their last
+     * subscription while a concurrent change was updating the same nodes, and the tombs not yet cleaned.
+     * It's safe to run concurrently with the other operations.
+     *
+     * @return the number of nodes removed from the tree.
+     * */
+    public int compact() {
+        final int reclaimed = compact(this.root);
+        counters.compacted(reclaimed);
+        return reclaimed;
+    }
+
+    private int compact(INode inode) {
+        int reclaimed = 0;
+        CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // the parent removes it
+            return reclaimed;
+        }
+        for (INode child : cnode.allChildren()) {
+            reclaimed += compact(child);
+        }
+
+        // entombs the children left empty and removes the tombs, with a single update of this node
+        boolean swapped;
+        do {
+            cnode = inode.mainNode();
+            if (cnode instanceof TNode) {
+                return reclaimed;
+            }
+            final CNode updatedCnode = cnode.copy();
+            int removedChildren = 0;
+            for (INode child : cnode.allChildren()) {
+                final CNode childCnode = child.mainNode();
+                final boolean emptyLeaf = !(childCnode instanceof TNode) && childCnode.isEmpty();
+                if (emptyLeaf && !child.compareAndSet(childCnode, new TNode(childCnode.getToken()))) {
+                    // changed concurrently, it's not empty anymore
+                    continue;
+                }
+                if (child.isTombed()) {
+                    updatedCnode.remove(child);
+                    removedChildren++;
+                }
+            }
+            if (removedChildren == 0) {
+                return reclaimed;
+            }
+            swapped = replaceOrEntomb(inode, cnode, updatedCnode);
+            if (swapped) {
+                nodesReclaimed(removedChildren);
+                reclaimed += removedChildren;
+            }
+        } while (!swapped);
+        return reclaimed;
+    }
+
+    /**
+     * @return the number of nodes removed from the tree since its creation, because left without subscriptions.
+     * */
+    public long reclaimedNodes() {
+        return counters.reclaimedNodes();
+    }
+
+    private void nodesReclaimed(int count) {
+        counters.nodesReclaimed(count);
+    }
+
+    /**
+     * @return the counters of the tree, updated on every change.
+     * */
+    SubscriptionsStatistics statistics() {
+        return counters;
+    }
+
+    /**
+     * @return the number of non shared subscriptions, read from the counters without walking the tree.
+     * */
     public int size() {
-        SubscriptionCounterVisitor visitor = new SubscriptionCounterVisitor();
-        dfsVisit(this.root, visitor, 0);
-        return visitor.getResult();
+        return (int) counters.subscriptions();
     }
 
     public String dumpTree() {
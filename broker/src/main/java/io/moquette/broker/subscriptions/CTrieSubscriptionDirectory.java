@@ -16,15 +16,22 @@
 package io.moquette.broker.subscriptions;
 
 import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.MetricsProviderNull;
+import io.moquette.metrics.SubscriptionsStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToIntFunction;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
@@ -35,10 +42,44 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private final ConcurrentMap<String, List<Subscription>> clientSharedSubscriptions = new ConcurrentHashMap<>();
 
+    private final OverlappingFilters overlappingFilters = new OverlappingFilters();
+    private ExactFiltersIndex exactFilters;
+    // how the subscriptions of each topic filter are split by session loop, a single bucket if not grouped
+    private SubscriptionBuckets emptySubscriptions = SubscriptionBuckets.SINGLE;
+    private boolean groupedBySessionLoop;
+    private final MatchResultCache<List<Subscription>> matchCache;
+    private final MatchResultCache<SubscriptionsByLoop> matchBySessionLoopCache;
+    private final boolean countSubscriptionsByFirstLevel;
+    private final MetricsProvider metricsProvider;
+    private volatile ShareGroupSelector shareGroupSelector = ShareGroupSelectors.RANDOM_SELECTOR;
+
+    public CTrieSubscriptionDirectory() {
+        this(0, false, new MetricsProviderNull());
+    }
+
+    /**
+     * @param matchCacheSize maximum number of topics whose matching subscriptions are cached, 0 disables the cache.
+     * @param countSubscriptionsByFirstLevel true to count the subscriptions also for each first level of the
+     *                                       topic filters.
+     * @param metricsProvider where to notify the cache hits and misses, and the statistics of the tree.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize, boolean countSubscriptionsByFirstLevel,
+                                      MetricsProvider metricsProvider) {
+        this.matchCache = matchCacheSize > 0 ? new MatchResultCache<>(matchCacheSize) : null;
+        this.matchBySessionLoopCache = matchCacheSize > 0 ? new MatchResultCache<>(matchCacheSize) : null;
+        this.countSubscriptionsByFirstLevel = countSubscriptionsByFirstLevel;
+        this.metricsProvider = metricsProvider;
+    }
+
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
-        ctrie = new CTrie();
+        ctrie = new CTrie(countSubscriptionsByFirstLevel, emptySubscriptions);
+        ctrie.setShareGroupSelector(shareGroupSelector);
+        metricsProvider.initSubscriptionsStatistics(ctrie.statistics());
+        overlappingFilters.clear();
+        exactFilters = new ExactFiltersIndex(ctrie);
+        invalidateMatchCache();
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -47,22 +88,20 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
         }
 
+        final List<Subscription> reloaded = new ArrayList<>();
         for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
             LOG.debug("Re-subscribing {}", subscription);
-            try {
-                ctrie.addToTree(subscription);
-            } catch (IllegalStateException e) {
-                LOG.warn("Failed to add subscription", e);
-            }
+            reloadIfNotTooDeep(subscription, reloaded);
         }
 
         for (Subscription shared : subscriptionsRepository.listAllSharedSubscription()) {
             LOG.debug("Re-subscribing shared {}", shared);
-            try {
-                ctrie.addToTree(shared);
-            } catch (IllegalStateException e) {
-                LOG.warn("Failed to add subscription", e);
-            }
+            reloadIfNotTooDeep(shared, reloaded);
+        }
+        // all at once, so that each node is created a single time
+        ctrie.addAllToTree(reloaded);
+        for (Subscription subscription : reloaded) {
+            exactFilters.update(subscription);
         }
 
         if (LOG.isTraceEnabled()) {
@@ -70,10 +109,54 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         }
     }
 
+    private void reloadIfNotTooDeep(Subscription subscription, List<Subscription> reloaded) {
+        try {
+            CTrie.checkMaxDepth(subscription.getTopicFilterRewritten());
+        } catch (IllegalStateException e) {
+            LOG.warn("Failed to add subscription", e);
+            return;
+        }
+        reloaded.add(subscription);
+        overlappingFilters.add(subscription);
+    }
+
+    /**
+     * Lays out the subscriptions of each topic filter already split by the session loop of their client, so that
+     * {@link #matchQosSharpeningBySessionLoop(Topic)} hands each loop its batch without hashing every client.
+     * It has to be called before {@link #init(ISubscriptionsRepository)}.
+     *
+     * @param sessionLoops the number of session loops.
+     * @param loopOfClient the session loop of a client, between 0 and sessionLoops - 1, it must not change.
+     * */
+    public void groupBySessionLoop(int sessionLoops, ToIntFunction<String> loopOfClient) {
+        emptySubscriptions = SubscriptionBuckets.empty(sessionLoops, loopOfClient);
+        groupedBySessionLoop = true;
+    }
+
+    @Override
+    public boolean groupsBySessionLoop() {
+        return groupedBySessionLoop;
+    }
+
+    /**
+     * Select the strategy used to pick the member of each shared subscription group that receives a publish.
+     *
+     * @param selection one of random, round_robin, least_inflight, sticky_topic.
+     * @param subscribersStatus the state of the subscribers' sessions, used by least_inflight.
+     * @throws IllegalArgumentException if the selection is not one of the supported strategies.
+     * */
+    public void setShareGroupSelection(String selection, ISubscribersStatus subscribersStatus) {
+        shareGroupSelector = ShareGroupSelectors.forName(selection, subscribersStatus);
+        if (ctrie != null) {
+            ctrie.setShareGroupSelector(shareGroupSelector);
+        }
+    }
+
     /**
      * Given a topic string return the clients subscriptions that matches it. Topic string can't
      * contain character # and + because they are reserved to listeners subscriptions, and not topic
-     * publishing.
+     * publishing. The exact topic filters come from a hash lookup, the tree is walked only for the
+     * branches that contain wildcards or shared subscriptions.
      *
      * @param topicName
      *            to use for search matching subscriptions.
@@ -81,43 +164,146 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public List<Subscription> matchWithoutQosSharpening(Topic topicName) {
-        return ctrie.recursiveMatch(topicName);
+        final List<Subscription> matchingSubscriptions = new ArrayList<>();
+        exactFilters.match(topicName, matchingSubscriptions);
+        ctrie.matchNotIndexed(topicName, matchingSubscriptions);
+        return matchingSubscriptions;
     }
 
     @Override
     public List<Subscription> matchQosSharpening(Topic topicName) {
+        if (matchCache == null) {
+            // for each session select the subscription with higher QoS
+            return selectSubscriptionsWithHigherQoSForEachSession(matchWithoutQosSharpening(topicName));
+        }
+
+        final List<Subscription> cached = matchCache.get(topicName);
+        if (cached != null) {
+            metricsProvider.addSubscriptionsMatchCacheHit();
+            return cached;
+        }
+        metricsProvider.addSubscriptionsMatchCacheMiss();
+
+        // the generation has to be read before matching, so a concurrent change of the tree discards the result
+        final long generation = matchCache.currentGeneration();
         final List<Subscription> subscriptions = matchWithoutQosSharpening(topicName);
+        final List<Subscription> selected = selectSubscriptionsWithHigherQoSForEachSession(subscriptions);
+        if (!containsShared(subscriptions)) {
+            // shared subscriptions select a member of the group on each match, so they can't be cached
+            matchCache.put(topicName, generation, Collections.unmodifiableList(selected));
+        }
+        return selected;
+    }
 
-        // for each session select the subscription with higher QoS
-        return selectSubscriptionsWithHigherQoSForEachSession(subscriptions);
+    @Override
+    public SubscriptionsByLoop matchQosSharpeningBySessionLoop(Topic topicName) {
+        if (matchBySessionLoopCache == null) {
+            return selectSubscriptionsWithHigherQoSForEachSession(matchBySessionLoop(topicName));
+        }
+
+        final SubscriptionsByLoop cached = matchBySessionLoopCache.get(topicName);
+        if (cached != null) {
+            metricsProvider.addSubscriptionsMatchCacheHit();
+            return cached;
+        }
+        metricsProvider.addSubscriptionsMatchCacheMiss();
+
+        // the generation has to be read before matching, so a concurrent change of the tree discards the result
+        final long generation = matchBySessionLoopCache.currentGeneration();
+        final SubscriptionsByLoop selected = selectSubscriptionsWithHigherQoSForEachSession(matchBySessionLoop(topicName));
+        if (!selected.containsShared()) {
+            matchBySessionLoopCache.put(topicName, generation, selected.unmodifiable());
+        }
+        return selected;
+    }
+
+    private SubscriptionsByLoop matchBySessionLoop(Topic topicName) {
+        final SubscriptionsByLoop matching = new SubscriptionsByLoop(emptySubscriptions);
+        exactFilters.matchBySessionLoop(topicName, matching);
+        ctrie.matchNotIndexedBySessionLoop(topicName, matching);
+        return matching;
+    }
+
+    private SubscriptionsByLoop selectSubscriptionsWithHigherQoSForEachSession(SubscriptionsByLoop matching) {
+        if (!overlappingFilters.hasOverlaps()) {
+            return matching;
+        }
+        // all the subscriptions of a session are in the batch of its loop
+        for (int loop = 0; loop < matching.loops(); loop++) {
+            final List<Subscription> batch = matching.batch(loop);
+            if (batch != null) {
+                matching.replaceBatch(loop, selectSubscriptionsWithHigherQoSForEachSession(batch));
+            }
+        }
+        return matching;
     }
 
-    private static List<Subscription> selectSubscriptionsWithHigherQoSForEachSession(List<Subscription> subscriptions) {
+    private static boolean containsShared(List<Subscription> subscriptions) {
+        for (int i = 0; i < subscriptions.size(); i++) {
+            if (subscriptions.get(i).hasShareName()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invalidateMatchCache() {
+        if (matchCache != null) {
+            matchCache.invalidate();
+            matchBySessionLoopCache.invalidate();
+        }
+    }
+
+    private List<Subscription> selectSubscriptionsWithHigherQoSForEachSession(List<Subscription> subscriptions) {
+        if (!overlappingFilters.hasOverlaps()) {
+            // every session has at most one matching subscription, nothing to select
+            return subscriptions;
+        }
         // for each session select the subscription with higher QoS
-        Map<String, Subscription> subsGroupedByClient = new HashMap<>();
-        for (Subscription sub : subscriptions) {
+        final List<Subscription> selected = new ArrayList<>(subscriptions.size());
+        Map<ClientAndShareName, Subscription> overlappingSubsGroupedByClient = null;
+        for (int i = 0; i < subscriptions.size(); i++) {
+            final Subscription sub = subscriptions.get(i);
+            if (!overlappingFilters.isOverlapping(sub)) {
+                selected.add(sub);
+                continue;
+            }
+            if (overlappingSubsGroupedByClient == null) {
+                overlappingSubsGroupedByClient = new HashMap<>();
+            }
             // If same client is subscribed to two different shared subscription that overlaps
             // then it has to return both subscriptions, because the share name made them independent.
-            final String key = sub.clientAndShareName();
-            Subscription existingSub = subsGroupedByClient.get(key);
+            final ClientAndShareName key = sub.clientAndShareNameKey();
+            Subscription existingSub = overlappingSubsGroupedByClient.get(key);
             // update the selected subscriptions if not present or if it has a greater qos
             if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsGroupedByClient.put(key, sub);
+                overlappingSubsGroupedByClient.put(key, sub);
             }
         }
-        return new ArrayList<>(subsGroupedByClient.values());
+        if (overlappingSubsGroupedByClient != null) {
+            selected.addAll(overlappingSubsGroupedByClient.values());
+        }
+        return selected;
     }
 
     @Override
     public boolean add(Subscription sub) {
         requireNonShared(sub, "Adding a shared subscription using the non-shared method.");
         boolean notExistingSubscription;
+        // tracked before reaching the tree, so a concurrent match that sees the subscription knows about the overlap
+        overlappingFilters.add(sub);
         try {
             notExistingSubscription = ctrie.addToTree(sub);
         } catch (IllegalStateException e) {
             LOG.warn("Failed to add subscription", e);
+            overlappingFilters.remove(sub);
+            invalidateMatchCache();
             return false;
         }
+        // indexed before invalidating the cache, else a match of the new generation could miss it, as the tree
+        // walk leaves the exact filters to the index, and cache the incomplete result
+        exactFilters.update(sub);
+        invalidateMatchCache();
         subscriptionsRepository.addNewSubscription(sub);
         return notExistingSubscription;
     }
@@ -125,7 +311,9 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     @Override
     public void addShared(Subscription sub) {
         requireShared(sub, "Adding a non-shared subscription using the shared method.");
+        overlappingFilters.add(sub);
         ctrie.addToTree(sub);
+        invalidateMatchCache();
         subscriptionsRepository.addNewSharedSubscription(sub);
         List<Subscription> sharedSubscriptions = clientSharedSubscriptions.computeIfAbsent(sub.getClientId(), unused -> new ArrayList<>());
         sharedSubscriptions.add(sub);
@@ -141,13 +329,74 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     public void removeSubscription(Subscription sub) {
         requireNonShared(sub, "Removing a shared subscription using the non-shared method.");
         ctrie.removeFromTree(sub);
+        exactFilters.update(sub);
+        overlappingFilters.remove(sub);
+        invalidateMatchCache();
         subscriptionsRepository.removeSubscription(sub);
     }
 
+    @Override
+    public Set<Subscription> addAll(Collection<Subscription> subscriptions) {
+        final List<Subscription> accepted = new ArrayList<>(subscriptions.size());
+        for (Subscription sub : subscriptions) {
+            try {
+                CTrie.checkMaxDepth(sub.getTopicFilterRewritten());
+            } catch (IllegalStateException e) {
+                LOG.warn("Failed to add subscription", e);
+                continue;
+            }
+            accepted.add(sub);
+            // tracked before reaching the tree, so a concurrent match that sees the subscription knows about the overlap
+            overlappingFilters.add(sub);
+        }
+        final Set<Subscription> created = ctrie.addAllToTree(accepted);
+        for (Subscription sub : accepted) {
+            exactFilters.update(sub);
+        }
+        invalidateMatchCache();
+
+        for (Subscription sub : accepted) {
+            if (sub.hasShareName()) {
+                subscriptionsRepository.addNewSharedSubscription(sub);
+                clientSharedSubscriptions.computeIfAbsent(sub.getClientId(), unused -> new ArrayList<>()).add(sub);
+            } else {
+                subscriptionsRepository.addNewSubscription(sub);
+            }
+        }
+        return created;
+    }
+
+    @Override
+    public void removeAll(Collection<Subscription> subscriptions) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        ctrie.removeAllFromTree(subscriptions);
+        for (Subscription sub : subscriptions) {
+            exactFilters.update(sub);
+            overlappingFilters.remove(sub);
+        }
+        invalidateMatchCache();
+
+        for (Subscription sub : subscriptions) {
+            if (sub.hasShareName()) {
+                subscriptionsRepository.removeSharedSubscription(sub);
+                List<Subscription> sharedSubscriptions = clientSharedSubscriptions.get(sub.getClientId());
+                if (sharedSubscriptions != null && !sharedSubscriptions.isEmpty()) {
+                    sharedSubscriptions.remove(sub);
+                }
+            } else {
+                subscriptionsRepository.removeSubscription(sub);
+            }
+        }
+    }
+
     @Override
     public void removeSharedSubscription(Subscription subscription) {
         requireShared(subscription, "Removing a non-shared subscription using the shared method.");
         ctrie.removeFromTree(subscription);
+        overlappingFilters.remove(subscription);
+        invalidateMatchCache();
 
         subscriptionsRepository.removeSharedSubscription(subscription);
 
@@ -163,19 +412,47 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         return ctrie.size();
     }
 
+    /**
+     * @return the counters of the subscriptions tree, that are kept updated without walking it.
+     * */
+    public SubscriptionsStatistics statistics() {
+        return ctrie.statistics();
+    }
+
     @Override
     public String dumpTree() {
         return ctrie.dumpTree();
     }
 
+    /**
+     * Removes the branches of the tree left without subscriptions, that the removals didn't contract because
+     * of concurrent changes. It's safe to run concurrently with the other operations.
+     *
+     * @return the number of nodes removed by this compaction.
+     * */
+    public int compact() {
+        final int reclaimed = ctrie.compact();
+        metricsProvider.addSubscriptionsCompaction(reclaimed);
+        return reclaimed;
+    }
+
+    /**
+     * @return the number of nodes removed from the tree since the start, by the removals and by compact.
+     * */
+    public long reclaimedNodes() {
+        return ctrie.reclaimedNodes();
+    }
+
     @Override
     public void removeSharedSubscriptionsForClient(String clientId) {
         List<Subscription> sessionSharedSubscriptions = clientSharedSubscriptions.remove(clientId);
         if (sessionSharedSubscriptions != null) {
             // remove the client from all shared subscriptions
+            ctrie.removeAllFromTree(sessionSharedSubscriptions);
             for (Subscription subscription : sessionSharedSubscriptions) {
-                ctrie.removeFromTree(subscription);
+                overlappingFilters.remove(subscription);
             }
+            invalidateMatchCache();
         }
 
         subscriptionsRepository.removeAllSharedSubscriptions(clientId);
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+/**
+ * Composite key of client id and share name, identifies the owner of a subscription when selecting the
+ * subscription with higher QoS for each session. Created once per subscription, so it doesn't allocate on match.
+ * */
+final class ClientAndShareName {
+
+    private final String clientId;
+    private final ShareName shareName;
+    private final int hash;
+
+    ClientAndShareName(String clientId, ShareName shareName) {
+        this.clientId = clientId;
+        this.shareName = shareName;
+        this.hash = 31 * clientId.hashCode() + shareName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final ClientAndShareName other = (ClientAndShareName) o;
+        return hash == other.hash && clientId.equals(other.clientId) && shareName.equals(other.shareName);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return clientId + (shareName.isEmpty() ? "" : "-" + shareName.getShareName());
+    }
+}
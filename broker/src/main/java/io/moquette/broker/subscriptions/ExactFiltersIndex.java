@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Flat index of the non shared subscriptions whose topic filter hasn't wildcards, kept alongside the subscriptions
+ * tree so that they are matched by a publish with a single hash lookup of the topic name.
+ *
+ * The tree still contains them, but {@link CTrie#matchNotIndexed(Topic, List)} skips them and doesn't descend
+ * the branches without other subscriptions. The index doesn't keep its own copy of them: it references the same
+ * buckets of the tree node of the filter.
+ * */
+final class ExactFiltersIndex {
+
+    private final ConcurrentMap<Topic, SubscriptionBuckets> subscriptions = new ConcurrentHashMap<>();
+    private final CTrie tree;
+
+    ExactFiltersIndex(CTrie tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * @return true for the subscriptions kept in the index, the non shared with a topic filter without wildcards.
+     * */
+    static boolean isIndexed(Subscription sub) {
+        return !sub.hasShareName() && !sub.getTopicFilterRewritten().hasWildcard();
+    }
+
+    /**
+     * Copies the subscriptions of the tree node of the filter, to be called after the subscription has been added
+     * to or removed from the tree. The tree is read while holding the entry of the filter, so when concurrent
+     * changes of the same filter race, the last to update the entry reads a tree that contains all of them, and
+     * the index can't be left behind the tree. Not indexed subscriptions are ignored.
+     * */
+    void update(Subscription sub) {
+        if (!isIndexed(sub)) {
+            return;
+        }
+        subscriptions.compute(sub.getTopicFilterRewritten(), (filter, existing) -> {
+            final SubscriptionBuckets current = tree.subscriptionsOf(filter);
+            return current == null || current.isEmpty() ? null : current;
+        });
+    }
+
+    /**
+     * Adds to the accumulator the subscriptions whose topic filter is equal to the topic name.
+     * */
+    void match(Topic topicName, List<Subscription> accumulator) {
+        final SubscriptionBuckets matching = subscriptions.get(topicName);
+        if (matching != null) {
+            matching.addAllTo(accumulator);
+        }
+    }
+
+    void matchBySessionLoop(Topic topicName, SubscriptionsByLoop accumulator) {
+        final SubscriptionBuckets matching = subscriptions.get(topicName);
+        if (matching != null) {
+            accumulator.addAll(matching);
+        }
+    }
+}
@@ -19,6 +19,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 class INode {
     private AtomicReference<CNode> mainNode = new AtomicReference<>();
+    // set, and never reset, before a subscription not held by the ExactFiltersIndex is added in the subtree
+    private volatile boolean wildcardSubtree;
 
     INode(CNode mainNode) {
         this.mainNode.set(mainNode);
@@ -39,6 +41,21 @@ class INode {
         return this.mainNode.get();
     }
 
+    /**
+     * Records that the subtree contains a subscription with wildcards, or a shared one, so it has to be walked
+     * by {@link CTrie#matchNotIndexed(Topic, java.util.List)}. It's never cleared, a branch whose wildcards have
+     * been removed is only walked in vain until it's contracted.
+     * */
+    void markWildcardSubtree() {
+        if (!wildcardSubtree) {
+            wildcardSubtree = true;
+        }
+    }
+
+    boolean hasWildcardSubtree() {
+        return wildcardSubtree;
+    }
+
     boolean isTombed() {
         return this.mainNode() instanceof TNode;
     }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+/**
+ * Read only view on the state of the subscribers' sessions, used to pick the member of a shared subscription
+ * group that receives a publish.
+ * */
+public interface ISubscribersStatus {
+
+    /**
+     * @param clientId the client owning the subscription.
+     * @return true if the client has a session with an active connection.
+     * */
+    boolean isConnected(String clientId);
+
+    /**
+     * @param clientId the client owning the subscription.
+     * @return the number of messages that can be sent without waiting an acknowledge, 0 if the client is not
+     * connected. Being read from other threads it's an estimation.
+     * */
+    int availableSendSlots(String clientId);
+
+    /**
+     * @param clientId the client owning the subscription.
+     * @return the number of messages waiting in the session queue to be sent, 0 if the client has no session.
+     * */
+    int queuedMessages(String clientId);
+}
@@ -17,7 +17,9 @@ package io.moquette.broker.subscriptions;
 
 import io.moquette.broker.ISubscriptionsRepository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Contains all topic filters that are used to  match against topic names.
@@ -30,12 +32,39 @@ public interface ISubscriptionsDirectory {
 
     List<Subscription> matchQosSharpening(Topic topic);
 
+    /**
+     * @return true if the subscriptions are laid out by session loop, so that
+     * {@link #matchQosSharpeningBySessionLoop(Topic)} returns them already grouped without hashing each client.
+     * */
+    boolean groupsBySessionLoop();
+
+    /**
+     * Same as {@link #matchQosSharpening(Topic)}, with the subscriptions grouped by the session loop of their client.
+     * The returned batches must not be modified, they could be shared by the cache with other publishes.
+     * */
+    SubscriptionsByLoop matchQosSharpeningBySessionLoop(Topic topic);
+
     boolean add(Subscription subscription);
 
     void addShared(Subscription subscription);
 
     void removeSubscription(Subscription subscription);
 
+    /**
+     * Adds shared and non shared subscriptions at once, each node of the tree is updated a single time.
+     *
+     * @param subscriptions the subscriptions to add.
+     * @return the subscriptions that created their topic filter, same meaning of the result of {@link #add(Subscription)}.
+     * */
+    Set<Subscription> addAll(Collection<Subscription> subscriptions);
+
+    /**
+     * Removes shared and non shared subscriptions at once, each node of the tree is updated a single time.
+     *
+     * @param subscriptions the subscriptions to remove.
+     * */
+    void removeAll(Collection<Subscription> subscriptions);
+
     /**
      * Removes shared subscription.
      *
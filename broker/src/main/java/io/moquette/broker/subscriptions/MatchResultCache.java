@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the QoS sharpened subscriptions matching a topic name, as a list or grouped by session loop.
+ *
+ * Every change to the subscriptions tree has to call {@link #invalidate()}, which moves to a new generation so
+ * that all the entries cached before the change are considered stale. When the cache is full the oldest inserted
+ * topic is evicted.
+ *
+ * The lookups are lock free, the insertions and the invalidations are serialized, so that every entry is tracked in
+ * the insertion order and the size stays bounded.
+ * */
+final class MatchResultCache<V> {
+
+    private static final class CachedMatch<V> {
+        private final long generation;
+        private final V subscriptions;
+
+        private CachedMatch(long generation, V subscriptions) {
+            this.generation = generation;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentMap<Topic, CachedMatch<V>> entries = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Queue<Topic> insertionOrder = new ArrayDeque<>();
+    // incremented only holding the lock of this, read without
+    private final AtomicLong generation = new AtomicLong();
+
+    MatchResultCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Match cache size must be positive, was " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(Topic, long, Object)}, it has to be read before matching the tree.
+     * */
+    long currentGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cached subscriptions for the topic or null if not present or stale.
+     * */
+    V get(Topic topic) {
+        final CachedMatch<V> cached = entries.get(topic);
+        if (cached == null || cached.generation != generation.get()) {
+            return null;
+        }
+        return cached.subscriptions;
+    }
+
+    /**
+     * Store the match result, computed on the tree at the given generation. If the tree has been changed in
+     * the meantime the result is discarded.
+     * */
+    synchronized void put(Topic topic, long matchGeneration, V subscriptions) {
+        if (matchGeneration != generation.get()) {
+            return;
+        }
+        if (entries.put(topic, new CachedMatch<>(matchGeneration, subscriptions)) == null) {
+            insertionOrder.offer(topic);
+            evictExceeding();
+        }
+    }
+
+    private void evictExceeding() {
+        while (entries.size() > maxSize) {
+            final Topic eldest = insertionOrder.poll();
+            if (eldest == null) {
+                return;
+            }
+            entries.remove(eldest);
+        }
+    }
+
+    synchronized void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+        insertionOrder.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the topic filters subscribed by each client and share name, to know which of them could receive
+ * more than one subscription for the same published topic.
+ *
+ * Only the owners with two filters that can match a common topic, because one has a wildcard that covers the other
+ * or because both have wildcards that intersect, need the selection of the subscription with higher QoS. An owner
+ * with disjoint filters, like a/b and a/c, matches at most once.
+ * */
+final class OverlappingFilters {
+
+    /**
+     * The filters of an owner, split between exact and wildcard ones, and how many pairs of them intersect. Updated
+     * in place, only from the remapping functions of its entry, so a single owner's changes are serialized.
+     * */
+    private static final class OwnerFilters {
+        final Set<Topic> exactFilters = new HashSet<>();
+        final Set<Topic> wildcardFilters = new HashSet<>();
+        int intersectingPairs;
+
+        boolean contains(Topic filter) {
+            return filtersOfKind(filter).contains(filter);
+        }
+
+        Set<Topic> filtersOfKind(Topic filter) {
+            return filter.hasWildcard() ? wildcardFilters : exactFilters;
+        }
+
+        /**
+         * Two distinct exact filters never intersect, so an exact filter is checked only against the wildcards.
+         * */
+        int intersections(Topic filter) {
+            int count = countIntersections(filter, wildcardFilters);
+            if (filter.hasWildcard()) {
+                count += countIntersections(filter, exactFilters);
+            }
+            return count;
+        }
+
+        boolean isEmpty() {
+            return exactFilters.isEmpty() && wildcardFilters.isEmpty();
+        }
+    }
+
+    private final ConcurrentMap<ClientAndShareName, OwnerFilters> filtersByOwner = new ConcurrentHashMap<>();
+    private final Set<ClientAndShareName> overlappingOwners = ConcurrentHashMap.newKeySet();
+
+    void add(Subscription sub) {
+        final Topic filter = sub.getTopicFilterRewritten();
+        filtersByOwner.compute(sub.clientAndShareNameKey(), (owner, current) -> {
+            final OwnerFilters filters = current != null ? current : new OwnerFilters();
+            if (filters.contains(filter)) {
+                return filters;
+            }
+            filters.intersectingPairs += filters.intersections(filter);
+            filters.filtersOfKind(filter).add(filter);
+            if (filters.intersectingPairs > 0) {
+                overlappingOwners.add(owner);
+            }
+            return filters;
+        });
+    }
+
+    void remove(Subscription sub) {
+        final Topic filter = sub.getTopicFilterRewritten();
+        filtersByOwner.computeIfPresent(sub.clientAndShareNameKey(), (owner, current) -> {
+            if (!current.filtersOfKind(filter).remove(filter)) {
+                return current;
+            }
+            current.intersectingPairs -= current.intersections(filter);
+            if (current.intersectingPairs == 0) {
+                overlappingOwners.remove(owner);
+            }
+            return current.isEmpty() ? null : current;
+        });
+    }
+
+    private static int countIntersections(Topic filter, Set<Topic> others) {
+        int count = 0;
+        for (Topic other : others) {
+            if (intersect(filter, other)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if a topic exists that is matched by both the filters.
+     * */
+    static boolean intersect(Topic filter, Topic other) {
+        final List<Token> tokens = filter.getTokens();
+        final List<Token> otherTokens = other.getTokens();
+        final int common = Math.min(tokens.size(), otherTokens.size());
+        for (int i = 0; i < common; i++) {
+            final Token token = tokens.get(i);
+            final Token otherToken = otherTokens.get(i);
+            if (Token.MULTI.equals(token) || Token.MULTI.equals(otherToken)) {
+                return true;
+            }
+            if (!Token.SINGLE.equals(token) && !Token.SINGLE.equals(otherToken) && !token.equals(otherToken)) {
+                return false;
+            }
+        }
+        if (tokens.size() == otherTokens.size()) {
+            return true;
+        }
+        // the longer can still match the topic of the shorter only if it ends with # at the next level, as a/#
+        // matches a
+        final List<Token> longer = tokens.size() > otherTokens.size() ? tokens : otherTokens;
+        return longer.size() == common + 1 && Token.MULTI.equals(longer.get(common));
+    }
+
+    void clear() {
+        filtersByOwner.clear();
+        overlappingOwners.clear();
+    }
+
+    boolean hasOverlaps() {
+        return !overlappingOwners.isEmpty();
+    }
+
+    /**
+     * @return true if the owner of the subscription has two topic filters that can match the same topic.
+     * */
+    boolean isOverlapping(Subscription sub) {
+        return overlappingOwners.contains(sub.clientAndShareNameKey());
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable sorted list, stored in chunks of bounded size. Every change returns a new list that shares all the
+ * chunks but the modified one, so the copy on write of a node with many subscriptions doesn't copy all of them.
+ *
+ * Elements are ordered and compared by their natural ordering, elements that compare equal are replaced.
+ * */
+final class PersistentSortedList<T extends Comparable<? super T>> implements Iterable<T> {
+
+    static final int MAX_CHUNK_SIZE = 128;
+
+    private static final PersistentSortedList<?> EMPTY = new PersistentSortedList<>(new Object[0][], new int[0], 0);
+
+    // every chunk is sorted and not empty, the last element of a chunk precedes the first of the next
+    private final Object[][] chunks;
+    // position in the list of the first element of each chunk
+    private final int[] chunkStarts;
+    private final int size;
+
+    private PersistentSortedList(Object[][] chunks, int[] chunkStarts, int size) {
+        this.chunks = chunks;
+        this.chunkStarts = chunkStarts;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Comparable<? super T>> PersistentSortedList<T> empty() {
+        return (PersistentSortedList<T>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int idx) {
+        if (idx < 0 || idx >= size) {
+            throw new IndexOutOfBoundsException("Index: " + idx + ", size: " + size);
+        }
+        final int chunkIdx = chunkContaining(idx);
+        return (T) chunks[chunkIdx][idx - chunkStarts[chunkIdx]];
+    }
+
+    /**
+     * @return the element that compares equal to the value, or null if not present.
+     * */
+    @SuppressWarnings("unchecked")
+    T find(T value) {
+        if (size == 0) {
+            return null;
+        }
+        final int chunkIdx = chunkFor(value);
+        final int idx = Arrays.binarySearch(chunks[chunkIdx], value);
+        return idx >= 0 ? (T) chunks[chunkIdx][idx] : null;
+    }
+
+    /**
+     * @return the position of the element that compares equal to the value, or -1 if not present.
+     * */
+    int indexOf(T value) {
+        if (size == 0) {
+            return -1;
+        }
+        final int chunkIdx = chunkFor(value);
+        final int idx = Arrays.binarySearch(chunks[chunkIdx], value);
+        return idx >= 0 ? chunkStarts[chunkIdx] + idx : -1;
+    }
+
+    /**
+     * Binary search with a comparison on a key that is coherent with the sort of the list, like a prefix of the
+     * sort key.
+     *
+     * @param keyComparison returns a negative, zero or positive value if the element precedes, matches or follows
+     *                      the searched key.
+     * @return the position of one element that matches the key, or -1 if none.
+     * */
+    int search(ToIntFunction<? super T> keyComparison) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = keyComparison.applyAsInt(get(mid));
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a list that contains the value, replacing the element that compares equal to it, if present.
+     * */
+    PersistentSortedList<T> with(T value) {
+        if (size == 0) {
+            return new PersistentSortedList<>(new Object[][] {{value}}, new int[] {0}, 1);
+        }
+        final int chunkIdx = chunkFor(value);
+        final Object[] chunk = chunks[chunkIdx];
+        final int idx = Arrays.binarySearch(chunk, value);
+        if (idx >= 0) {
+            final Object[] updatedChunk = chunk.clone();
+            updatedChunk[idx] = value;
+            return replaceChunk(chunkIdx, updatedChunk, size);
+        }
+        final int insertionIdx = -1 - idx;
+        final Object[] updatedChunk = new Object[chunk.length + 1];
+        System.arraycopy(chunk, 0, updatedChunk, 0, insertionIdx);
+        updatedChunk[insertionIdx] = value;
+        System.arraycopy(chunk, insertionIdx, updatedChunk, insertionIdx + 1, chunk.length - insertionIdx);
+        if (updatedChunk.length <= MAX_CHUNK_SIZE) {
+            return replaceChunk(chunkIdx, updatedChunk, size + 1);
+        }
+        return splitChunk(chunkIdx, updatedChunk);
+    }
+
+    /**
+     * @return a list without the element that compares equal to the value, or this list if not present.
+     * */
+    PersistentSortedList<T> without(T value) {
+        if (size == 0) {
+            return this;
+        }
+        final int chunkIdx = chunkFor(value);
+        final Object[] chunk = chunks[chunkIdx];
+        final int idx = Arrays.binarySearch(chunk, value);
+        if (idx < 0) {
+            return this;
+        }
+        if (chunk.length == 1) {
+            return removeChunk(chunkIdx);
+        }
+        final Object[] updatedChunk = new Object[chunk.length - 1];
+        System.arraycopy(chunk, 0, updatedChunk, 0, idx);
+        System.arraycopy(chunk, idx + 1, updatedChunk, idx, chunk.length - idx - 1);
+        return replaceChunk(chunkIdx, updatedChunk, size - 1);
+    }
+
+    /**
+     * Adds all the elements to the accumulator, in order.
+     * */
+    @SuppressWarnings("unchecked")
+    void addAllTo(List<? super T> accumulator) {
+        for (Object[] chunk : chunks) {
+            for (Object element : chunk) {
+                accumulator.add((T) element);
+            }
+        }
+    }
+
+    List<T> toList() {
+        final List<T> list = new ArrayList<>(size);
+        addAllTo(list);
+        return list;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int chunkIdx;
+            private int idx;
+
+            @Override
+            public boolean hasNext() {
+                return chunkIdx < chunks.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Object[] chunk = chunks[chunkIdx];
+                final T element = (T) chunk[idx++];
+                if (idx == chunk.length) {
+                    chunkIdx++;
+                    idx = 0;
+                }
+                return element;
+            }
+        };
+    }
+
+    /**
+     * @return the index of the chunk that contains or would contain the value: the last one whose first
+     * element is not greater than the value, or the first chunk.
+     * */
+    @SuppressWarnings("unchecked")
+    private int chunkFor(T value) {
+        int low = 0;
+        int high = chunks.length - 1;
+        int found = 0;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (((T) chunks[mid][0]).compareTo(value) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private int chunkContaining(int idx) {
+        int low = 0;
+        int high = chunkStarts.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (chunkStarts[mid] <= idx) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private PersistentSortedList<T> replaceChunk(int chunkIdx, Object[] updatedChunk, int newSize) {
+        final Object[][] updatedChunks = chunks.clone();
+        updatedChunks[chunkIdx] = updatedChunk;
+        if (newSize == size) {
+            return new PersistentSortedList<>(updatedChunks, chunkStarts, newSize);
+        }
+        return new PersistentSortedList<>(updatedChunks, computeStarts(updatedChunks), newSize);
+    }
+
+    private PersistentSortedList<T> splitChunk(int chunkIdx, Object[] oversizedChunk) {
+        final int half = oversizedChunk.length / 2;
+        final Object[][] updatedChunks = new Object[chunks.length + 1][];
+        System.arraycopy(chunks, 0, updatedChunks, 0, chunkIdx);
+        updatedChunks[chunkIdx] = Arrays.copyOfRange(oversizedChunk, 0, half);
+        updatedChunks[chunkIdx + 1] = Arrays.copyOfRange(oversizedChunk, half, oversizedChunk.length);
+        System.arraycopy(chunks, chunkIdx + 1, updatedChunks, chunkIdx + 2, chunks.length - chunkIdx - 1);
+        return new PersistentSortedList<>(updatedChunks, computeStarts(updatedChunks), size + 1);
+    }
+
+    private PersistentSortedList<T> removeChunk(int chunkIdx) {
+        if (chunks.length == 1) {
+            return empty();
+        }
+        final Object[][] updatedChunks = new Object[chunks.length - 1][];
+        System.arraycopy(chunks, 0, updatedChunks, 0, chunkIdx);
+        System.arraycopy(chunks, chunkIdx + 1, updatedChunks, chunkIdx, chunks.length - chunkIdx - 1);
+        return new PersistentSortedList<>(updatedChunks, computeStarts(updatedChunks), size - 1);
+    }
+
+    private static int[] computeStarts(Object[][] chunks) {
+        final int[] starts = new int[chunks.length];
+        int start = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            starts[i] = start;
+            start += chunks[i].length;
+        }
+        return starts;
+    }
+}
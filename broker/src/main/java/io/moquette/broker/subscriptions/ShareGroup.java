@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Members of a shared subscription group on a topic filter, sorted by client id.
+ *
+ * Instances are immutable, every change creates a new group that keeps the same cursor and topic pins, so the state
+ * of the selection strategy survives the copy on write of the CNode. The members are shared between the versions of the
+ * group, only the chunk that contains the changed member is copied.
+ * */
+final class ShareGroup {
+
+    // bounds the topics moved away from their sticky member, the ones beyond are not pinned
+    static final int MAX_PINNED_TOPICS = 4096;
+
+    private final PersistentSortedList<Subscription> members;
+    private final AtomicInteger cursor;
+    // client id of the member that receives a topic, when it's not the one the topic hashes to
+    private final ConcurrentMap<Topic, String> pinnedMembers;
+
+    ShareGroup() {
+        this(PersistentSortedList.empty(), new AtomicInteger(), new ConcurrentHashMap<>());
+    }
+
+    private ShareGroup(PersistentSortedList<Subscription> members, AtomicInteger cursor,
+                       ConcurrentMap<Topic, String> pinnedMembers) {
+        this.members = members;
+        this.cursor = cursor;
+        this.pinnedMembers = pinnedMembers;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    Subscription member(int idx) {
+        return members.get(idx);
+    }
+
+    /**
+     * @return the position of the member, or -1 if not present.
+     * */
+    int indexOf(Subscription member) {
+        return members.indexOf(member);
+    }
+
+    /**
+     * @return the next value of the cursor shared by all the versions of this group, used for round-robin.
+     * */
+    int nextCursor() {
+        return cursor.getAndIncrement();
+    }
+
+    /**
+     * @return the client id of the member pinned to receive the topic, or null if none.
+     * */
+    String pinnedMember(Topic topicName) {
+        return pinnedMembers.get(topicName);
+    }
+
+    /**
+     * Pins the topic to the member, unless too many topics are already pinned.
+     * */
+    void pin(Topic topicName, String clientId) {
+        if (pinnedMembers.size() < MAX_PINNED_TOPICS || pinnedMembers.containsKey(topicName)) {
+            pinnedMembers.put(topicName, clientId);
+        }
+    }
+
+    void unpin(Topic topicName) {
+        pinnedMembers.remove(topicName);
+    }
+
+    /**
+     * @return the member of the client, or null if not present.
+     * */
+    Subscription memberOfClient(String clientId) {
+        final int idx = indexOfClient(clientId);
+        return idx < 0 ? null : members.get(idx);
+    }
+
+    /**
+     * @return a group with the subscription added, or replacing the one with same client, the group is not modified.
+     * */
+    ShareGroup withSubscription(Subscription subscription) {
+        // if a shared subscription already exists for same clientId and share name, overwrite, because
+        // the client could desire to update it.
+        return new ShareGroup(members.with(subscription), cursor, pinnedMembers);
+    }
+
+    /**
+     * @return a group without the subscriptions of the client, the group is not modified.
+     * */
+    ShareGroup withoutClient(String clientId) {
+        final int idx = indexOfClient(clientId);
+        if (idx < 0) {
+            return this;
+        }
+        return new ShareGroup(members.without(members.get(idx)), cursor, pinnedMembers);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    boolean containsClient(String clientId) {
+        return indexOfClient(clientId) >= 0;
+    }
+
+    private int indexOfClient(String clientId) {
+        // members of the same group differ only by client id, so they are sorted by it
+        return members.search(sub -> sub.getClientId().compareTo(clientId));
+    }
+}
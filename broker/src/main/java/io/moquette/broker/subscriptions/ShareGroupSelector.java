@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2012-2018 The original author or authors
+ * Copyright (c) 2012-2023 The original author or authors
  * ------------------------------------------------------
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
@@ -15,19 +15,15 @@
  */
 package io.moquette.broker.subscriptions;
 
-import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * Strategy to choose which member of a shared subscription group receives a publish.
+ * */
+interface ShareGroupSelector {
 
-class SubscriptionCounterVisitor implements CTrie.IVisitor<Integer> {
-
-    private AtomicInteger accumulator = new AtomicInteger(0);
-
-    @Override
-    public void visit(CNode node, int deep) {
-        accumulator.addAndGet(node.subscriptions().size());
-    }
-
-    @Override
-    public Integer getResult() {
-        return accumulator.get();
-    }
+    /**
+     * @param group the not empty group of the shared subscription.
+     * @param topicName the published topic.
+     * @return the selected member of the group.
+     * */
+    Subscription select(ShareGroup group, Topic topicName);
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The available strategies to select the member of a shared subscription group.
+ * */
+final class ShareGroupSelectors {
+
+    static final String RANDOM = "random";
+    static final String ROUND_ROBIN = "round_robin";
+    static final String LEAST_INFLIGHT = "least_inflight";
+    static final String STICKY_TOPIC = "sticky_topic";
+
+    /**
+     * Selects a random member.
+     * */
+    static final ShareGroupSelector RANDOM_SELECTOR =
+        (group, topicName) -> group.member(ThreadLocalRandom.current().nextInt(group.size()));
+
+    /**
+     * Selects the members in turn, using the cursor of the group.
+     * */
+    static final ShareGroupSelector ROUND_ROBIN_SELECTOR =
+        (group, topicName) -> group.member(Math.floorMod(group.nextCursor(), group.size()));
+
+    /**
+     * Selects always the same member for the same topic, as long as the members of the group don't change.
+     * */
+    static final ShareGroupSelector TOPIC_HASH_SELECTOR =
+        (group, topicName) -> group.member(Math.floorMod(topicName.hashCode(), group.size()));
+
+    /**
+     * Selects the member with most free slots in its send quota. The scan starts from a rotating position so
+     * that members with the same free slots are selected in turn.
+     * */
+    static final class LeastInflightSelector implements ShareGroupSelector {
+
+        private final ISubscribersStatus subscribersStatus;
+
+        LeastInflightSelector(ISubscribersStatus subscribersStatus) {
+            this.subscribersStatus = subscribersStatus;
+        }
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            final int size = group.size();
+            final int start = Math.floorMod(group.nextCursor(), size);
+            Subscription selected = group.member(start);
+            int maxFreeSlots = subscribersStatus.availableSendSlots(selected.getClientId());
+            for (int i = 1; i < size; i++) {
+                final Subscription candidate = group.member((start + i) % size);
+                final int freeSlots = subscribersStatus.availableSendSlots(candidate.getClientId());
+                if (freeSlots > maxFreeSlots) {
+                    selected = candidate;
+                    maxFreeSlots = freeSlots;
+                }
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * Decorates a strategy so that the members able to receive immediately are preferred: the strategy's choice is
+     * kept if that member is ready, else the first ready member following it is selected. A ready member is connected,
+     * has free slots in its send quota and nothing waiting in its session queue.
+     * When no member is ready a connected one is preferred, and only if all are offline the strategy's choice is kept,
+     * so that the message is queued in its session.
+     * */
+    static final class ReadyMembersFirstSelector implements ShareGroupSelector {
+
+        private final ShareGroupSelector delegate;
+        private final ISubscribersStatus subscribersStatus;
+
+        ReadyMembersFirstSelector(ShareGroupSelector delegate, ISubscribersStatus subscribersStatus) {
+            this.delegate = delegate;
+            this.subscribersStatus = subscribersStatus;
+        }
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            return readyOrFollowing(group, delegate.select(group, topicName));
+        }
+
+        /**
+         * @return the chosen member if ready, else the member that replaces it.
+         * */
+        Subscription readyOrFollowing(ShareGroup group, Subscription chosen) {
+            if (isReady(chosen) || group.size() == 1) {
+                return chosen;
+            }
+            final int size = group.size();
+            final int chosenIdx = Math.max(group.indexOf(chosen), 0);
+            Subscription firstConnected = null;
+            for (int i = 1; i < size; i++) {
+                final Subscription candidate = group.member((chosenIdx + i) % size);
+                if (isReady(candidate)) {
+                    return candidate;
+                }
+                if (firstConnected == null && subscribersStatus.isConnected(candidate.getClientId())) {
+                    firstConnected = candidate;
+                }
+            }
+            if (firstConnected != null && !subscribersStatus.isConnected(chosen.getClientId())) {
+                return firstConnected;
+            }
+            return chosen;
+        }
+
+        boolean isReady(Subscription member) {
+            final String clientId = member.getClientId();
+            return subscribersStatus.isConnected(clientId) &&
+                subscribersStatus.availableSendSlots(clientId) > 0 &&
+                subscribersStatus.queuedMessages(clientId) == 0;
+        }
+    }
+
+    /**
+     * Selects the same member for the same topic while it's ready. When it isn't, the topic is pinned to the ready
+     * member that replaces it, and stays there while that is ready, so it doesn't go back and forth between them.
+     * When no member is ready the choice is the same of {@link ReadyMembersFirstSelector}, without pinning.
+     * */
+    static final class StickyTopicSelector implements ShareGroupSelector {
+
+        private final ReadyMembersFirstSelector readyMembersFirst;
+
+        StickyTopicSelector(ISubscribersStatus subscribersStatus) {
+            this.readyMembersFirst = new ReadyMembersFirstSelector(TOPIC_HASH_SELECTOR, subscribersStatus);
+        }
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            final Subscription sticky = stickyMember(group, topicName);
+            final Subscription selected = readyMembersFirst.readyOrFollowing(group, sticky);
+            if (selected != sticky && readyMembersFirst.isReady(selected)) {
+                if (selected == TOPIC_HASH_SELECTOR.select(group, topicName)) {
+                    // back to the member the topic hashes to, that needs no pin
+                    group.unpin(topicName);
+                } else {
+                    group.pin(topicName, selected.getClientId());
+                }
+            }
+            return selected;
+        }
+
+        private static Subscription stickyMember(ShareGroup group, Topic topicName) {
+            final String pinned = group.pinnedMember(topicName);
+            if (pinned != null) {
+                final Subscription pinnedMember = group.memberOfClient(pinned);
+                if (pinnedMember != null) {
+                    return pinnedMember;
+                }
+                // left the group
+                group.unpin(topicName);
+            }
+            return TOPIC_HASH_SELECTOR.select(group, topicName);
+        }
+    }
+
+    private ShareGroupSelectors() {
+    }
+
+    /**
+     * @param name one of random, round_robin, least_inflight, sticky_topic.
+     * @param subscribersStatus the state of the members' sessions, used to skip the members that can't receive.
+     * @return the strategy, that prefers the ready members.
+     * @throws IllegalArgumentException if the name doesn't identify a strategy.
+     * */
+    static ShareGroupSelector forName(String name, ISubscribersStatus subscribersStatus) {
+        final ShareGroupSelector strategy = strategyForName(name, subscribersStatus);
+        if (strategy instanceof StickyTopicSelector) {
+            // prefers the ready members by itself, to keep a topic on the member that replaced its sticky one
+            return strategy;
+        }
+        return new ReadyMembersFirstSelector(strategy, subscribersStatus);
+    }
+
+    private static ShareGroupSelector strategyForName(String name, ISubscribersStatus subscribersStatus) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case RANDOM:
+                return RANDOM_SELECTOR;
+            case ROUND_ROBIN:
+                return ROUND_ROBIN_SELECTOR;
+            case LEAST_INFLIGHT:
+                return new LeastInflightSelector(subscribersStatus);
+            case STICKY_TOPIC:
+                return new StickyTopicSelector(subscribersStatus);
+            default:
+                throw new IllegalArgumentException("Shared subscription selection must be one of '" + RANDOM +
+                    "', '" + ROUND_ROBIN + "', '" + LEAST_INFLIGHT + "', '" + STICKY_TOPIC + "' but was " + name);
+        }
+    }
+}
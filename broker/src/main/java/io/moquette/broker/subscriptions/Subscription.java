@@ -36,6 +36,9 @@ public final class Subscription implements Serializable, Comparable<Subscription
 
     private final Optional<SubscriptionIdentifier> subscriptionId;
 
+    // lazily created, used as key when grouping the matched subscriptions by session
+    private transient ClientAndShareName clientAndShareNameKey;
+
     public Subscription(String clientId, Topic topicFilter, MqttSubscriptionOption options) {
         this(clientId, topicFilter, options, EMPTY_SHARENAME, Optional.empty());
     }
@@ -170,6 +173,15 @@ public final class Subscription implements Serializable, Comparable<Subscription
         return clientId + (shareName.isEmpty() ? "" : "-" + shareName);
     }
 
+    ClientAndShareName clientAndShareNameKey() {
+        ClientAndShareName key = clientAndShareNameKey;
+        if (key == null) {
+            key = new ClientAndShareName(clientId, shareName);
+            clientAndShareNameKey = key;
+        }
+        return key;
+    }
+
     public boolean hasShareName() {
         return !shareName.isEmpty();
     }
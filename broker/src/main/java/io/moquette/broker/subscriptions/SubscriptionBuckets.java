@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable non shared subscriptions of a node, split in sorted buckets by the session loop of their client, so a
+ * publish hands each loop its slice without hashing every client. All the subscriptions of a client are in the
+ * same bucket. With a single bucket it's the plain sorted list.
+ * */
+final class SubscriptionBuckets {
+
+    private static final ToIntFunction<String> SINGLE_BUCKET = clientId -> 0;
+    static final SubscriptionBuckets SINGLE = empty(1, SINGLE_BUCKET);
+
+    private final ToIntFunction<String> bucketOfClient;
+    private final PersistentSortedList<Subscription>[] buckets;
+    private final int size;
+
+    private SubscriptionBuckets(ToIntFunction<String> bucketOfClient, PersistentSortedList<Subscription>[] buckets,
+                                int size) {
+        this.bucketOfClient = bucketOfClient;
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    /**
+     * @param buckets number of session loops.
+     * @param bucketOfClient the session loop of a client, between 0 and buckets - 1.
+     * */
+    @SuppressWarnings("unchecked")
+    static SubscriptionBuckets empty(int buckets, ToIntFunction<String> bucketOfClient) {
+        final PersistentSortedList<Subscription>[] empties = new PersistentSortedList[buckets];
+        for (int i = 0; i < buckets; i++) {
+            empties[i] = PersistentSortedList.empty();
+        }
+        return new SubscriptionBuckets(bucketOfClient, empties, 0);
+    }
+
+    int bucketsCount() {
+        return buckets.length;
+    }
+
+    int bucketOf(String clientId) {
+        return bucketOfClient.applyAsInt(clientId);
+    }
+
+    PersistentSortedList<Subscription> bucket(int idx) {
+        return buckets[idx];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the subscription that compares equal, same client and topic filter, or null if not present.
+     * */
+    Subscription find(Subscription sub) {
+        return buckets[bucketOf(sub.clientId)].find(sub);
+    }
+
+    /**
+     * @return a subscription of the client, or null if there are none.
+     * */
+    Subscription findClient(String clientId) {
+        final PersistentSortedList<Subscription> bucket = buckets[bucketOf(clientId)];
+        final int idx = bucket.search(sub -> sub.clientId.compareTo(clientId));
+        return idx >= 0 ? bucket.get(idx) : null;
+    }
+
+    /**
+     * @return true if there are subscriptions, and all are of the client.
+     * */
+    boolean containsOnly(String clientId) {
+        if (size == 0) {
+            return false;
+        }
+        final PersistentSortedList<Subscription> bucket = buckets[bucketOf(clientId)];
+        // sorted by client id, so all are of the client if the first and the last are
+        return bucket.size() == size
+            && bucket.get(0).clientId.equals(clientId)
+            && bucket.get(size - 1).clientId.equals(clientId);
+    }
+
+    /**
+     * @return any subscription, or null if empty.
+     * */
+    Subscription any() {
+        for (PersistentSortedList<Subscription> bucket : buckets) {
+            if (!bucket.isEmpty()) {
+                return bucket.get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return buckets that contain the subscription, replacing the one that compares equal to it, if present.
+     * */
+    SubscriptionBuckets with(Subscription sub) {
+        final int idx = bucketOf(sub.clientId);
+        final PersistentSortedList<Subscription> bucket = buckets[idx];
+        return replaceBucket(idx, bucket, bucket.with(sub));
+    }
+
+    /**
+     * @return buckets without the subscription that compares equal to it, or this if not present.
+     * */
+    SubscriptionBuckets without(Subscription sub) {
+        final int idx = bucketOf(sub.clientId);
+        final PersistentSortedList<Subscription> bucket = buckets[idx];
+        final PersistentSortedList<Subscription> updated = bucket.without(sub);
+        return updated == bucket ? this : replaceBucket(idx, bucket, updated);
+    }
+
+    private SubscriptionBuckets replaceBucket(int idx, PersistentSortedList<Subscription> bucket,
+                                              PersistentSortedList<Subscription> updated) {
+        final PersistentSortedList<Subscription>[] updatedBuckets = buckets.clone();
+        updatedBuckets[idx] = updated;
+        return new SubscriptionBuckets(bucketOfClient, updatedBuckets, size - bucket.size() + updated.size());
+    }
+
+    void addAllTo(List<Subscription> accumulator) {
+        for (PersistentSortedList<Subscription> bucket : buckets) {
+            bucket.addAllTo(accumulator);
+        }
+    }
+
+    List<Subscription> toList() {
+        final List<Subscription> all = new ArrayList<>(size);
+        addAllTo(all);
+        return all;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Subscriptions matched by a publish, already grouped by the session loop of their client.
+ * */
+public final class SubscriptionsByLoop {
+
+    private final SubscriptionBuckets layout;
+    private final List<Subscription>[] batches;
+    private int size;
+    private boolean containsShared;
+
+    @SuppressWarnings("unchecked")
+    SubscriptionsByLoop(SubscriptionBuckets layout) {
+        this.layout = layout;
+        this.batches = new List[layout.bucketsCount()];
+    }
+
+    /**
+     * Adds a single subscription, like the selected member of a share group.
+     * */
+    void add(Subscription sub) {
+        batchFor(layout.bucketOf(sub.clientId), 1).add(sub);
+        size++;
+        containsShared |= sub.hasShareName();
+    }
+
+    /**
+     * Adds each bucket to the batch of its session loop, without hashing the clients.
+     * */
+    void addAll(SubscriptionBuckets subscriptions) {
+        for (int i = 0; i < batches.length; i++) {
+            final PersistentSortedList<Subscription> bucket = subscriptions.bucket(i);
+            if (!bucket.isEmpty()) {
+                bucket.addAllTo(batchFor(i, bucket.size()));
+            }
+        }
+        size += subscriptions.size();
+    }
+
+    private List<Subscription> batchFor(int loop, int expectedAdds) {
+        List<Subscription> batch = batches[loop];
+        if (batch == null) {
+            batch = new ArrayList<>(expectedAdds);
+            batches[loop] = batch;
+        }
+        return batch;
+    }
+
+    void replaceBatch(int loop, List<Subscription> batch) {
+        size += batch.size() - batches[loop].size();
+        batches[loop] = batch;
+    }
+
+    /**
+     * Makes the batches read only, so they can be shared by many publishes.
+     * */
+    SubscriptionsByLoop unmodifiable() {
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                batches[i] = Collections.unmodifiableList(batches[i]);
+            }
+        }
+        return this;
+    }
+
+    boolean containsShared() {
+        return containsShared;
+    }
+
+    public int loops() {
+        return batches.length;
+    }
+
+    /**
+     * @return the subscriptions of the clients of the session loop, or null if there are none.
+     * */
+    public List<Subscription> batch(int loop) {
+        return batches[loop];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
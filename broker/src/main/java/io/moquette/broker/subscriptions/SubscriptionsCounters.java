@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.BrokerConstants;
+import io.moquette.metrics.SubscriptionsStatistics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the subscriptions tree, updated by the CTrie after every successful swap of a node.
+ * */
+final class SubscriptionsCounters implements SubscriptionsStatistics {
+
+    private final LongAdder subscriptions = new LongAdder();
+    private final LongAdder sharedSubscriptions = new LongAdder();
+    private final LongAdder sharedGroups = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder reclaimedNodes = new LongAdder();
+    private final LongAdder compactionReclaimedNodes = new LongAdder();
+    // subscriptions, shared or not, by number of levels of their topic filter
+    private final AtomicLongArray subscriptionsByDepth = new AtomicLongArray(BrokerConstants.MAX_TOPIC_DEPTH + 1);
+    // null when the counters by first level are disabled
+    private final ConcurrentMap<String, LongAdder> subscriptionsByFirstLevel;
+
+    SubscriptionsCounters(boolean countByFirstLevel) {
+        this.subscriptionsByFirstLevel = countByFirstLevel ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Records the change of the subscriptions of a node, that has been swapped with its updated version.
+     *
+     * @param before the node before the swap.
+     * @param after the node after the swap, could be a tomb.
+     * */
+    void nodeChanged(CNode before, CNode after) {
+        Subscription sample = after.anySubscription();
+        if (sample == null) {
+            sample = before.anySubscription();
+        }
+        record(after.subscriptionsCount() - before.subscriptionsCount(),
+            after.sharedSubscriptionsCount() - before.sharedSubscriptionsCount(),
+            after.sharedGroupsCount() - before.sharedGroupsCount(), sample);
+    }
+
+    /**
+     * @param sample any subscription of the changed node, all the subscriptions in a node have the same topic
+     *               filter. Null only if the node had and has no subscriptions.
+     * */
+    private void record(int subscriptionsDelta, int sharedSubscriptionsDelta, int sharedGroupsDelta,
+                        Subscription sample) {
+        subscriptions.add(subscriptionsDelta);
+        sharedSubscriptions.add(sharedSubscriptionsDelta);
+        sharedGroups.add(sharedGroupsDelta);
+
+        final int totalDelta = subscriptionsDelta + sharedSubscriptionsDelta;
+        if (totalDelta == 0) {
+            return;
+        }
+        final Topic topicFilter = sample.getTopicFilterRewritten();
+        subscriptionsByDepth.addAndGet(topicFilter.getTokens().size(), totalDelta);
+        if (subscriptionsByFirstLevel != null && !topicFilter.getTokens().isEmpty()) {
+            final String firstLevel = topicFilter.getTokens().get(0).toString();
+            subscriptionsByFirstLevel.computeIfAbsent(firstLevel, unused -> new LongAdder()).add(totalDelta);
+        }
+    }
+
+    /**
+     * Records the nodes of new branches, just linked to the tree. They are counted as they were created, because
+     * once linked they could be already changed by concurrent inserts, that record their own changes.
+     * */
+    void nodesAdded(List<CNode> created) {
+        for (CNode cnode : created) {
+            nodes.increment();
+            record(cnode.subscriptionsCount(), cnode.sharedSubscriptionsCount(), cnode.sharedGroupsCount(),
+                cnode.anySubscription());
+        }
+    }
+
+    /**
+     * Same as {@link #nodesAdded(List)} for a branch made of a chain of nodes, where only the leaf has
+     * subscriptions.
+     * */
+    void pathAdded(int length, CNode leaf) {
+        nodes.add(length);
+        record(leaf.subscriptionsCount(), leaf.sharedSubscriptionsCount(), leaf.sharedGroupsCount(),
+            leaf.anySubscription());
+    }
+
+    /**
+     * Records the nodes removed because left without subscriptions.
+     * */
+    void nodesReclaimed(int count) {
+        nodes.add(-count);
+        reclaimedNodes.add(count);
+    }
+
+    void compacted(int reclaimedCount) {
+        compactionReclaimedNodes.add(reclaimedCount);
+    }
+
+    @Override
+    public long subscriptions() {
+        return subscriptions.sum();
+    }
+
+    @Override
+    public long sharedSubscriptions() {
+        return sharedSubscriptions.sum();
+    }
+
+    @Override
+    public long sharedGroups() {
+        return sharedGroups.sum();
+    }
+
+    @Override
+    public long nodes() {
+        return nodes.sum();
+    }
+
+    @Override
+    public long reclaimedNodes() {
+        return reclaimedNodes.sum();
+    }
+
+    @Override
+    public long compactionReclaimedNodes() {
+        return compactionReclaimedNodes.sum();
+    }
+
+    @Override
+    public int maxDepth() {
+        for (int depth = subscriptionsByDepth.length() - 1; depth > 0; depth--) {
+            if (subscriptionsByDepth.get(depth) > 0) {
+                return depth;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public Map<String, Long> subscriptionsByFirstLevel() {
+        if (subscriptionsByFirstLevel == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Long> snapshot = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : subscriptionsByFirstLevel.entrySet()) {
+            final long count = entry.getValue().sum();
+            if (count > 0) {
+                snapshot.put(entry.getKey(), count);
+            }
+        }
+        return snapshot;
+    }
+}
@@ -28,6 +28,11 @@ class TNode extends CNode {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
+    @Override
+    INode childOrNull(Token token) {
+        throw new IllegalStateException("Can't be invoked on TNode");
+    }
+
     @Override
     CNode copy() {
         throw new IllegalStateException("Can't be invoked on TNode");
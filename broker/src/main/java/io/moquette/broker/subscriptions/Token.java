@@ -16,18 +16,84 @@
 
 package io.moquette.broker.subscriptions;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * Internal use only class.
+ *
+ * Tokens created with {@link #of(String)} are interned, so that equal topic levels share the same instance
+ * and can be compared by identity. The intern table keeps only weak references, a token that's not used
+ * by any topic or subscription anymore is garbage collected and its entry expunged.
  */
 public class Token implements Comparable<Token> {
 
-    static final Token EMPTY = new Token("");
-    static final Token MULTI = new Token("#");
-    static final Token SINGLE = new Token("+");
+    private static final ReferenceQueue<Token> STALE_TOKENS = new ReferenceQueue<>();
+    private static final ConcurrentMap<String, TokenReference> INTERNED = new ConcurrentHashMap<>();
+
+    static final Token EMPTY = Token.of("");
+    static final Token MULTI = Token.of("#");
+    static final Token SINGLE = Token.of("+");
     final String name;
+    private final int hash;
+    private final boolean reserved;
+
+    private static final class TokenReference extends WeakReference<Token> {
+        private final String name;
+
+        TokenReference(Token token) {
+            super(token, STALE_TOKENS);
+            this.name = token.name;
+        }
+    }
 
     protected Token(String s) {
         name = s;
+        int hash = 7;
+        hash = 29 * hash + (this.name != null ? this.name.hashCode() : 0);
+        this.hash = hash;
+        this.reserved = name != null && name.startsWith("$");
+    }
+
+    /**
+     * @param name the topic level.
+     * @return the interned instance of the token for the name.
+     * */
+    static Token of(String name) {
+        expungeStaleTokens();
+        final TokenReference ref = INTERNED.get(name);
+        if (ref != null) {
+            final Token interned = ref.get();
+            if (interned != null) {
+                return interned;
+            }
+        }
+        final Token newToken = new Token(name);
+        final TokenReference newRef = new TokenReference(newToken);
+        while (true) {
+            final TokenReference existingRef = INTERNED.putIfAbsent(name, newRef);
+            if (existingRef == null) {
+                return newToken;
+            }
+            final Token existing = existingRef.get();
+            if (existing != null) {
+                return existing;
+            }
+            // the entry is stale but not yet expunged, replace it
+            if (INTERNED.replace(name, existingRef, newRef)) {
+                return newToken;
+            }
+        }
+    }
+
+    private static void expungeStaleTokens() {
+        TokenReference staleRef;
+        while ((staleRef = (TokenReference) STALE_TOKENS.poll()) != null) {
+            // remove only if not already replaced by a live token
+            INTERNED.remove(staleRef.name, staleRef);
+        }
     }
 
     protected String name() {
@@ -36,13 +102,14 @@ public class Token implements Comparable<Token> {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 29 * hash + (this.name != null ? this.name.hashCode() : 0);
         return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -50,6 +117,9 @@ public class Token implements Comparable<Token> {
             return false;
         }
         final Token other = (Token) obj;
+        if (this.hash != other.hash) {
+            return false;
+        }
         if ((this.name == null) ? (other.name != null) : !this.name.equals(other.name)) {
             return false;
         }
@@ -79,6 +149,6 @@ public class Token implements Comparable<Token> {
      * Token which starts with $ is reserved
      * */
     public boolean isReserved() {
-        return name.startsWith("$");
+        return reserved;
     }
 }
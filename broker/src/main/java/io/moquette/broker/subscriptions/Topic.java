@@ -81,51 +81,58 @@ public class Topic implements Serializable, Comparable<Topic> {
             throw new ParseException("Bad format of topic, topic MUST be at least 1 character [MQTT-4.7.3-1] and " +
                                      "this was empty", 0);
         }
+        // scan the separators in place, instead of String.split, to avoid the intermediate array of strings
         List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
+        // like String.split a run of trailing separators is dropped, and ending with a separator adds a single
+        // empty level
+        int length = topic.length();
+        while (length > 0 && topic.charAt(length - 1) == '/') {
+            length--;
         }
-
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
+        final boolean endsWithSeparator = length < topic.length();
+        if (length == 0) {
+            // only separators
+            res.add(Token.EMPTY);
+            res.add(Token.EMPTY);
+            return res;
         }
-
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
+        int start = 0;
+        for (int i = 0; ; i++) {
+            int separatorIdx = topic.indexOf('/', start);
+            if (separatorIdx >= length) {
+                separatorIdx = -1;
+            }
+            final boolean lastLevel = separatorIdx < 0;
+            final int end = lastLevel ? length : separatorIdx;
+            if (start == end) {
                 res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
+            } else if (end - start == 1 && topic.charAt(start) == '#') {
                 // check that multi is the last symbol
-                if (i != splitted.length - 1) {
+                if (!lastLevel || endsWithSeparator) {
                     throw new ParseException(
                             "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
                             i);
                 }
                 res.add(Token.MULTI);
                 hasWildcard = true;
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
+            } else if (end - start == 1 && topic.charAt(start) == '+') {
                 res.add(Token.SINGLE);
                 hasWildcard = true;
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
             } else {
-                res.add(new Token(s));
+                final String s = topic.substring(start, end);
+                if (s.indexOf('#') >= 0 || s.indexOf('+') >= 0) {
+                    throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
+                }
+                res.add(Token.of(s));
             }
+            if (lastLevel) {
+                if (endsWithSeparator) {
+                    res.add(Token.EMPTY);
+                }
+                return res;
+            }
+            start = separatorIdx + 1;
         }
-
-        return res;
     }
 
     public Token headToken() {
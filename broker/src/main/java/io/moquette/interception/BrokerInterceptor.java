@@ -44,6 +44,17 @@ public final class BrokerInterceptor implements Interceptor {
     private final ExecutorService executor;
 
     private BrokerInterceptor(int poolSize, List<InterceptHandler> handlers) {
+        this(Executors.newFixedThreadPool(poolSize), handlers);
+    }
+
+    /**
+     * Configures a broker interceptor that notifies the handlers on the executor, like one that starts a virtual
+     * thread for each notification. The notifications are not ordered unless the executor runs them in sequence.
+     *
+     * @param executor runs the notifications, it's shut down on stop.
+     * @param handlers InterceptHandlers listeners.
+     */
+    public BrokerInterceptor(ExecutorService executor, List<InterceptHandler> handlers) {
         LOG.info("Initializing broker interceptor. InterceptorIds={}", getInterceptorIds(handlers));
         this.handlers = new HashMap<>();
         for (Class<?> messageType : InterceptHandler.ALL_MESSAGE_TYPES) {
@@ -52,7 +63,7 @@ public final class BrokerInterceptor implements Interceptor {
         for (InterceptHandler handler : handlers) {
             this.addInterceptHandler(handler);
         }
-        executor = Executors.newFixedThreadPool(poolSize);
+        this.executor = executor;
     }
 
     /**
@@ -74,4 +74,35 @@ public interface MetricsProvider {
      * @param qos The QoS of the message.
      */
     public void addMessage(int queue, int qos);
+
+    /**
+     * Register a topic match served by the subscriptions match cache. Ignored by default.
+     */
+    default void addSubscriptionsMatchCacheHit() {
+        // ignored
+    }
+
+    /**
+     * Register a topic match not present in the subscriptions match cache. Ignored by default.
+     */
+    default void addSubscriptionsMatchCacheMiss() {
+        // ignored
+    }
+
+    /**
+     * Register a compaction of the subscriptions tree. Ignored by default.
+     * @param reclaimedNodes The number of nodes removed by the compaction.
+     */
+    default void addSubscriptionsCompaction(int reclaimedNodes) {
+        // ignored
+    }
+
+    /**
+     * Notify the metrics provider about the statistics of the subscriptions tree, that are kept updated and can be
+     * read every time the metrics are collected.
+     * @param statistics The statistics of the subscriptions tree.
+     */
+    default void initSubscriptionsStatistics(SubscriptionsStatistics statistics) {
+        // ignored
+    }
 }
@@ -67,4 +67,19 @@ public class MetricsProviderNull extends AbstractMetricsProvider {
         // ignored
     }
 
+    @Override
+    public void addSubscriptionsMatchCacheHit() {
+        // ignored
+    }
+
+    @Override
+    public void addSubscriptionsMatchCacheMiss() {
+        // ignored
+    }
+
+    @Override
+    public void initSubscriptionsStatistics(SubscriptionsStatistics statistics) {
+        // ignored
+    }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.metrics;
+
+import java.util.Map;
+
+/**
+ * Statistics of the subscriptions tree, kept updated on every change so that reading them doesn't need to walk the
+ * tree.
+ */
+public interface SubscriptionsStatistics {
+
+    /**
+     * @return the number of non shared subscriptions.
+     */
+    long subscriptions();
+
+    /**
+     * @return the number of members of all the shared subscription groups.
+     */
+    long sharedSubscriptions();
+
+    /**
+     * @return the number of shared subscription groups.
+     */
+    long sharedGroups();
+
+    /**
+     * @return the number of nodes of the tree, excluding the root.
+     */
+    long nodes();
+
+    /**
+     * @return the number of levels of the deepest topic filter with at least a subscription, 0 if there are none.
+     */
+    int maxDepth();
+
+    /**
+     * @return the number of nodes removed from the tree since the start, because left without subscriptions, by
+     * the removals and by the compactions.
+     */
+    long reclaimedNodes();
+
+    /**
+     * @return the number of nodes removed from the tree by the compactions since the start.
+     */
+    long compactionReclaimedNodes();
+
+    /**
+     * @return the number of subscriptions, shared or not, for each first level of the topic filters. Empty if the
+     * counters by first level are not enabled.
+     */
+    Map<String, Long> subscriptionsByFirstLevel();
+}
@@ -13,8 +13,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Clock;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class H2Builder {
 
@@ -24,6 +26,8 @@ public class H2Builder {
     private final int autosaveInterval; // in seconds
     private final ScheduledExecutorService scheduler;
     private final Clock clock;
+    private Executor commitExecutor = Runnable::run;
+    private final AtomicBoolean committing = new AtomicBoolean();
     private MVStore mvStore;
 
     public H2Builder(ScheduledExecutorService scheduler, Path storePath, int autosaveInterval, Clock clock) {
@@ -33,6 +37,15 @@ public class H2Builder {
         this.clock = clock;
     }
 
+    /**
+     * Runs the periodic commits on the executor instead of the scheduler thread, a commit is skipped while the
+     * previous one is still running.
+     * */
+    public H2Builder commitExecutor(Executor commitExecutor) {
+        this.commitExecutor = commitExecutor;
+        return this;
+    }
+
     @SuppressWarnings("FutureReturnValueIgnored")
     public H2Builder initStore() {
         LOG.info("Initializing H2 store to {}", storePath);
@@ -55,8 +68,18 @@ public class H2Builder {
 
         LOG.trace("Scheduling H2 commit task");
         scheduler.scheduleWithFixedDelay(() -> {
-            LOG.trace("Committing to H2");
-            mvStore.commit();
+            if (!committing.compareAndSet(false, true)) {
+                LOG.debug("Previous H2 commit still running, skipped");
+                return;
+            }
+            commitExecutor.execute(() -> {
+                try {
+                    LOG.trace("Committing to H2");
+                    mvStore.commit();
+                } finally {
+                    committing.set(false);
+                }
+            });
         }, autosaveInterval, autosaveInterval, TimeUnit.SECONDS);
         return this;
     }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProviderNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CpuAffinityTest {
+
+    @Test
+    public void givenNoGroupsWhenParsedThenNoLoopIsPinned() {
+        assertEquals(Collections.emptyList(), CpuAffinity.parseGroups(null));
+        assertEquals(Collections.emptyList(), CpuAffinity.parseGroups(" "));
+    }
+
+    @Test
+    public void givenGroupsOfCpuListsWhenParsedThenEachGroupIsKept() {
+        assertEquals(Arrays.asList("0-3", "4,6,8-9", "10"), CpuAffinity.parseGroups("0-3; 4,6,8-9 ;10"));
+    }
+
+    @Test
+    public void givenAMalformedGroupWhenParsedThenItIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> CpuAffinity.parseGroups("0-3;;4-7"));
+        assertThrows(IllegalArgumentException.class, () -> CpuAffinity.parseGroups("0-3;cpu4"));
+    }
+
+    @Test
+    public void givenCpusThatDontExistWhenPinningThenTheThreadIsLeftUnpinned() {
+        // taskset rejects them, or isn't available at all, either way the broker keeps running
+        assertFalse(CpuAffinity.pinCurrentThread("99999"));
+    }
+
+    @Test
+    public void givenZeroSessionLoopsWhenTheGroupIsCreatedThenItIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionEventLoopGroup(
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 16, SessionCommandQueue.WaitStrategy.PARK, 0, Collections.emptyList(),
+            new MetricsProviderNull()));
+    }
+}
@@ -21,14 +21,31 @@ import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
 import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
 import io.netty.handler.codec.mqtt.MqttVersion;
 import io.netty.handler.ssl.SslHandler;
 import org.junit.jupiter.api.AfterEach;
@@ -42,8 +59,13 @@ import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.ScheduledExecutorService;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -58,6 +80,7 @@ import io.moquette.metrics.MetricsProviderNull;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.*;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -252,6 +275,116 @@ public class MQTTConnectionConnectTest {
         assertTrue(channel.isOpen(), "Connection is accepted and therefore must remain open");
     }
 
+    @Test
+    public void givenAnAuthenticationExecutorWhenValidCredentialsThenAuthenticatesOnItAndAcceptsTheConnection() throws ExecutionException, InterruptedException {
+        final ExecutorService authenticationExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "authenticator"));
+        final AtomicReference<String> authenticatedBy = new AtomicReference<>();
+        final IAuthenticator recordingAuthenticator = (clientId, username, password) -> {
+            authenticatedBy.set(Thread.currentThread().getName());
+            return mockAuthenticator.checkValid(clientId, username, password);
+        };
+        sut = new MQTTConnection(channel, CONFIG, recordingAuthenticator, authenticationExecutor, sessionRegistry,
+            postOffice);
+        MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID)
+            .username(TEST_USER).password(TEST_PWD).build();
+
+        try {
+            // Exercise
+            sut.processConnect(msg).completableFuture().get();
+        } finally {
+            authenticationExecutor.shutdown();
+        }
+
+        // Verify
+        assertEquals("authenticator", authenticatedBy.get());
+        assertEqualsConnAck(CONNECTION_ACCEPTED, channel.readOutbound());
+        assertTrue(channel.isOpen(), "Connection is accepted and therefore must remain open");
+        // the reads are resumed by the I/O thread
+        channel.runPendingTasks();
+        assertTrue(channel.config().isAutoRead(), "The packets that follow the CONNECT must be read");
+    }
+
+    @Test
+    public void givenAnAuthenticationExecutorWhenSubscribeIsReadInTheSameBufferOfConnectThenItIsHandledOnceConnected() throws InterruptedException {
+        final ExecutorService authenticationExecutor = Executors.newSingleThreadExecutor();
+        final MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(CONFIG, mockAuthenticator,
+            authenticationExecutor, sessionRegistry, postOffice);
+        final EventLoopGroup ioLoop = new DefaultEventLoopGroup(1);
+        final LocalAddress address = new LocalAddress("connect-and-subscribe");
+        final BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<>();
+        try {
+            new ServerBootstrap().group(ioLoop).channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE,
+                            new NewNettyMQTTHandler(connectionFactory));
+                    }
+                })
+                .bind(address).sync();
+            final Channel client = new Bootstrap().group(ioLoop).channel(LocalChannel.class)
+                .handler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), new SimpleChannelInboundHandler<MqttMessage>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                                received.add(msg);
+                            }
+                        });
+                    }
+                })
+                .connect(address).sync().channel();
+            final MqttConnectMessage connect = connMsg.clientId(FAKE_CLIENT_ID)
+                .username(TEST_USER).password(TEST_PWD).build();
+            final MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+                .messageId(1)
+                .addSubscription(MqttQoS.AT_MOST_ONCE, "sensors/temperature")
+                .build();
+
+            // Exercise, the SUBSCRIBE is decoded by the same read of the CONNECT, while it's authenticated
+            client.writeAndFlush(Unpooled.wrappedBuffer(encode(connect), encode(subscribe))).sync();
+
+            // Verify
+            final MqttMessage connAck = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(connAck, "CONNACK not received");
+            assertEquals(MqttMessageType.CONNACK, connAck.fixedHeader().messageType());
+            final MqttMessage subAck = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(subAck, "SUBACK not received, the SUBSCRIBE was handled before the client connected");
+            assertEquals(MqttMessageType.SUBACK, subAck.fixedHeader().messageType());
+            assertTrue(client.isOpen(), "Connection is accepted and therefore must remain open");
+        } finally {
+            ioLoop.shutdownGracefully();
+            authenticationExecutor.shutdown();
+        }
+    }
+
+    private static ByteBuf encode(MqttMessage msg) {
+        final EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(msg);
+        return encoder.readOutbound();
+    }
+
+    @Test
+    public void givenAnAuthenticationExecutorWhenInvalidCredentialsThenRejectsTheConnection() throws ExecutionException, InterruptedException {
+        final ExecutorService authenticationExecutor = Executors.newSingleThreadExecutor();
+        sut = new MQTTConnection(channel, CONFIG, mockAuthenticator, authenticationExecutor, sessionRegistry,
+            postOffice);
+        MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID)
+            .username(EVIL_TEST_USER).password(EVIL_TEST_PWD).build();
+
+        try {
+            // Exercise
+            sut.processConnect(msg).completableFuture().get();
+        } finally {
+            authenticationExecutor.shutdown();
+        }
+
+        // Verify
+        assertEqualsConnAck(CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, channel.readOutbound());
+        assertFalse(channel.isOpen(), "Connection must be closed by the broker");
+    }
+
     @Test
     public void noPasswdAuthentication() {
         MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID)
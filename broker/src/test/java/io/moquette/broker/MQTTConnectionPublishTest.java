@@ -19,6 +19,7 @@ import io.moquette.BrokerConstants;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.persistence.MemorySessionsRepository;
 import io.moquette.persistence.MemorySubscriptionsRepository;
@@ -129,7 +130,7 @@ public class MQTTConnectionPublishTest {
             // mock the publish forwarder method
             @Override
             CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, String username, String clientID,
-                                                        MqttPublishMessage msg,
+                                                        Topic topic, MqttPublishMessage msg,
                                                         Instant messageExpiry) {
                 forwardedPublishes.add(msg);
                 return null;
@@ -137,13 +138,13 @@ public class MQTTConnectionPublishTest {
 
             @Override
             RoutingResults receivedPublishQos1(MQTTConnection connection, String username, int messageID,
-                                               MqttPublishMessage msg, Instant messageExpiry) {
+                                               Topic topic, MqttPublishMessage msg, Instant messageExpiry) {
                 forwardedPublishes.add(msg);
                 return null;
             }
 
             @Override
-            RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username,
+            RoutingResults receivedPublishQos2(MQTTConnection connection, Topic topic, MqttPublishMessage msg, String username,
                                                Instant messageExpiry) {
                 forwardedPublishes.add(msg);
                 return null;
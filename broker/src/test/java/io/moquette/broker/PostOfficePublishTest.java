@@ -19,6 +19,7 @@ import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.SubscriptionsByLoop;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.buffer.ByteBuf;
@@ -36,6 +37,7 @@ import java.nio.charset.Charset;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.IntPredicate;
 
 import static io.moquette.broker.MQTTConnectionPublishTest.memorySessionsRepository;
 import static io.moquette.BrokerConstants.NO_BUFFER_FLUSH;
@@ -74,6 +76,7 @@ public class PostOfficePublishTest {
     private MemoryRetainedRepository retainedRepository;
     private MemoryQueueRepository queueRepository;
     private ScheduledExecutorService scheduler;
+    private SessionEventLoopGroup loopsGroup;
 
     @BeforeEach
     public void setUp() {
@@ -101,17 +104,26 @@ public class PostOfficePublishTest {
     }
 
     private void initPostOfficeAndSubsystems() {
+        initPostOfficeAndSubsystems(false);
+    }
+
+    private void initPostOfficeAndSubsystems(boolean subscriptionsBySessionLoop) {
         scheduler = Executors.newScheduledThreadPool(1);
-        subscriptions = new CTrieSubscriptionDirectory();
+        final MetricsProvider mp = new MetricsProviderNull();
+        loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024,
+            SessionCommandQueue.WaitStrategy.PARK, 2, Collections.emptyList(), mp);
+        CTrieSubscriptionDirectory subscriptionsDirectory = new CTrieSubscriptionDirectory();
+        if (subscriptionsBySessionLoop) {
+            subscriptionsDirectory.groupBySessionLoop(loopsGroup.getEventLoopCount(), loopsGroup::targetQueueOrdinal);
+        }
+        subscriptions = subscriptionsDirectory;
         ISubscriptionsRepository subscriptionsRepository = new MemorySubscriptionsRepository();
         subscriptions.init(subscriptionsRepository);
         retainedRepository = new MemoryRetainedRepository();
         queueRepository = new MemoryQueueRepository();
 
-        final MetricsProvider mp = new MetricsProviderNull();
         final PermitAllAuthorizatorPolicy authorizatorPolicy = new PermitAllAuthorizatorPolicy();
         final Authorizator permitAll = new Authorizator(authorizatorPolicy);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024, mp);
         ISessionsRepository fakeSessionRepo = memorySessionsRepository();
         sessionRegistry = new SessionRegistry(subscriptions, fakeSessionRepo, queueRepository, permitAll, scheduler, loopsGroup, mp);
         sut = new PostOffice(subscriptions, retainedRepository, sessionRegistry, fakeSessionRepo,
@@ -242,6 +254,266 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Hello world!");
     }
 
+    @Test
+    public void givenParallelFanoutWhenPublishToMultipleSubscribersThenAllReceiveIt() throws ExecutionException, InterruptedException, TimeoutException {
+        sut.setParallelFanoutThreshold(1);
+        final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2, SUBSCRIBER_ID));
+        mockAuthenticator = new MockAuthenticator(clientIds, singletonMap(TEST_USER, TEST_PWD));
+        final List<EmbeddedChannel> subscriberChannels = new ArrayList<>();
+        for (String clientId : clientIds) {
+            EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+            MQTTConnection subscriberConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+            subscriberConnection.processConnect(ConnectionTestUtils.buildConnect(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+            subscribe(AT_MOST_ONCE, NEWS_TOPIC, subscriberConnection);
+            subscriberChannels.add(subscriberChannel);
+        }
+
+        // Exercise
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        for (EmbeddedChannel subscriberChannel : subscriberChannels) {
+            ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello world!");
+        }
+    }
+
+    @Test
+    public void givenParallelFanoutWhenPublishToMultipleSubscribersThenThePublishingThreadDoesNotWaitTheRouting() throws Exception {
+        final ExecutorService fanoutExecutor = Executors.newSingleThreadExecutor();
+        sut.setParallelFanoutThreshold(1, fanoutExecutor);
+        final List<EmbeddedChannel> subscriberChannels = connectSubscribers(NEWS_TOPIC,
+            FAKE_CLIENT_ID, FAKE_CLIENT_ID2, SUBSCRIBER_ID);
+        // the fan-out executor is kept busy, so the publish is routed only once it's released
+        final long fanoutDelayMillis = 500;
+        final CountDownLatch fanoutReleased = new CountDownLatch(1);
+        fanoutExecutor.execute(() -> awaitUninterruptibly(fanoutReleased));
+
+        // Exercise
+        final long publishStart = System.nanoTime();
+        final CompletableFuture<Void> published = sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            publishMessage(NEWS_TOPIC, "Hello world!"), Instant.MAX);
+        final long publishingThreadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - publishStart);
+        Thread.sleep(fanoutDelayMillis);
+        assertFalse(published.isDone(), "The publish must be routed by the fan-out executor");
+        fanoutReleased.countDown();
+        published.get(5, TimeUnit.SECONDS);
+        final long routingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - publishStart);
+
+        // Verify
+        assertTrue(publishingThreadMillis < fanoutDelayMillis && routingMillis >= fanoutDelayMillis,
+            "The publishing thread was held " + publishingThreadMillis + " ms of the " + routingMillis +
+                " ms taken to route the publish");
+        for (EmbeddedChannel subscriberChannel : subscriberChannels) {
+            ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello world!");
+        }
+        fanoutExecutor.shutdown();
+    }
+
+    @Test
+    public void givenALargeFanoutBeingRoutedWhenTheSamePublisherPublishesASmallOneThenItIsRoutedAfter() throws Exception {
+        final ExecutorService fanoutExecutor = Executors.newSingleThreadExecutor();
+        sut.setParallelFanoutThreshold(2, fanoutExecutor);
+        final EmbeddedChannel subscriberChannel = connectSubscribers(NEWS_TOPIC, SUBSCRIBER_ID, FAKE_CLIENT_ID2).get(0);
+        final String weatherTopic = "/weather";
+        subscriptions.add(new Subscription(SUBSCRIBER_ID, Topic.asTopic(weatherTopic),
+            MqttSubscriptionOption.onlyFromQos(AT_MOST_ONCE)));
+        final CountDownLatch fanoutReleased = new CountDownLatch(1);
+        fanoutExecutor.execute(() -> awaitUninterruptibly(fanoutReleased));
+
+        // Exercise
+        final CompletableFuture<Void> largePublished = sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            publishMessage(NEWS_TOPIC, "first"), Instant.MAX);
+        final CompletableFuture<Void> smallPublished = sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            publishMessage(weatherTopic, "second"), Instant.MAX);
+        assertFalse(smallPublished.isDone(), "The publish must wait the large fan-out of the same publisher");
+        fanoutReleased.countDown();
+        CompletableFuture.allOf(largePublished, smallPublished).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "first");
+        ConnectionTestUtils.verifyReceivePublish(subscriberChannel, weatherTopic, "second");
+        fanoutExecutor.shutdown();
+    }
+
+    private List<EmbeddedChannel> connectSubscribers(String topic, String... clientIds) throws Exception {
+        mockAuthenticator = new MockAuthenticator(new HashSet<>(Arrays.asList(clientIds)),
+            singletonMap(TEST_USER, TEST_PWD));
+        final List<EmbeddedChannel> subscriberChannels = new ArrayList<>();
+        for (String clientId : clientIds) {
+            EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+            MQTTConnection subscriberConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+            subscriberConnection.processConnect(ConnectionTestUtils.buildConnect(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+            subscribe(AT_MOST_ONCE, topic, subscriberConnection);
+            subscriberChannels.add(subscriberChannel);
+        }
+        return subscriberChannels;
+    }
+
+    private static MqttPublishMessage publishMessage(String topic, String content) {
+        return MqttMessageBuilders.publish()
+            .payload(Unpooled.copiedBuffer(content, Charset.defaultCharset()))
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .retained(false)
+            .topicName(topic).build();
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void givenBatchesGroupedBySessionLoopWhenTheCollectorAppendsToThemThenTheMatchedBatchesAreNotModified() {
+        tearDown();
+        initPostOfficeAndSubsystems(true);
+        final int subscribersLoop = loopsGroup.targetQueueOrdinal(SUBSCRIBER_ID);
+        subscriptions.add(new Subscription(SUBSCRIBER_ID, Topic.asTopic(NEWS_TOPIC),
+            MqttSubscriptionOption.onlyFromQos(AT_MOST_ONCE)));
+        final SubscriptionsByLoop matching = subscriptions.matchQosSharpeningBySessionLoop(Topic.asTopic(NEWS_TOPIC));
+        final String publisherId = clientOfLoop("publisher", loop -> loop != subscribersLoop);
+        final PostOffice.BatchingPublishesCollector collector = sut.new BatchingPublishesCollector(loopsGroup);
+        collector.addBatches(matching, publisherId, PostOffice.NO_FILTER);
+
+        // Exercise
+        final String lateSubscriberId = clientOfLoop("late", loop -> loop == subscribersLoop);
+        collector.add(new Subscription(lateSubscriberId, Topic.asTopic(NEWS_TOPIC),
+            MqttSubscriptionOption.onlyFromQos(AT_MOST_ONCE)));
+
+        // Verify
+        assertEquals(2, collector.subscriptions[subscribersLoop].size());
+        assertEquals(1, matching.batch(subscribersLoop).size(), "The matched batch can't be modified by the collector");
+    }
+
+    private String clientOfLoop(String prefix, IntPredicate loopCondition) {
+        for (int i = 0; ; i++) {
+            if (loopCondition.test(loopsGroup.targetQueueOrdinal(prefix + i))) {
+                return prefix + i;
+            }
+        }
+    }
+
+    @Test
+    public void givenSubscriptionsGroupedBySessionLoopWhenPublishToMultipleSubscribersThenAllReceiveIt() throws ExecutionException, InterruptedException, TimeoutException {
+        tearDown();
+        initPostOfficeAndSubsystems(true);
+        final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2, SUBSCRIBER_ID));
+        mockAuthenticator = new MockAuthenticator(clientIds, singletonMap(TEST_USER, TEST_PWD));
+        final List<EmbeddedChannel> subscriberChannels = new ArrayList<>();
+        MQTTConnection publisherConnection = null;
+        for (String clientId : clientIds) {
+            EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+            MQTTConnection subscriberConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+            subscriberConnection.processConnect(ConnectionTestUtils.buildConnect(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+            subscribe(AT_MOST_ONCE, NEWS_TOPIC, subscriberConnection);
+            subscriberChannels.add(subscriberChannel);
+            if (FAKE_CLIENT_ID.equals(clientId)) {
+                publisherConnection = subscriberConnection;
+            }
+        }
+
+        // Exercise
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(publisherConnection, TEST_USER, FAKE_CLIENT_ID,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        for (EmbeddedChannel subscriberChannel : subscriberChannels) {
+            ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello world!");
+        }
+    }
+
+    @Test
+    public void givenQos0FireAndForgetWhenPublishToMultipleSubscribersThenAllReceiveIt() throws ExecutionException, InterruptedException, TimeoutException {
+        sut.setQos0FireAndForget(true);
+        final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2, SUBSCRIBER_ID));
+        mockAuthenticator = new MockAuthenticator(clientIds, singletonMap(TEST_USER, TEST_PWD));
+        final List<EmbeddedChannel> subscriberChannels = new ArrayList<>();
+        for (String clientId : clientIds) {
+            EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+            MQTTConnection subscriberConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+            subscriberConnection.processConnect(ConnectionTestUtils.buildConnect(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+            subscribe(AT_MOST_ONCE, NEWS_TOPIC, subscriberConnection);
+            subscriberChannels.add(subscriberChannel);
+        }
+
+        // Exercise
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).get(5, TimeUnit.SECONDS);
+        // the publishes are not tracked, wait a command queued after them in each session loop
+        for (String clientId : clientIds) {
+            sut.routeCommand(clientId, "wait publish", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+        }
+
+        // Verify
+        for (EmbeddedChannel subscriberChannel : subscriberChannels) {
+            ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello world!");
+        }
+    }
+
+    @Test
+    public void givenMqtt311AndMqtt5SubscribersWhenPublishWithPropertiesThenOnlyTheMqtt5OneReceivesThem() throws ExecutionException, InterruptedException, TimeoutException {
+        mockAuthenticator = new MockAuthenticator(new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, SUBSCRIBER_ID, FAKE_CLIENT_ID2)),
+            singletonMap(TEST_USER, TEST_PWD));
+        final EmbeddedChannel mqtt311Channel = new EmbeddedChannel();
+        final MQTTConnection mqtt311Connection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, mqtt311Channel);
+        mqtt311Connection.processConnect(ConnectionTestUtils.buildConnect(SUBSCRIBER_ID)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(mqtt311Channel);
+        subscribe(AT_MOST_ONCE, NEWS_TOPIC, mqtt311Connection);
+
+        final EmbeddedChannel mqtt5Channel = new EmbeddedChannel();
+        final MQTTConnection mqtt5Connection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, mqtt5Channel);
+        mqtt5Connection.processConnect(MqttMessageBuilders.connect()
+            .clientId(FAKE_CLIENT_ID2)
+            .protocolVersion(MqttVersion.MQTT_5)
+            .build()).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(mqtt5Channel);
+        subscribe(AT_MOST_ONCE, NEWS_TOPIC, mqtt5Connection);
+
+        // Exercise
+        final MqttProperties properties = new MqttProperties();
+        properties.add(new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain"));
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world!", Charset.defaultCharset());
+        sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .properties(properties)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        final MqttPublishMessage mqtt5Publish = mqtt5Channel.flushOutbound().readOutbound();
+        assertNotNull(mqtt5Publish.variableHeader().properties()
+            .getProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value()), "MQTT5 subscriber receives the properties");
+        mqtt5Publish.release();
+        final MqttPublishMessage mqtt311Publish = mqtt311Channel.flushOutbound().readOutbound();
+        assertTrue(mqtt311Publish.variableHeader().properties().listAll().isEmpty(),
+            "MQTT 3.1.1 subscriber doesn't need any property");
+        mqtt311Publish.release();
+    }
+
     @Test
     public void testPublishWithEmptyPayloadClearRetainedStore() throws ExecutionException, InterruptedException {
         connection.processConnect(connectMessage).completableFuture().get();
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the encoding of a QoS0 PUBLISH for each of its subscribers done by MqttEncoder, with the header encoded
+ * once by {@link PublishFrames} and written with the payload by {@link PublishFrameEncoder}.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishFramesBenchmark {
+
+    private static final int SUBSCRIBERS = 1000;
+    private static final String TOPIC = "building-1/floor-3/alerts";
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private ByteBuf payload;
+    private EmbeddedChannel mqttEncoderChannel;
+    private EmbeddedChannel publishFramesChannel;
+
+    @Setup
+    public void setup() {
+        payload = Unpooled.directBuffer(payloadSize).writeZero(payloadSize);
+        mqttEncoderChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        publishFramesChannel = new EmbeddedChannel(MqttEncoder.INSTANCE, PublishFrameEncoder.INSTANCE);
+    }
+
+    private MqttPublishMessage publishMessage() {
+        return MQTTConnection.createPublishMessage(TOPIC, MqttQoS.AT_MOST_ONCE, payload.retainedDuplicate(), 0,
+            false, false);
+    }
+
+    @Benchmark
+    public void encodeEachSubscriber() {
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            mqttEncoderChannel.writeOutbound(publishMessage());
+        }
+        releaseAll(mqttEncoderChannel);
+    }
+
+    @Benchmark
+    public void encodeOncePerPublish() {
+        final PublishFrames frames = new PublishFrames();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            publishFramesChannel.writeOutbound(frames.encodeOnce(publishMessage(), false));
+        }
+        releaseAll(publishFramesChannel);
+    }
+
+    private static void releaseAll(EmbeddedChannel channel) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(PublishFramesBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PublishFramesTest {
+
+    private static final String TOPIC = "/sensors/temperature";
+
+    private static MqttPublishMessage publish(MqttQoS qos, int packetId, boolean retained, byte[] payload,
+                                              MqttProperties.MqttProperty... properties) {
+        return MQTTConnection.createPublishMessage(TOPIC, qos, Unpooled.wrappedBuffer(payload), packetId, retained,
+            false, properties);
+    }
+
+    private static byte[] payloadOf(int size) {
+        final byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'a');
+        return payload;
+    }
+
+    @Test
+    public void givenMqtt311WhenEncodeOnceThenTheFrameIsTheSameOfMqttEncoder() {
+        verifySameFrameOfMqttEncoder(new EmbeddedChannel(MqttEncoder.INSTANCE), false,
+            publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12)));
+        verifySameFrameOfMqttEncoder(new EmbeddedChannel(MqttEncoder.INSTANCE), false,
+            publish(MqttQoS.AT_LEAST_ONCE, 513, true, payloadOf(300)));
+    }
+
+    @Test
+    public void givenMqtt311WhenEncodeOnceThenThePropertiesAreNotEncoded() {
+        final MqttProperties.StringProperty contentType = new MqttProperties.StringProperty(
+            MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain");
+        verifySameFrameOfMqttEncoder(new EmbeddedChannel(MqttEncoder.INSTANCE), false,
+            publish(MqttQoS.EXACTLY_ONCE, 7, false, payloadOf(20_000), contentType));
+    }
+
+    @Test
+    public void givenMqtt5WhenEncodeOnceThenTheFrameIsTheSameOfMqttEncoder() {
+        verifySameFrameOfMqttEncoder(mqtt5EncoderChannel(), true,
+            publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12)));
+        verifySameFrameOfMqttEncoder(mqtt5EncoderChannel(), true,
+            publish(MqttQoS.AT_LEAST_ONCE, 65535, false, payloadOf(130)));
+    }
+
+    @Test
+    public void givenMqtt5PublishWithPropertiesWhenEncodeOnceThenItIsNotEncoded() {
+        final MqttProperties.StringProperty contentType = new MqttProperties.StringProperty(
+            MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain");
+        final MqttPublishMessage msg = publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12), contentType);
+
+        assertSame(msg, new PublishFrames().encodeOnce(msg, true));
+    }
+
+    @Test
+    public void givenMqtt5PublishWithUserPropertiesOrSubscriptionIdWhenEncodeOnceThenItIsNotEncoded() {
+        final MqttProperties.UserProperty userProperty = new MqttProperties.UserProperty("region", "eu");
+        final MqttPublishMessage withUserProperty = publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12), userProperty);
+        assertSame(withUserProperty, new PublishFrames().encodeOnce(withUserProperty, true));
+
+        final MqttProperties.IntegerProperty subscriptionId = new MqttProperties.IntegerProperty(
+            MqttProperties.MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), 3);
+        final MqttPublishMessage withSubscriptionId = publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12), subscriptionId);
+        assertSame(withSubscriptionId, new PublishFrames().encodeOnce(withSubscriptionId, true));
+    }
+
+    @Test
+    public void givenSubscribersOfSamePublishThenTheHeaderIsEncodedOnce() {
+        final PublishFrames sut = new PublishFrames();
+        final byte[] payload = payloadOf(12);
+
+        final PublishFrames.EncodedPublishMessage first = (PublishFrames.EncodedPublishMessage)
+            sut.encodeOnce(publish(MqttQoS.AT_MOST_ONCE, 0, false, payload), false);
+        final PublishFrames.EncodedPublishMessage second = (PublishFrames.EncodedPublishMessage)
+            sut.encodeOnce(publish(MqttQoS.AT_MOST_ONCE, 0, false, payload), false);
+        assertSame(first.encodedHeader(), second.encodedHeader());
+
+        // with packet ids the shared header is copied to patch them
+        final PublishFrames.EncodedPublishMessage qos1 = (PublishFrames.EncodedPublishMessage)
+            sut.encodeOnce(publish(MqttQoS.AT_LEAST_ONCE, 1, false, payload), false);
+        final PublishFrames.EncodedPublishMessage otherQos1 = (PublishFrames.EncodedPublishMessage)
+            sut.encodeOnce(publish(MqttQoS.AT_LEAST_ONCE, 2, false, payload), false);
+        assertNotSame(qos1.encodedHeader(), otherQos1.encodedHeader());
+    }
+
+    @Test
+    public void givenEncodedMessageWhenRetainedDuplicateThenItKeepsTheEncodedHeader() {
+        final MqttPublishMessage encoded = new PublishFrames()
+            .encodeOnce(publish(MqttQoS.AT_MOST_ONCE, 0, false, payloadOf(12)), false);
+
+        final MqttPublishMessage duplicate = encoded.retainedDuplicate();
+        assertTrue(duplicate instanceof PublishFrames.EncodedPublishMessage);
+        duplicate.release();
+        encoded.release();
+    }
+
+    @Test
+    public void givenWebSocketPipelineWhenSendEncodedPublishThenItIsWrittenInOneFrame() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new NewNettyAcceptor.ByteBufToWebSocketFrameEncoder(),
+            MqttEncoder.INSTANCE, PublishFrameEncoder.INSTANCE);
+        final PublishFrames frames = new PublishFrames();
+
+        for (MqttPublishMessage msg : Arrays.asList(publish(MqttQoS.AT_LEAST_ONCE, 1, false, payloadOf(20)),
+                                                    publish(MqttQoS.AT_MOST_ONCE, 0, false, new byte[0]))) {
+            final EmbeddedChannel mqttEncoderChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+            mqttEncoderChannel.writeOutbound(msg.retainedDuplicate());
+            final byte[] expected = readAllOutbound(mqttEncoderChannel);
+
+            channel.writeOutbound(frames.encodeOnce(msg, false));
+
+            final BinaryWebSocketFrame wsFrame = channel.readOutbound();
+            assertArrayEquals(expected, ByteBufUtil.getBytes(wsFrame.content()));
+            wsFrame.release();
+            assertNull(channel.readOutbound(), "A PUBLISH has to be sent in a single WebSocket frame");
+        }
+    }
+
+    private static EmbeddedChannel mqtt5EncoderChannel() {
+        // the version of the channel is set decoding the CONNECT
+        final EmbeddedChannel connectEncoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        connectEncoder.writeOutbound(MqttMessageBuilders.connect()
+            .clientId("client")
+            .protocolVersion(MqttVersion.MQTT_5)
+            .build());
+        final EmbeddedChannel channel = new EmbeddedChannel(new MqttDecoder(), MqttEncoder.INSTANCE);
+        channel.writeInbound((ByteBuf) connectEncoder.readOutbound());
+        channel.releaseInbound();
+        return channel;
+    }
+
+    private static void verifySameFrameOfMqttEncoder(EmbeddedChannel mqttEncoderChannel, boolean mqtt5,
+                                                     MqttPublishMessage msg) {
+        mqttEncoderChannel.writeOutbound(msg.retainedDuplicate());
+        final byte[] expected = readAllOutbound(mqttEncoderChannel);
+
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE, PublishFrameEncoder.INSTANCE);
+        channel.writeOutbound(new PublishFrames().encodeOnce(msg, mqtt5));
+        final byte[] encoded = readAllOutbound(channel);
+
+        assertArrayEquals(expected, encoded, "Frame of topic " + TOPIC + " differs from the one of MqttEncoder: "
+            + new String(encoded, StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] readAllOutbound(EmbeddedChannel channel) {
+        final ByteBuf all = Unpooled.buffer();
+        ByteBuf part;
+        while ((part = channel.readOutbound()) != null) {
+            all.writeBytes(part);
+            part.release();
+        }
+        return ByteBufUtil.getBytes(all);
+    }
+}
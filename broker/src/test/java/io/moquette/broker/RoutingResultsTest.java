@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoutingResultsTest {
+
+    private static Subscription subscriptionOf(String clientId) {
+        return new Subscription(clientId, asTopic("/news"), MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE));
+    }
+
+    @Test
+    void givenNoFailedBatchesThenIsAllSuccess() {
+        final RoutingResults sut = new RoutingResults(2, Collections.emptyList(), CompletableFuture.completedFuture(null));
+
+        assertTrue(sut.isAllSuccess());
+        assertFalse(sut.isAllFailed());
+        assertThat(sut.failedClientIds()).isEmpty();
+    }
+
+    @Test
+    void givenSomeFailedBatchesThenFailedClientIdsAreTheOnesOfThoseBatches() {
+        final List<List<Subscription>> failedBatches = Arrays.asList(
+            Arrays.asList(subscriptionOf("client1"), subscriptionOf("client2")),
+            Collections.singletonList(subscriptionOf("client3")));
+        final RoutingResults sut = new RoutingResults(1, failedBatches, CompletableFuture.completedFuture(null));
+
+        assertFalse(sut.isAllSuccess());
+        assertFalse(sut.isAllFailed());
+        assertThat(sut.failedClientIds()).containsExactly("client1", "client2", "client3");
+    }
+
+    @Test
+    void givenOnlyFailedBatchesThenIsAllFailed() {
+        final List<List<Subscription>> failedBatches = Collections.singletonList(
+            Collections.singletonList(subscriptionOf("client1")));
+        final RoutingResults sut = new RoutingResults(0, failedBatches, CompletableFuture.completedFuture(null));
+
+        assertTrue(sut.isAllFailed());
+    }
+
+    @Test
+    void givenPreroutingErrorThenNothingFailed() {
+        final RoutingResults sut = RoutingResults.preroutingError();
+
+        assertTrue(sut.isAllSuccess());
+        assertFalse(sut.isAllFailed());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionCommandQueueTest {
+
+    @Test
+    public void givenAFullQueueWhenOfferedThenTheCommandIsRejectedUntilOneIsConsumed() {
+        final SessionCommandQueue<String> sut = new SessionCommandQueue<>(3, SessionCommandQueue.WaitStrategy.PARK);
+        assertTrue(sut.offer("a"));
+        assertTrue(sut.offer("b"));
+        assertTrue(sut.offer("c"));
+
+        assertFalse(sut.offer("d"), "capacity is the one configured, not the power of two of the ring");
+        assertEquals(3, sut.size());
+
+        assertEquals("a", sut.poll());
+        assertTrue(sut.offer("d"));
+        assertEquals("b", sut.poll());
+        assertEquals("c", sut.poll());
+        assertEquals("d", sut.poll());
+        assertNull(sut.poll());
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void givenQueuedCommandsWhenDrainedThenAtMostTheLimitIsConsumedInOrder() {
+        final SessionCommandQueue<String> sut = new SessionCommandQueue<>(8, SessionCommandQueue.WaitStrategy.PARK);
+        for (String command : Arrays.asList("a", "b", "c", "d", "e")) {
+            sut.offer(command);
+        }
+
+        final List<String> drained = new ArrayList<>();
+        assertEquals(3, sut.drain(drained::add, 3));
+        assertEquals(Arrays.asList("a", "b", "c"), drained);
+        assertEquals(2, sut.drain(drained::add, 3));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), drained);
+    }
+
+    @Test
+    public void givenAnUnknownWaitStrategyWhenParsedThenItIsRejected() {
+        assertEquals(SessionCommandQueue.WaitStrategy.SPIN_THEN_PARK,
+            SessionCommandQueue.WaitStrategy.forName("spin_then_park"));
+        assertThrows(IllegalArgumentException.class, () -> SessionCommandQueue.WaitStrategy.forName("sleep"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SessionCommandQueue.WaitStrategy.class)
+    public void givenManyProducersWhenTheConsumerTakesThenEveryCommandIsReceivedInTheOrderOfItsProducer(
+            SessionCommandQueue.WaitStrategy waitStrategy) throws InterruptedException {
+        final int producers = 4;
+        final int commandsPerProducer = 20_000;
+        final SessionCommandQueue<int[]> sut = new SessionCommandQueue<>(64, waitStrategy);
+
+        final List<Thread> producerThreads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < commandsPerProducer; i++) {
+                    final int[] command = {producer, i};
+                    while (!sut.offer(command)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            producerThreads.add(thread);
+        }
+
+        final int[] lastByProducer = new int[producers];
+        Arrays.fill(lastByProducer, -1);
+        for (int received = 0; received < producers * commandsPerProducer; received++) {
+            final int[] command = sut.take();
+            assertEquals(lastByProducer[command[0]] + 1, command[1], "commands of a producer are kept in order");
+            lastByProducer[command[0]] = command[1];
+        }
+        for (Thread thread : producerThreads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        assertTrue(sut.isEmpty());
+    }
+
+    @ParameterizedTest
+    @EnumSource(SessionCommandQueue.WaitStrategy.class)
+    public void givenAnEmptyQueueWhenTheWaitingConsumerIsInterruptedThenTakeThrows(
+            SessionCommandQueue.WaitStrategy waitStrategy) {
+        final SessionCommandQueue<String> sut = new SessionCommandQueue<>(4, waitStrategy);
+        Thread.currentThread().interrupt();
+
+        assertThrows(InterruptedException.class, sut::take);
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionCommandTest {
+
+    private final AtomicReference<Throwable> handledFailure = new AtomicReference<>();
+
+    @Test
+    public void givenTheFutureRequestedBeforeExecutionWhenTheCommandCompletesThenTheFutureIsCompleted() throws Exception {
+        final SessionCommand sut = new SessionCommand("client", () -> null);
+        final CompletableFuture<String> future = sut.completableFuture();
+        assertFalse(future.isDone());
+
+        sut.execute((cmd, error) -> handledFailure.set(error));
+
+        assertEquals("client", future.get());
+        assertNull(handledFailure.get());
+    }
+
+    @Test
+    public void givenTheFutureRequestedAfterExecutionThenItIsAlreadyCompleted() throws Exception {
+        final SessionCommand sut = new SessionCommand("client", () -> null);
+        sut.execute((cmd, error) -> handledFailure.set(error));
+
+        final CompletableFuture<String> future = sut.completableFuture();
+        assertEquals("client", future.get());
+        assertSame(future, sut.completableFuture(), "the future is created once");
+    }
+
+    @Test
+    public void givenAFailingCommandWhenExecutedThenTheErrorGoesToTheHandlerAndToTheFuture() {
+        final RuntimeException boom = new RuntimeException("boom");
+        final SessionCommand sut = new SessionCommand("client", () -> {
+            throw boom;
+        });
+        final CompletableFuture<String> requestedBefore = sut.completableFuture();
+
+        sut.execute((cmd, error) -> handledFailure.set(error));
+
+        assertSame(boom, handledFailure.get());
+        assertTrue(requestedBefore.isCompletedExceptionally());
+        final ExecutionException ex = assertThrows(ExecutionException.class, () -> sut.completableFuture().get());
+        assertSame(boom, ex.getCause());
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProviderNull;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionEventLoopGroupTest {
+
+    private static final double[] UNBALANCED = {1.0, 0.0};
+
+    private SessionEventLoopGroup sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024,
+            SessionCommandQueue.WaitStrategy.PARK, 2, Collections.emptyList(), new MetricsProviderNull());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sut.terminate();
+    }
+
+    private List<String> clientsOwnedBy(int loop, int count) {
+        final List<String> clients = new ArrayList<>();
+        for (int i = 0; clients.size() < count; i++) {
+            if (sut.targetQueueOrdinal("client" + i) == loop) {
+                clients.add("client" + i);
+            }
+        }
+        return clients;
+    }
+
+    private long ownedBy(int loop, List<String> clients) {
+        return clients.stream().filter(clientId -> sut.targetQueueOrdinal(clientId) == loop).count();
+    }
+
+    private static Runnable awaiting(CountDownLatch latch) {
+        return () -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    /**
+     * Migrates the session leaving a command for it queued on its previous loop, that forwards it once the
+     * returned latch is released.
+     * */
+    private CountDownLatch migrateWithQueuedCommand(String clientId, List<String> executed) {
+        final CountDownLatch migrationBlocker = new CountDownLatch(1);
+        final CountDownLatch forwardingBlocker = new CountDownLatch(1);
+        sut.routeFireAndForget(0, "migration blocker", awaiting(migrationBlocker));
+        assertEquals(1, sut.rebalance(Collections.singletonList(clientId), id -> true, UNBALANCED));
+        sut.routeFireAndForget(0, "forwarding blocker", awaiting(forwardingBlocker));
+        // queued as [migration blocker, migration, forwarding blocker, queued command]
+        assertTrue(sut.routeCommand(clientId, "queued command", () -> {
+            executed.add("queued command");
+            return null;
+        }).isSuccess());
+
+        migrationBlocker.countDown();
+        Awaitility.await("the session migrates")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> sut.targetQueueOrdinal(clientId) == 1);
+        return forwardingBlocker;
+    }
+
+    @Test
+    public void givenUnbalancedLoopsWhenRebalanceThenDisconnectedSessionsMigrateToTheLeastLoaded() {
+        final List<String> clients = clientsOwnedBy(0, 10);
+
+        final int migrations = sut.rebalance(clients, clientId -> true, UNBALANCED);
+
+        // half the unbalance is moved
+        assertEquals(5, migrations);
+        Awaitility.await("the migrations are executed by the most loaded loop")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> ownedBy(1, clients) == migrations);
+        assertTrue(sut.hasMigratedSessions());
+    }
+
+    @Test
+    public void givenBalancedLoopsWhenRebalanceThenNoSessionMigrates() {
+        final List<String> clients = clientsOwnedBy(0, 10);
+
+        assertEquals(0, sut.rebalance(clients, clientId -> true, new double[] {0.5, 0.4}));
+    }
+
+    @Test
+    public void givenMigrationDisabledWhenRebalanceThenNoSessionMigrates() {
+        final List<String> clients = clientsOwnedBy(0, 10);
+        sut.disableMigration();
+
+        assertEquals(0, sut.rebalance(clients, clientId -> true, UNBALANCED));
+    }
+
+    @Test
+    public void givenASessionReconnectedBeforeItsMigrationThenItStaysOnItsLoop() throws InterruptedException {
+        final List<String> clients = clientsOwnedBy(0, 2);
+
+        assertEquals(1, sut.rebalance(clients, clientId -> false, UNBALANCED));
+
+        // executed after the migration by the same loop
+        final CountDownLatch migrationDone = new CountDownLatch(1);
+        sut.routeFireAndForget(0, "after migration", migrationDone::countDown);
+        assertTrue(migrationDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, ownedBy(0, clients));
+    }
+
+    @Test
+    public void givenACommandQueuedBeforeTheMigrationOfItsSessionThenItIsExecutedByTheNewOwner() throws InterruptedException {
+        final String clientId = clientsOwnedBy(0, 1).get(0);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        sut.routeFireAndForget(0, "blocker", () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // queued as [blocker, migration, command]
+        assertEquals(1, sut.rebalance(Collections.singletonList(clientId), id -> true, UNBALANCED));
+        final AtomicReference<String> executedBy = new AtomicReference<>();
+        final PostOffice.RouteResult result = sut.routeCommand(clientId, "command", () -> {
+            executedBy.set(Thread.currentThread().getName());
+            return null;
+        });
+        assertTrue(result.isSuccess());
+
+        blocker.countDown();
+
+        Awaitility.await("the command is forwarded to the new owner of the session")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> executedBy.get() != null);
+        assertEquals(sut.sessionLoopThreadName(clientId), executedBy.get());
+        assertEquals(1, sut.targetQueueOrdinal(clientId));
+    }
+
+    @Test
+    public void givenACommandStillQueuedOnThePreviousLoopWhenANewerIsRoutedToTheNewOwnerThenTheyAreExecutedInOrder() {
+        final String clientId = clientsOwnedBy(0, 1).get(0);
+        final List<String> executed = new CopyOnWriteArrayList<>();
+        final CountDownLatch forwardingBlocker = migrateWithQueuedCommand(clientId, executed);
+
+        // Exercise, routed straight to the new owner before the previous loop forwards the queued command
+        assertTrue(sut.routeCommand(clientId, "newer command", () -> {
+            executed.add("newer command");
+            return null;
+        }).isSuccess());
+        forwardingBlocker.countDown();
+
+        // Verify
+        Awaitility.await("both the commands are executed")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> executed.size() == 2);
+        assertEquals(Arrays.asList("queued command", "newer command"), executed);
+    }
+
+    @Test
+    public void givenACommandStillQueuedOnThePreviousLoopWhenAPublishIsDeliveredByTheNewOwnerThenItIsHeldUntilTheCommandIsExecuted() {
+        final String clientId = clientsOwnedBy(0, 1).get(0);
+        final List<String> executed = new CopyOnWriteArrayList<>();
+        final CountDownLatch forwardingBlocker = migrateWithQueuedCommand(clientId, executed);
+
+        // Exercise, a publish batch grouped by the new owner of the session
+        final CountDownLatch delivered = new CountDownLatch(1);
+        sut.routeFireAndForget(1, "batched PUB", () -> {
+            final Runnable delivery = () -> executed.add("publish");
+            if (!sut.holdIfMigrating(clientId, delivery)) {
+                delivery.run();
+            }
+            delivered.countDown();
+        });
+
+        // Verify
+        Awaitility.await("the batch is executed")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> delivered.getCount() == 0);
+        assertTrue(executed.isEmpty(), "The publish must wait for the queued command");
+        forwardingBlocker.countDown();
+        Awaitility.await("the held publish is delivered")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> executed.size() == 2);
+        assertEquals(Arrays.asList("queued command", "publish"), executed);
+    }
+
+    @Test
+    public void givenAMigratedSessionWhenItIsRemovedThenItReturnsToTheLoopOfTheRing() {
+        final String clientId = clientsOwnedBy(0, 1).get(0);
+        assertEquals(1, sut.rebalance(Collections.singletonList(clientId), id -> true, UNBALANCED));
+        Awaitility.await("the session migrates")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> sut.targetQueueOrdinal(clientId) == 1);
+
+        sut.releaseMigration(clientId, id -> true);
+
+        Awaitility.await("the migration of the removed session is released")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> sut.targetQueueOrdinal(clientId) == 0);
+    }
+
+    @Test
+    public void givenAMigratedSessionReusedByAConnectedOneWhenTheOldIsRemovedThenItStaysOnItsLoop() throws InterruptedException {
+        final String clientId = clientsOwnedBy(0, 1).get(0);
+        assertEquals(1, sut.rebalance(Collections.singletonList(clientId), id -> true, UNBALANCED));
+        Awaitility.await("the session migrates")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> sut.targetQueueOrdinal(clientId) == 1);
+
+        sut.releaseMigration(clientId, id -> false);
+
+        // executed after the release by the same loop
+        final CountDownLatch releaseDone = new CountDownLatch(1);
+        sut.routeFireAndForget(1, "after release", releaseDone::countDown);
+        assertTrue(releaseDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, sut.targetQueueOrdinal(clientId));
+    }
+}
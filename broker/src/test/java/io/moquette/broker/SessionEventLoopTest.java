@@ -17,35 +17,42 @@
 package io.moquette.broker;
 
 import io.moquette.metrics.MetricsProviderNull;
+import io.netty.channel.Channel;
 import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Test;
 
 import java.time.Duration;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 
 class SessionEventLoopTest {
 
     @Test
     public void givenACommandThatThrowsWhenProcessedThenTheSharedSessionLoopKeepsRunning() {
-        final BlockingQueue<FutureTask<String>> queue = new LinkedBlockingQueue<>();
+        final SessionCommandQueue<SessionCommand> queue =
+            new SessionCommandQueue<>(16, SessionCommandQueue.WaitStrategy.PARK);
         final SessionEventLoop sut = new SessionEventLoop(queue, 0, new MetricsProviderNull());
         sut.setDaemon(true);
         sut.start();
         try {
             // A command that throws (as a malformed packet's handler could).
-            queue.add(new FutureTask<>(() -> {
+            queue.offer(new SessionCommand("client", () -> {
                 throw new RuntimeException("boom");
             }));
 
             // A subsequent command bound to the SAME loop must still be executed.
             final AtomicBoolean executed = new AtomicBoolean(false);
-            queue.add(new FutureTask<>(() -> {
+            queue.offer(new SessionCommand("client", () -> {
                 executed.set(true);
-                return "ok";
+                return null;
             }));
 
             Awaitility.await("the session loop keeps processing commands after one of them throws")
@@ -60,4 +67,57 @@ class SessionEventLoopTest {
             }
         }
     }
+
+    @Test
+    public void givenABatchOfCommandsWritingTheSameChannelWhenProcessedThenTheChannelIsFlushedOnce() throws InterruptedException {
+        final SessionCommandQueue<SessionCommand> queue =
+            new SessionCommandQueue<>(16, SessionCommandQueue.WaitStrategy.PARK);
+        final Channel channel = mock(Channel.class);
+        final AtomicInteger deferredFlushes = new AtomicInteger();
+        // queued before the loop starts, so that they are drained in the same batch
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new SessionCommand("client", () -> {
+                if (SessionEventLoop.flushAtEndOfBatch(channel)) {
+                    deferredFlushes.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        final SessionEventLoop sut = new SessionEventLoop(queue, 0, new MetricsProviderNull());
+        sut.setBatchSize(8);
+        sut.setDaemon(true);
+        sut.start();
+        try {
+            verify(channel, timeout(5_000).times(1)).flush();
+            assertEquals(3, deferredFlushes.get());
+        } finally {
+            sut.interrupt();
+            sut.join(TimeUnit.SECONDS.toMillis(2));
+        }
+    }
+
+    @Test
+    public void givenNoBatchingWhenACommandWritesAChannelThenTheFlushIsNotDeferred() throws InterruptedException {
+        final SessionCommandQueue<SessionCommand> queue =
+            new SessionCommandQueue<>(16, SessionCommandQueue.WaitStrategy.PARK);
+        final Channel channel = mock(Channel.class);
+        final AtomicBoolean deferred = new AtomicBoolean(true);
+        final SessionCommand command = new SessionCommand("client", () -> {
+            deferred.set(SessionEventLoop.flushAtEndOfBatch(channel));
+            return null;
+        });
+        queue.offer(command);
+        final SessionEventLoop sut = new SessionEventLoop(queue, 0, new MetricsProviderNull());
+        sut.setDaemon(true);
+        sut.start();
+        try {
+            Awaitility.await().atMost(Duration.ofSeconds(5)).until(() -> command.completableFuture().isDone());
+            assertFalse(deferred.get());
+            assertFalse(SessionEventLoop.flushAtEndOfBatch(channel), "threads other than the loops flush by themselves");
+            verify(channel, never()).flush();
+        } finally {
+            sut.interrupt();
+            sut.join(TimeUnit.SECONDS.toMillis(2));
+        }
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionLoopRingTest {
+
+    private static final int CLIENTS = 100_000;
+
+    @Test
+    public void givenClientsWithSimilarIdsThenTheyAreSpreadEvenlyOverTheLoops() {
+        final int loops = 8;
+        final SessionLoopRing sut = new SessionLoopRing(loops);
+        final int[] owned = new int[loops];
+        for (int i = 0; i < CLIENTS; i++) {
+            owned[sut.loopOf("sensor-" + i)]++;
+        }
+
+        final int expected = CLIENTS / loops;
+        for (int loop = 0; loop < loops; loop++) {
+            assertTrue(Math.abs(owned[loop] - expected) < expected / 4,
+                "Loop " + loop + " owns " + owned[loop] + " clients, expected about " + expected);
+        }
+    }
+
+    @Test
+    public void givenARingWithAnotherLoopThenOnlyTheClientsMovedToTheNewLoopChangeOwner() {
+        final SessionLoopRing eightLoops = new SessionLoopRing(8);
+        final SessionLoopRing nineLoops = new SessionLoopRing(9);
+        int moved = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            final String clientId = "sensor-" + i;
+            final int before = eightLoops.loopOf(clientId);
+            final int after = nineLoops.loopOf(clientId);
+            if (before != after) {
+                assertEquals(8, after, "A client can only move to the added loop");
+                moved++;
+            }
+        }
+
+        // about a ninth of the clients moves, instead of almost all of them with a modulo
+        assertTrue(moved < CLIENTS / 6, "Moved " + moved + " clients");
+    }
+
+    @Test
+    public void givenTheSameClientThenItIsAlwaysAssignedToTheSameLoop() {
+        final SessionLoopRing sut = new SessionLoopRing(4);
+        final SessionLoopRing other = new SessionLoopRing(4);
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(sut.loopOf("client" + i), other.loopOf("client" + i));
+        }
+    }
+}
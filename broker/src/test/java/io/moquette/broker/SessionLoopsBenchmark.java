@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProviderNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the publishes fanned out per millisecond by the session loops, varying their number for a fixed mix of
+ * one publisher and {@value #SUBSCRIBERS} subscribers. Each publish hands every loop the batch of its subscribers, as
+ * PostOffice does, and waits for all of them to be processed. Busy spin is left out, it needs a CPU for each loop.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionLoopsBenchmark {
+
+    private static final int SUBSCRIBERS = 100;
+    // CPU work spent on each subscriber, a stand-in for the copy and write of the message
+    private static final long WORK_PER_SUBSCRIBER = 200;
+
+    @Param({"1", "2", "4", "8"})
+    public int loops;
+
+    @Param({"park", "spin_then_park"})
+    public String waitStrategy;
+
+    private SessionEventLoopGroup loopsGroup;
+    private int[] subscribersByLoop;
+    // a client id owned by each loop
+    private String[] loopClientIds;
+
+    @Setup
+    public void setup() {
+        loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024,
+            SessionCommandQueue.WaitStrategy.forName(waitStrategy), loops,
+            Collections.emptyList(), new MetricsProviderNull());
+        subscribersByLoop = new int[loops];
+        loopClientIds = new String[loops];
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            final int loop = loopsGroup.targetQueueOrdinal("subscriber-" + i);
+            subscribersByLoop[loop]++;
+            loopClientIds[loop] = "subscriber-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        loopsGroup.terminate();
+    }
+
+    @Benchmark
+    public void fanOutPublish() throws InterruptedException {
+        final List<Integer> targetLoops = new ArrayList<>(loops);
+        for (int loop = 0; loop < loops; loop++) {
+            if (subscribersByLoop[loop] > 0) {
+                targetLoops.add(loop);
+            }
+        }
+        final CountDownLatch processed = new CountDownLatch(targetLoops.size());
+        for (int loop : targetLoops) {
+            final int subscribers = subscribersByLoop[loop];
+            final boolean routed = loopsGroup.routeFireAndForget(loop, "benchmark publish", () -> {
+                for (int i = 0; i < subscribers; i++) {
+                    Blackhole.consumeCPU(WORK_PER_SUBSCRIBER);
+                }
+                processed.countDown();
+            });
+            if (!routed) {
+                processed.countDown();
+            }
+        }
+        processed.await();
+    }
+
+    /**
+     * Same fan out of {@link #fanOutPublish()}, with commands routed to a session as done for the other packets.
+     * */
+    @Benchmark
+    public void fanOutSessionCommands() throws InterruptedException {
+        int targetLoops = 0;
+        for (int loop = 0; loop < loops; loop++) {
+            if (subscribersByLoop[loop] > 0) {
+                targetLoops++;
+            }
+        }
+        final CountDownLatch processed = new CountDownLatch(targetLoops);
+        for (int loop = 0; loop < loops; loop++) {
+            final int subscribers = subscribersByLoop[loop];
+            if (subscribers == 0) {
+                continue;
+            }
+            final PostOffice.RouteResult routed = loopsGroup.routeCommand(loopClientIds[loop], "benchmark publish", () -> {
+                for (int i = 0; i < subscribers; i++) {
+                    Blackhole.consumeCPU(WORK_PER_SUBSCRIBER);
+                }
+                processed.countDown();
+                return null;
+            });
+            if (!routed.isSuccess()) {
+                processed.countDown();
+            }
+        }
+        processed.await();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(SessionLoopsBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
@@ -48,6 +48,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
@@ -88,6 +89,7 @@ public class SessionRegistryTest {
     private final Clock pointInTimeFixedClock = Clock.fixed(Instant.parse("2023-03-26T18:09:30.00Z"), ZoneId.of("Europe/Rome"));
     protected ForwardableClock slidingClock = new ForwardableClock(pointInTimeFixedClock);
     protected ISessionsRepository sessionRepository;
+    private SessionEventLoopGroup loopsGroup;
 
     @BeforeEach
     public void setUp() {
@@ -120,7 +122,8 @@ public class SessionRegistryTest {
         final MetricsProvider mp = new MetricsProviderNull();
         final PermitAllAuthorizatorPolicy authorizatorPolicy = new PermitAllAuthorizatorPolicy();
         final Authorizator permitAll = new Authorizator(authorizatorPolicy);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024, mp);
+        loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024,
+            SessionCommandQueue.WaitStrategy.PARK, 2, Collections.emptyList(), mp);
         sessionRepository = memorySessionsRepository();
         sut = new SessionRegistry(subscriptions, sessionRepository, queueRepository, permitAll, scheduler, slidingClock, GLOBAL_SESSION_EXPIRY_SECONDS, loopsGroup, mp);
         final PostOffice postOffice = new PostOffice(subscriptions,
@@ -286,6 +289,29 @@ public class SessionRegistryTest {
             .until(sessionsList(), Matchers.empty());
     }
 
+    @Test
+    public void givenAMigratedSessionWhenItExpiresThenItsMigrationIsReleased() {
+        final String clientId = "client_to_be_removed";
+        final SessionRegistry.SessionCreationResult res = sut.createOrReopenSession(connMsg.cleanSession(false).build(), clientId, "User");
+        sut.connectionClosed(res.session);
+        final int ringLoop = loopsGroup.targetQueueOrdinal(clientId);
+        final double[] loads = new double[2];
+        loads[ringLoop] = 1.0;
+        assertEquals(1, loopsGroup.rebalance(singleton(clientId), id -> true, loads));
+        Awaitility.await("the disconnected session migrates")
+            .atMost(Duration.ofSeconds(5))
+            .until(() -> loopsGroup.targetQueueOrdinal(clientId) != ringLoop);
+
+        // Exercise
+        slidingClock.forward(Duration.ofSeconds(GLOBAL_SESSION_EXPIRY_SECONDS).plusSeconds(10));
+
+        // Verify
+        Awaitility
+            .await("the expired session isn't kept as migrated")
+            .atMost(3 * SessionRegistry.EXPIRED_SESSION_CLEANER_TASK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+            .until(() -> loopsGroup.targetQueueOrdinal(clientId) == ringLoop);
+    }
+
     @Test
     public void givenSessionThatExpiresWhenReopenIsNotAnymoreTrackedForExpiration() throws InterruptedException {
         LOG.info("givenSessionThatExpiresWhenReopenIsNotAnymoreTrackedForExpiration");
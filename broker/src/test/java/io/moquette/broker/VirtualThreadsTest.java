@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class VirtualThreadsTest {
+
+    private static int javaFeatureVersion() {
+        final String specification = System.getProperty("java.specification.version");
+        if (specification.startsWith("1.")) {
+            // Java 8 and earlier
+            return Integer.parseInt(specification.substring(2));
+        }
+        return Integer.parseInt(specification);
+    }
+
+    @Test
+    public void givenTheRunningJvmThenVirtualThreadsAreOfferedOnlyFromJdk21() throws ExecutionException, InterruptedException {
+        final Optional<ExecutorService> executor = VirtualThreads.newExecutor();
+
+        if (javaFeatureVersion() < 21) {
+            assertFalse(executor.isPresent(), "Virtual threads can't be offered before JDK 21");
+            return;
+        }
+        try {
+            assertEquals("done", executor.get().submit(() -> "done").get());
+        } finally {
+            executor.get().shutdown();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Matches, subscribes and unsubscribes topics of a deep asset tree, like
+ * plant/level-1/.../level-N/sensor-X, with a few wildcard filters at different levels.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieDeepTopicBenchmark {
+
+    private static final int SENSORS = 100;
+
+    @Param({"20", "50", "200"})
+    public int levels;
+
+    private CTrie tree;
+    private Topic[] topics;
+    private int topicIdx;
+    private Subscription transientSubscription;
+    private final List<Subscription> accumulator = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        tree = new CTrie();
+        final StringBuilder path = new StringBuilder("plant");
+        final StringBuilder singleWildcardPath = new StringBuilder("plant/+");
+        String halfwayPath = null;
+        for (int level = 1; level < levels - 1; level++) {
+            path.append("/level-").append(level);
+            if (level > 1) {
+                singleWildcardPath.append("/level-").append(level);
+            }
+            if (level == levels / 2) {
+                halfwayPath = path.toString();
+            }
+        }
+        tree.addToTree(clientSubOnTopic("plant-monitor", "plant/#"));
+        tree.addToTree(clientSubOnTopic("area-monitor", halfwayPath + "/#"));
+        tree.addToTree(clientSubOnTopic("line-monitor", singleWildcardPath + "/sensor-0"));
+        topics = new Topic[SENSORS];
+        for (int sensor = 0; sensor < SENSORS; sensor++) {
+            final String topicName = path + "/sensor-" + sensor;
+            tree.addToTree(clientSubOnTopic("sensor-reader-" + sensor, topicName));
+            topics[sensor] = asTopic(topicName);
+            // parse the tokens once, like it happens for a publish topic
+            topics[sensor].getTokens();
+        }
+        transientSubscription = clientSubOnTopic("transient-reader", path + "/sensor-" + SENSORS);
+    }
+
+    private static Subscription clientSubOnTopic(String clientId, String topicFilter) {
+        return new Subscription(clientId, asTopic(topicFilter), MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE));
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        topicIdx = (topicIdx + 1) % topics.length;
+        accumulator.clear();
+        tree.match(topics[topicIdx], accumulator);
+        bh.consume(accumulator);
+    }
+
+    /**
+     * Subscribes a new leaf of the deepest level and removes it, so that the tree stays the same.
+     * */
+    @Benchmark
+    public boolean subscribeAndUnsubscribe() {
+        final boolean created = tree.addToTree(transientSubscription);
+        tree.removeFromTree(transientSubscription);
+        return created;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(CTrieDeepTopicBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+        new Runner(opt).run();
+    }
+}
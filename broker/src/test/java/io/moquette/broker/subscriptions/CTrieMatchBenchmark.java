@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Compares {@link CTrie#recursiveMatch(Topic)}, that returns a new list at each call, with
+ * {@link CTrie#match(Topic, List)} collecting into a reused accumulator.
+ *
+ * Run it with the main method, the gc profiler reports the allocation rate of each one.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieMatchBenchmark {
+
+    private static final int SITES = 10;
+    private static final int DEVICES_PER_SITE = 100;
+    private static final int SENSORS_PER_DEVICE = 10;
+
+    private CTrie tree;
+    private Topic[] topics;
+    private int topicIdx;
+    private final List<Subscription> accumulator = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        tree = new CTrie();
+        List<Topic> publishTopics = new ArrayList<>();
+        for (int site = 0; site < SITES; site++) {
+            tree.addToTree(clientSubOnTopic("site-monitor-" + site, "site-" + site + "/#"));
+            tree.addToTree(clientSubOnTopic("temp-monitor-" + site, "site-" + site + "/+/sensor-0"));
+            for (int device = 0; device < DEVICES_PER_SITE; device++) {
+                for (int sensor = 0; sensor < SENSORS_PER_DEVICE; sensor++) {
+                    final String topicName = "site-" + site + "/device-" + device + "/sensor-" + sensor;
+                    tree.addToTree(clientSubOnTopic("client-" + site + "-" + device, topicName));
+                    final Topic topic = asTopic(topicName);
+                    // parse the tokens once, like it happens for a publish topic
+                    topic.getTokens();
+                    publishTopics.add(topic);
+                }
+            }
+        }
+        topics = publishTopics.toArray(new Topic[0]);
+    }
+
+    private static Subscription clientSubOnTopic(String clientId, String topicFilter) {
+        return new Subscription(clientId, asTopic(topicFilter), MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE));
+    }
+
+    private Topic nextTopic() {
+        topicIdx = (topicIdx + 1) % topics.length;
+        return topics[topicIdx];
+    }
+
+    @Benchmark
+    public void recursiveMatch(Blackhole bh) {
+        bh.consume(tree.recursiveMatch(nextTopic()));
+    }
+
+    @Benchmark
+    public void matchWithAccumulator(Blackhole bh) {
+        accumulator.clear();
+        tree.match(nextTopic(), accumulator);
+        bh.consume(accumulator);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(CTrieMatchBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build();
+        new Runner(opt).run();
+    }
+}
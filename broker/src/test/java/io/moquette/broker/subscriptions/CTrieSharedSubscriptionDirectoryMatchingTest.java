@@ -18,12 +18,21 @@ package io.moquette.broker.subscriptions;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import static io.moquette.broker.subscriptions.Topic.asTopic;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CTrieSharedSubscriptionDirectoryMatchingTest extends CTrieSubscriptionDirectMatchingCommon {
@@ -123,4 +132,146 @@ public class CTrieSharedSubscriptionDirectoryMatchingTest extends CTrieSubscript
             () -> assertFalse(reloadedSubscriptions.iterator().next().hasSubscriptionIdentifier())
         );
     }
+
+    @Test
+    public void givenRoundRobinSelectionWhenMatchingSharedTopicThenMembersAreSelectedInTurn() {
+        sut.setShareGroupSelection("round_robin", new SubscribersStatusStub());
+        addSharedWorkers(3);
+
+        List<String> selected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            selected.add(singleSelectedClient("jobs/resize"));
+        }
+
+        assertThat(selected).containsExactly("worker0", "worker1", "worker2", "worker0", "worker1", "worker2");
+    }
+
+    @Test
+    public void givenStickyTopicSelectionWhenMatchingSameTopicThenSameMemberIsSelected() {
+        sut.setShareGroupSelection("sticky_topic", new SubscribersStatusStub());
+        addSharedWorkers(5);
+
+        final String selectedForResize = singleSelectedClient("jobs/resize");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(selectedForResize, singleSelectedClient("jobs/resize"));
+        }
+    }
+
+    @Test
+    public void givenStickyTopicSelectionWhenTheStickyMemberGoesOfflineThenTheTopicMovesToAReadyMember() {
+        final SubscribersStatusStub status = new SubscribersStatusStub();
+        for (int i = 0; i < 5; i++) {
+            status.connected("worker" + i, 10);
+        }
+        sut.setShareGroupSelection("sticky_topic", status);
+        addSharedWorkers(5);
+        final String stickyForResize = singleSelectedClient("jobs/resize");
+
+        // Exercise
+        status.connected.remove(stickyForResize);
+
+        // Verify
+        final String replacement = singleSelectedClient("jobs/resize");
+        assertNotEquals(stickyForResize, replacement, "An offline member can't be selected while others are ready");
+        // the topic stays on the replacement, also when the previous member is back
+        status.connected(stickyForResize, 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(replacement, singleSelectedClient("jobs/resize"));
+        }
+    }
+
+    @Test
+    public void givenLeastInflightSelectionWhenMatchingSharedTopicThenMemberWithMoreFreeSlotsIsSelected() {
+        final SubscribersStatusStub status = new SubscribersStatusStub()
+            .connected("worker0", 2)
+            .connected("worker1", 10)
+            .connected("worker2", 0);
+        sut.setShareGroupSelection("least_inflight", status);
+        addSharedWorkers(3);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("worker1", singleSelectedClient("jobs/resize"));
+        }
+    }
+
+    @Test
+    public void givenUnknownSelectionThenIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> sut.setShareGroupSelection("fastest", new SubscribersStatusStub()));
+    }
+
+    @Test
+    public void givenMembersNotReadyWhenMatchingSharedTopicThenOnlyReadyMembersAreSelected() {
+        final SubscribersStatusStub status = new SubscribersStatusStub()
+            .connected("worker1", 10)
+            .connected("worker2", 0)
+            .connected("worker3", 10);
+        status.queued.put("worker3", 5);
+        // worker0 is offline, worker2 has no send quota, worker3 has a backlog
+        sut.setShareGroupSelection("round_robin", status);
+        addSharedWorkers(4);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals("worker1", singleSelectedClient("jobs/resize"));
+        }
+    }
+
+    @Test
+    public void givenNoMemberIsReadyWhenMatchingSharedTopicThenConnectedMembersArePreferredToOfflineOnes() {
+        final SubscribersStatusStub status = new SubscribersStatusStub()
+            .connected("worker2", 0);
+        sut.setShareGroupSelection("round_robin", status);
+        addSharedWorkers(3);
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals("worker2", singleSelectedClient("jobs/resize"));
+        }
+    }
+
+    @Test
+    public void givenAllMembersOfflineWhenMatchingSharedTopicThenTheStrategyChoiceIsKept() {
+        sut.setShareGroupSelection("round_robin", new SubscribersStatusStub());
+        addSharedWorkers(2);
+
+        assertEquals("worker0", singleSelectedClient("jobs/resize"));
+        assertEquals("worker1", singleSelectedClient("jobs/resize"));
+    }
+
+    private static final class SubscribersStatusStub implements ISubscribersStatus {
+        private final Set<String> connected = new HashSet<>();
+        private final Map<String, Integer> freeSlots = new HashMap<>();
+        private final Map<String, Integer> queued = new HashMap<>();
+
+        SubscribersStatusStub connected(String clientId, int slots) {
+            connected.add(clientId);
+            freeSlots.put(clientId, slots);
+            return this;
+        }
+
+        @Override
+        public boolean isConnected(String clientId) {
+            return connected.contains(clientId);
+        }
+
+        @Override
+        public int availableSendSlots(String clientId) {
+            return freeSlots.getOrDefault(clientId, 0);
+        }
+
+        @Override
+        public int queuedMessages(String clientId) {
+            return queued.getOrDefault(clientId, 0);
+        }
+    }
+
+    private void addSharedWorkers(int count) {
+        for (int i = 0; i < count; i++) {
+            sut.addShared(new Subscription("worker" + i, asTopic("jobs/+"), asOption(MqttQoS.AT_LEAST_ONCE), new ShareName("workers")));
+        }
+    }
+
+    private String singleSelectedClient(String topic) {
+        final List<Subscription> matchingSubscriptions = sut.matchWithoutQosSharpening(asTopic(topic));
+        assertEquals(1, matchingSubscriptions.size());
+        return matchingSubscriptions.get(0).getClientId();
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Subscribes to a topic filter that already has many subscribers, to measure the cost of the copy on write of
+ * the node as the number of its subscriptions grows.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieSubscribeBenchmark {
+
+    private static final MqttSubscriptionOption QOS1 = MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE);
+
+    @Param({"1000", "10000", "100000"})
+    public int subscribersPerNode;
+
+    private CTrie tree;
+    private Subscription existingSubscription;
+    private Subscription transientSubscription;
+
+    @Setup
+    public void setup() {
+        tree = new CTrie();
+        final Topic filter = asTopic("alerts/#");
+        for (int i = 0; i < subscribersPerNode; i++) {
+            tree.addToTree(new Subscription("client-" + i, filter, QOS1));
+        }
+        existingSubscription = new Subscription("client-" + subscribersPerNode / 2, filter, QOS1);
+        transientSubscription = new Subscription("transient-client", filter, QOS1);
+    }
+
+    /**
+     * Subscribes a new client and removes it, so that the number of subscribers stays the same.
+     * */
+    @Benchmark
+    public boolean subscribeNewClient() {
+        final boolean created = tree.addToTree(transientSubscription);
+        tree.removeFromTree(transientSubscription);
+        return created;
+    }
+
+    /**
+     * Subscribes again a client, replacing its existing subscription.
+     * */
+    @Benchmark
+    public boolean resubscribeExistingClient() {
+        return tree.addToTree(existingSubscription);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(CTrieSubscribeBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.moquette.broker.subscriptions.CTrieSharedSubscriptionDirectoryMatchingTest.asOption;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CTrieSubscriptionDirectoryBySessionLoopTest {
+
+    private static final int SESSION_LOOPS = 4;
+
+    private CTrieSubscriptionDirectory sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory();
+        sut.groupBySessionLoop(SESSION_LOOPS, CTrieSubscriptionDirectoryBySessionLoopTest::loopOf);
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    // clients are named "<loop>-<name>" to know where they have to be batched
+    private static int loopOf(String clientId) {
+        return Character.digit(clientId.charAt(0), 10);
+    }
+
+    @Test
+    public void givenExactAndWildcardSubscriptionsWhenMatchThenEachClientIsInTheBatchOfItsLoop() {
+        final Subscription exact = new Subscription("0-sensor", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription single = new Subscription("1-sensor", asTopic("home/+"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription multi = new Subscription("3-sensor", asTopic("home/#"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription sameLoop = new Subscription("3-panel", asTopic("home/kitchen"), asOption(MqttQoS.AT_LEAST_ONCE));
+        sut.add(exact);
+        sut.add(single);
+        sut.add(multi);
+        sut.add(sameLoop);
+        sut.add(new Subscription("2-sensor", asTopic("home/garden"), asOption(MqttQoS.AT_MOST_ONCE)));
+
+        final SubscriptionsByLoop matching = sut.matchQosSharpeningBySessionLoop(asTopic("home/kitchen"));
+
+        assertEquals(SESSION_LOOPS, matching.loops());
+        assertEquals(4, matching.size());
+        assertThat(matching.batch(0)).containsExactly(exact);
+        assertThat(matching.batch(1)).containsExactly(single);
+        assertNull(matching.batch(2), "No subscriber of loop 2 matches the topic");
+        assertThat(matching.batch(3)).containsExactlyInAnyOrder(multi, sameLoop);
+        assertThat(flatten(matching)).hasSameElementsAs(sut.matchQosSharpening(asTopic("home/kitchen")));
+    }
+
+    @Test
+    public void givenOverlappingSubscriptionsOfSameClientWhenMatchThenOnlyTheHigherQosIsKept() {
+        sut.add(new Subscription("2-sensor", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE)));
+        final Subscription higherQos = new Subscription("2-sensor", asTopic("home/#"), asOption(MqttQoS.EXACTLY_ONCE));
+        sut.add(higherQos);
+
+        final SubscriptionsByLoop matching = sut.matchQosSharpeningBySessionLoop(asTopic("home/kitchen"));
+
+        assertEquals(1, matching.size());
+        assertThat(matching.batch(2)).containsExactly(higherQos);
+    }
+
+    @Test
+    public void givenSharedSubscriptionsWhenMatchThenOneMemberOfTheGroupIsSelected() {
+        final ShareName shareName = new ShareName("sensors");
+        sut.addShared(new Subscription("1-member", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE), shareName));
+        sut.addShared(new Subscription("2-member", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE), shareName));
+        final Subscription plain = new Subscription("0-sensor", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.add(plain);
+
+        final SubscriptionsByLoop matching = sut.matchQosSharpeningBySessionLoop(asTopic("home/kitchen"));
+
+        assertEquals(2, matching.size());
+        assertThat(matching.batch(0)).containsExactly(plain);
+        final List<Subscription> members = new ArrayList<>();
+        for (int loop = 1; loop <= 2; loop++) {
+            if (matching.batch(loop) != null) {
+                members.addAll(matching.batch(loop));
+            }
+        }
+        assertEquals(1, members.size());
+        assertThat(Arrays.asList("1-member", "2-member")).contains(members.get(0).getClientId());
+    }
+
+    @Test
+    public void givenCachedMatchWhenUnsubscribeThenTheNextMatchDoesNotContainIt() {
+        final Subscription removed = new Subscription("1-sensor", asTopic("home/+"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.add(removed);
+        sut.add(new Subscription("1-panel", asTopic("home/kitchen"), asOption(MqttQoS.AT_MOST_ONCE)));
+        assertEquals(2, sut.matchQosSharpeningBySessionLoop(asTopic("home/kitchen")).size());
+
+        sut.removeSubscription(removed);
+
+        final SubscriptionsByLoop matching = sut.matchQosSharpeningBySessionLoop(asTopic("home/kitchen"));
+        assertEquals(1, matching.size());
+        assertEquals("1-panel", matching.batch(1).get(0).getClientId());
+    }
+
+    private static List<Subscription> flatten(SubscriptionsByLoop matching) {
+        final List<Subscription> all = new ArrayList<>();
+        for (int loop = 0; loop < matching.loops(); loop++) {
+            if (matching.batch(loop) != null) {
+                all.addAll(matching.batch(loop));
+            }
+        }
+        return all;
+    }
+}
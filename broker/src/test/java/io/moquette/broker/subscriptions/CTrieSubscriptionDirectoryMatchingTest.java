@@ -17,14 +17,18 @@ package io.moquette.broker.subscriptions;
 
 
 import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.metrics.MetricsProviderMock;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static io.moquette.broker.subscriptions.CTrieSharedSubscriptionDirectoryMatchingTest.asOption;
 import static io.moquette.broker.subscriptions.Topic.asTopic;
@@ -337,4 +341,222 @@ public class CTrieSubscriptionDirectoryMatchingTest extends CTrieSubscriptionDir
         sut.matchWithoutQosSharpening(Topic.asTopic(deepTopic)); // exercises CTrie.recursiveMatch()
         // -> throws StackOverflowError
     }
+
+    @Test
+    public void givenClientWithOverlappingFiltersWhenOneIsRemovedThenTheOtherIsStillSelected() {
+        final Subscription wildcardSub = new Subscription("client1", asTopic("finance/+"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription exactSub = new Subscription("client1", asTopic("finance/stock"), asOption(MqttQoS.EXACTLY_ONCE));
+        final Subscription otherClientSub = new Subscription("client2", asTopic("finance/#"), asOption(MqttQoS.AT_LEAST_ONCE));
+        sut.add(wildcardSub);
+        sut.add(exactSub);
+        sut.add(otherClientSub);
+
+        List<Subscription> subscriptions = sut.matchQosSharpening(asTopic("finance/stock"));
+        assertThat(subscriptions).hasSize(2);
+        assertThat(subscriptions).containsExactlyInAnyOrder(exactSub, otherClientSub);
+        final Subscription client1Selected = subscriptions.stream()
+            .filter(sub -> sub.getClientId().equals("client1"))
+            .findFirst()
+            .get();
+        assertEquals(MqttQoS.EXACTLY_ONCE, client1Selected.getOption().qos());
+
+        sut.removeSubscription(exactSub);
+
+        subscriptions = sut.matchQosSharpening(asTopic("finance/stock"));
+        assertThat(subscriptions).containsExactlyInAnyOrder(wildcardSub, otherClientSub);
+    }
+
+    @Test
+    public void givenSharedAndNonSharedSubscriptionsWhenAddedAndRemovedInBulkThenTreeAndRepositoryAreUpdated() {
+        final Subscription financeSub = new Subscription("client1", asTopic("finance/#"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription stockSub = new Subscription("client1", asTopic("finance/stock"), asOption(MqttQoS.AT_LEAST_ONCE));
+        final Subscription sharedSub = new Subscription("client2", asTopic("finance/stock"), asOption(MqttQoS.AT_MOST_ONCE),
+            new ShareName("brokers"));
+
+        sut.addAll(Arrays.asList(financeSub, stockSub, sharedSub));
+
+        assertThat(sut.matchWithoutQosSharpening(asTopic("finance/stock")))
+            .containsExactlyInAnyOrder(financeSub, stockSub, sharedSub);
+        assertThat(sut.matchQosSharpening(asTopic("finance/stock"))).containsExactlyInAnyOrder(stockSub, sharedSub);
+        assertThat(sessionsRepository.listAllSubscriptions()).containsExactlyInAnyOrder(financeSub, stockSub);
+        assertThat(sessionsRepository.listAllSharedSubscription()).containsExactly(sharedSub);
+
+        sut.removeAll(Arrays.asList(stockSub, sharedSub));
+
+        assertThat(sut.matchQosSharpening(asTopic("finance/stock"))).containsExactly(financeSub);
+        assertThat(sessionsRepository.listAllSubscriptions()).containsExactly(financeSub);
+        assertThat(sessionsRepository.listAllSharedSubscription()).isEmpty();
+    }
+
+    @Test
+    public void givenMatchCacheWhenSameTopicIsMatchedTwiceThenSecondMatchIsACacheHit() {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final CTrieSubscriptionDirectory cachedSut = createCachingDirectory(metrics);
+        cachedSut.add(new Subscription("client1", asTopic("finance/+"), asOption(MqttQoS.AT_MOST_ONCE)));
+        cachedSut.add(new Subscription("client1", asTopic("finance/stock"), asOption(MqttQoS.EXACTLY_ONCE)));
+
+        final List<Subscription> firstMatch = cachedSut.matchQosSharpening(asTopic("finance/stock"));
+        final List<Subscription> secondMatch = cachedSut.matchQosSharpening(asTopic("finance/stock"));
+
+        assertEquals(1, metrics.getMatchCacheMisses());
+        assertEquals(1, metrics.getMatchCacheHits());
+        assertThat(secondMatch).hasSameElementsAs(firstMatch);
+        assertEquals(MqttQoS.EXACTLY_ONCE, secondMatch.get(0).getOption().qos());
+    }
+
+    @Test
+    public void givenExactAndWildcardSubscriptionsWhenMatchThenExactFiltersAreUpdatedLikeTheTree() {
+        final Subscription exact = new Subscription("Sensor1", asTopic("sensors/1/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        final Subscription exactUpgraded = new Subscription("Sensor1", asTopic("sensors/1/temp"), asOption(MqttQoS.AT_LEAST_ONCE));
+        final Subscription wildcard = new Subscription("Monitor", asTopic("sensors/+/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.add(exact);
+        sut.addAll(Arrays.asList(wildcard, new Subscription("Sensor2", asTopic("sensors/2/temp"), asOption(MqttQoS.AT_MOST_ONCE))));
+
+        //Exercise
+        sut.add(exactUpgraded);
+
+        //Verify
+        final List<Subscription> matching = sut.matchWithoutQosSharpening(asTopic("sensors/1/temp"));
+        assertThat(matching).containsExactlyInAnyOrder(exactUpgraded, wildcard);
+        assertEquals(MqttQoS.AT_LEAST_ONCE, matching.get(matching.indexOf(exactUpgraded)).getOption().qos());
+
+        //Exercise
+        sut.removeSubscription(exact);
+
+        //Verify
+        assertThat(sut.matchWithoutQosSharpening(asTopic("sensors/1/temp"))).containsExactly(wildcard);
+        assertThat(sut.matchWithoutQosSharpening(asTopic("sensors/2/temp")))
+            .containsExactlyInAnyOrder(wildcard, new Subscription("Sensor2", asTopic("sensors/2/temp"), asOption(MqttQoS.AT_MOST_ONCE)));
+    }
+
+    @Test
+    public void givenMatchCacheWhenSubscriptionsChangeThenCachedMatchesAreInvalidated() {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final CTrieSubscriptionDirectory cachedSut = createCachingDirectory(metrics);
+        final Subscription client1Sub = new Subscription("client1", asTopic("finance/#"), asOption(MqttQoS.AT_MOST_ONCE));
+        cachedSut.add(client1Sub);
+        assertThat(cachedSut.matchQosSharpening(asTopic("finance/stock"))).containsExactly(client1Sub);
+
+        final Subscription client2Sub = new Subscription("client2", asTopic("finance/stock"), asOption(MqttQoS.AT_MOST_ONCE));
+        cachedSut.add(client2Sub);
+        assertThat(cachedSut.matchQosSharpening(asTopic("finance/stock"))).containsExactlyInAnyOrder(client1Sub, client2Sub);
+
+        cachedSut.removeSubscription(client1Sub);
+        assertThat(cachedSut.matchQosSharpening(asTopic("finance/stock"))).containsExactly(client2Sub);
+        assertEquals(3, metrics.getMatchCacheMisses());
+        assertEquals(0, metrics.getMatchCacheHits());
+    }
+
+    @Test
+    public void givenMatchCacheAndConcurrentMatchesWhenAnExactSubscriptionIsAddedThenAMatchRightAfterFindsIt() throws InterruptedException {
+        final CTrieSubscriptionDirectory cachedSut = createCachingDirectory(new MetricsProviderMock());
+        final Topic topic = asTopic("finance/stock");
+        final AtomicBoolean stop = new AtomicBoolean();
+        // keeps filling the cache while the subscriptions are added
+        final Thread matcher = new Thread(() -> {
+            while (!stop.get()) {
+                cachedSut.matchWithoutQosSharpening(topic);
+            }
+        });
+        matcher.start();
+        try {
+            for (int i = 0; i < 2_000; i++) {
+                final Subscription sub = new Subscription("client" + i, topic, asOption(MqttQoS.AT_MOST_ONCE));
+
+                //Exercise
+                cachedSut.add(sub);
+
+                //Verify
+                assertThat(cachedSut.matchWithoutQosSharpening(topic)).contains(sub);
+            }
+        } finally {
+            stop.set(true);
+            matcher.join();
+        }
+    }
+
+    @Test
+    public void givenConcurrentAddAndRemoveOfTheSameFilterThenTheIndexAgreesWithTheTree() throws InterruptedException {
+        final Topic topic = asTopic("finance/stock");
+        final List<Subscription> subscriptions = Arrays.asList(
+            new Subscription("client1", topic, asOption(MqttQoS.AT_MOST_ONCE)),
+            new Subscription("client2", topic, asOption(MqttQoS.AT_MOST_ONCE)));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        final Thread adder = new Thread(() -> {
+            while (System.nanoTime() < deadline) {
+                subscriptions.forEach(sut::add);
+            }
+        });
+        final Thread remover = new Thread(() -> {
+            while (System.nanoTime() < deadline) {
+                subscriptions.forEach(sut::removeSubscription);
+            }
+        });
+
+        // Exercise
+        adder.start();
+        remover.start();
+        adder.join();
+        remover.join();
+
+        // Verify, the exact filters are matched only by the index
+        assertEquals(sut.size(), sut.matchWithoutQosSharpening(topic).size(),
+            "Index and tree disagree on the subscriptions of " + topic);
+    }
+
+    @Test
+    public void givenMatchCacheWhenTopicMatchesSharedSubscriptionsThenTheMatchIsNotCached() {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final CTrieSubscriptionDirectory cachedSut = createCachingDirectory(metrics);
+        cachedSut.addShared(new Subscription("client1", asTopic("finance/stock"), asOption(MqttQoS.AT_MOST_ONCE), new ShareName("group")));
+
+        cachedSut.matchQosSharpening(asTopic("finance/stock"));
+        cachedSut.matchQosSharpening(asTopic("finance/stock"));
+
+        assertEquals(2, metrics.getMatchCacheMisses());
+        assertEquals(0, metrics.getMatchCacheHits());
+    }
+
+    @Test
+    public void givenSubscriptionsReloadedFromRepositoryThenStatisticsAreNotifiedToMetrics() {
+        final MemorySubscriptionsRepository repository = new MemorySubscriptionsRepository();
+        repository.addNewSubscription(new Subscription("client1", asTopic("finance/stock/ibm"), asOption(MqttQoS.AT_MOST_ONCE)));
+        repository.addNewSubscription(new Subscription("client2", asTopic("finance/+"), asOption(MqttQoS.AT_MOST_ONCE)));
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final CTrieSubscriptionDirectory directory = new CTrieSubscriptionDirectory(0, true, metrics);
+
+        directory.init(repository);
+
+        assertSame(directory.statistics(), metrics.getSubscriptionsStatistics());
+        assertEquals(2, metrics.getSubscriptionsStatistics().subscriptions());
+        assertEquals(4, metrics.getSubscriptionsStatistics().nodes());
+        assertEquals(3, metrics.getSubscriptionsStatistics().maxDepth());
+        assertEquals(2L, metrics.getSubscriptionsStatistics().subscriptionsByFirstLevel().get("finance"));
+    }
+
+    @Test
+    public void givenRemovedSubscriptionWhenCompactThenReclaimedNodesAreNotifiedToMetrics() {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final CTrieSubscriptionDirectory directory = new CTrieSubscriptionDirectory(0, false, metrics);
+        directory.init(new MemorySubscriptionsRepository());
+        directory.add(new Subscription("client1", asTopic("finance/stock"), asOption(MqttQoS.AT_MOST_ONCE)));
+        final Subscription ibmSub = new Subscription("client2", asTopic("finance/stock/ibm"), asOption(MqttQoS.AT_MOST_ONCE));
+        directory.add(ibmSub);
+        directory.removeSubscription(ibmSub);
+
+        // Exercise
+        final int reclaimed = directory.compact();
+
+        // Verify
+        assertEquals(1, metrics.getCompactions());
+        assertEquals(reclaimed, metrics.getCompactionReclaimedNodes());
+        assertEquals(reclaimed, metrics.getSubscriptionsStatistics().compactionReclaimedNodes());
+        assertEquals(1, metrics.getSubscriptionsStatistics().reclaimedNodes(), "the removal contracts the emptied leaf");
+    }
+
+    private static CTrieSubscriptionDirectory createCachingDirectory(MetricsProviderMock metrics) {
+        final CTrieSubscriptionDirectory directory = new CTrieSubscriptionDirectory(16, false, metrics);
+        directory.init(new MemorySubscriptionsRepository());
+        return directory;
+    }
 }
@@ -15,13 +15,17 @@
  */
 package io.moquette.broker.subscriptions;
 
-
+import io.moquette.BrokerConstants;
+import io.moquette.metrics.SubscriptionsStatistics;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.Set;
 
 import static io.moquette.broker.subscriptions.SubscriptionTestUtils.asSubscription;
 import static io.moquette.broker.subscriptions.Topic.asTopic;
@@ -148,6 +152,23 @@ public class CTrieTest {
         assertEquals(1, sut.root.mainNode().allChildren().size());  // looking to see if TNode is cleaned up
     }
 
+    @Test
+    public void givenManySiblingsWhenRemoveSomeOfThemThenOnlyTheRemainingAreReachable() {
+        for (int i = 0; i < 1000; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "devices/" + i));
+        }
+
+        //Exercise
+        for (int i = 0; i < 1000; i += 2) {
+            sut.removeFromTree(clientSubOnTopic("Device" + i, "devices/" + i));
+        }
+
+        //Verify
+        assertEquals(500, sut.lookup(asTopic("devices")).get().allChildren().size());
+        assertFalse(sut.lookup(asTopic("devices/10")).isPresent(), "Node on path devices/10 can't be present");
+        assertThat(sut.recursiveMatch(asTopic("devices/11"))).containsExactly(clientSubOnTopic("Device11", "devices/11"));
+    }
+
     @Test
     public void givenTreeWithSomeNodeWhenRemoveMultipleTimes() {
         Subscription newSubscription = clientSubOnTopic("TempSensor1", "test");
@@ -334,4 +355,299 @@ public class CTrieTest {
         assertThat(matchingSubs3).contains(expectedMatchingsub1);
         assertThat(matchingSubs4).doesNotContain(expectedMatchingsub2);
     }
+
+    @Test
+    public void givenWildcardAndExactSubscriptionsWhenMatchWithAccumulatorThenCollectsSameAsRecursiveMatch() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "/temp/1"));
+        sut.addToTree(clientSubOnTopic("TempSensor2", "/temp/+"));
+        sut.addToTree(clientSubOnTopic("TempSensor3", "/#"));
+        sut.addToTree(clientSubOnTopic("TempSensor4", "/temp/2"));
+
+        //Exercise
+        final List<Subscription> accumulator = new ArrayList<>();
+        sut.match(asTopic("/temp/1"), accumulator);
+
+        //Verify
+        assertThat(accumulator).containsExactlyInAnyOrder(
+            clientSubOnTopic("TempSensor1", "/temp/1"),
+            clientSubOnTopic("TempSensor2", "/temp/+"),
+            clientSubOnTopic("TempSensor3", "/#"));
+        assertThat(accumulator).hasSameElementsAs(sut.recursiveMatch(asTopic("/temp/1")));
+    }
+
+    @Test
+    public void givenAccumulatorWithContentWhenMatchThenAppendsToIt() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "temp"));
+        final Subscription alreadyPresent = clientSubOnTopic("TempSensor2", "humidity");
+        final List<Subscription> accumulator = new ArrayList<>();
+        accumulator.add(alreadyPresent);
+
+        //Exercise
+        sut.match(asTopic("temp"), accumulator);
+
+        //Verify
+        assertThat(accumulator).containsExactly(alreadyPresent, clientSubOnTopic("TempSensor1", "temp"));
+    }
+
+    @Test
+    public void givenBatchOfSubscriptionsWhenAddAllThenMatchesAsAddedOneByOne() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "/temp/1"));
+        final List<Subscription> batch = Arrays.asList(
+            clientSubOnTopic("TempSensor2", "/temp/+"),
+            clientSubOnTopic("TempSensor3", "/#"),
+            clientSubOnTopic("TempSensor4", "/temp/1"),
+            clientSubOnTopic("TempSensor5", "/humidity/1"),
+            clientSubOnTopic("TempSensor6", "/humidity/1"));
+
+        //Exercise
+        final Set<Subscription> created = sut.addAllToTree(batch);
+
+        //Verify
+        final CTrie oneByOne = new CTrie();
+        oneByOne.addToTree(clientSubOnTopic("TempSensor1", "/temp/1"));
+        final List<Subscription> createdOneByOne = new ArrayList<>();
+        for (Subscription sub : batch) {
+            if (oneByOne.addToTree(sub)) {
+                createdOneByOne.add(sub);
+            }
+        }
+        assertThat(created).hasSameElementsAs(createdOneByOne);
+        assertThat(created).containsOnly(clientSubOnTopic("TempSensor2", "/temp/+"),
+            clientSubOnTopic("TempSensor3", "/#"), clientSubOnTopic("TempSensor5", "/humidity/1"));
+        for (String topic : Arrays.asList("/temp/1", "/temp/2", "/humidity/1", "/humidity")) {
+            assertThat(sut.recursiveMatch(asTopic(topic))).hasSameElementsAs(oneByOne.recursiveMatch(asTopic(topic)));
+        }
+    }
+
+    @Test
+    public void givenBatchOfSubscriptionsWhenRemoveAllThenEmptiedNodesAreRemoved() {
+        for (int i = 0; i < 10; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "devices/" + i + "/status"));
+        }
+        sut.addToTree(clientSubOnTopic("Monitor", "devices/3"));
+        final List<Subscription> toRemove = new ArrayList<>();
+        for (int i = 0; i < 10; i += 2) {
+            toRemove.add(clientSubOnTopic("Device" + i, "devices/" + i + "/status"));
+        }
+        toRemove.add(clientSubOnTopic("Device3", "devices/3/status"));
+
+        //Exercise
+        sut.removeAllFromTree(toRemove);
+
+        //Verify
+        assertEquals(5, sut.lookup(asTopic("devices")).get().allChildren().size());
+        assertFalse(sut.lookup(asTopic("devices/2")).isPresent(), "Node on path devices/2 can't be present");
+        // devices/3 still holds the Monitor subscription
+        assertTrue(sut.lookup(asTopic("devices/3")).isPresent());
+        assertFalse(sut.lookup(asTopic("devices/3/status")).isPresent(), "Node on path devices/3/status can't be present");
+        assertThat(sut.recursiveMatch(asTopic("devices/5/status"))).containsExactly(clientSubOnTopic("Device5", "devices/5/status"));
+        assertThat(sut.recursiveMatch(asTopic("devices/4/status"))).isEmpty();
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void givenDeepBranchWhenLastSubscriptionIsRemovedThenEmptiedAncestorsAreRemoved() {
+        sut.addToTree(clientSubOnTopic("Requester", "reply"));
+        final Subscription replySubscription = clientSubOnTopic("Requester", "reply/a/b/c");
+        sut.addToTree(replySubscription);
+
+        //Exercise
+        sut.removeFromTree(replySubscription);
+
+        //Verify
+        assertTrue(sut.lookup(asTopic("reply")).isPresent(), "Node on path reply must be present");
+        assertFalse(sut.lookup(asTopic("reply/a")).isPresent(), "Node on path reply/a can't be present");
+        assertThat(sut.lookup(asTopic("reply")).get().allChildren()).isEmpty();
+        assertEquals(3, sut.reclaimedNodes());
+    }
+
+    @Test
+    public void givenNodeWithOnlySharedSubscriptionWhenRemovedThenTheNodeIsRemoved() {
+        final Subscription shared = new Subscription("TempSensor1", asTopic("/temp"),
+            MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE), new ShareName("group"));
+        sut.addToTree(shared);
+
+        //Exercise
+        sut.removeFromTree(shared);
+
+        //Verify
+        assertFalse(sut.lookup(asTopic("/temp")).isPresent(), "Node on path /temp can't be present");
+        assertThat(sut.root.mainNode().allChildren()).isEmpty();
+    }
+
+    @Test
+    public void givenEmptyBranchesLeftByConcurrentChangesWhenCompactThenAreRemovedAndCounted() {
+        sut.addToTree(clientSubOnTopic("Monitor", "reply/#"));
+        final Subscription replySubscription = clientSubOnTopic("Requester", "reply/1/response");
+        sut.addToTree(replySubscription);
+        // empties the leaf without contracting the branch, like a removal that lost a race would do
+        final INode replyINode = sut.root.mainNode().childOrNull(asTopic("reply").headToken());
+        final INode oneINode = replyINode.mainNode().childOrNull(asTopic("1").headToken());
+        final INode responseINode = oneINode.mainNode().childOrNull(asTopic("response").headToken());
+        final CNode response = responseINode.mainNode();
+        final CNode emptiedResponse = response.copy();
+        emptiedResponse.removeSubscriptionsFor(replySubscription);
+        assertTrue(responseINode.compareAndSet(response, emptiedResponse));
+
+        //Exercise
+        final int reclaimed = sut.compact();
+
+        //Verify
+        assertEquals(2, reclaimed);
+        assertEquals(2, sut.reclaimedNodes());
+        assertEquals(2, sut.statistics().compactionReclaimedNodes());
+        assertFalse(sut.lookup(asTopic("reply/1")).isPresent(), "Node on path reply/1 can't be present");
+        assertThat(sut.recursiveMatch(asTopic("reply/1/response"))).containsExactly(clientSubOnTopic("Monitor", "reply/#"));
+        assertEquals(0, sut.compact());
+    }
+
+    @Test
+    public void givenConcurrentSubscribesUnsubscribesAndCompactionsThenNoSubscriptionIsLost() throws InterruptedException {
+        final int threads = 4;
+        final int subscriptionsPerThread = 2000;
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int threadId = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < subscriptionsPerThread; i++) {
+                    final Subscription sub = clientSubOnTopic("Client" + threadId, "reply/" + i + "/" + threadId);
+                    sut.addToTree(sub);
+                    // keep only the even ones
+                    if (i % 2 != 0) {
+                        sut.removeFromTree(sub);
+                    }
+                }
+            }));
+        }
+        final Thread compactor = new Thread(() -> {
+            while (workers.stream().anyMatch(Thread::isAlive)) {
+                sut.compact();
+            }
+        });
+        workers.forEach(Thread::start);
+        compactor.start();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        compactor.join();
+
+        //Verify
+        sut.compact();
+        assertEquals(threads * subscriptionsPerThread / 2, sut.size());
+        // reply, the even levels and a leaf for each thread
+        assertEquals(1 + subscriptionsPerThread / 2 + threads * subscriptionsPerThread / 2, sut.statistics().nodes());
+        for (int i = 0; i < subscriptionsPerThread; i++) {
+            if (i % 2 == 0) {
+                for (int t = 0; t < threads; t++) {
+                    assertThat(sut.recursiveMatch(asTopic("reply/" + i + "/" + t)))
+                        .containsExactly(clientSubOnTopic("Client" + t, "reply/" + i + "/" + t));
+                }
+            } else {
+                assertFalse(sut.lookup(asTopic("reply/" + i)).isPresent(), "Node on path reply/" + i + " can't be present");
+            }
+        }
+    }
+
+    @Test
+    public void givenSubscriptionsAddedAndRemovedThenStatisticsAreUpdated() {
+        sut = new CTrie(true);
+        final ShareName group = new ShareName("workers");
+        final Subscription shared1 = new Subscription("Worker1", asTopic("jobs/a"),
+            MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE), group);
+        final Subscription shared2 = new Subscription("Worker2", asTopic("jobs/a"),
+            MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE), group);
+        final Subscription deep = clientSubOnTopic("Monitor", "deep/a/b/c/d");
+        sut.addToTree(clientSubOnTopic("Monitor", "sensors/+/temp"));
+        sut.addToTree(clientSubOnTopic("Sensor1", "sensors/1/temp"));
+        sut.addAllToTree(Arrays.asList(shared1, shared2, deep));
+
+        final SubscriptionsStatistics statistics = sut.statistics();
+        assertEquals(3, statistics.subscriptions());
+        assertEquals(2, statistics.sharedSubscriptions());
+        assertEquals(1, statistics.sharedGroups());
+        // sensors, +, temp, 1, temp, jobs, a, deep, a, b, c, d
+        assertEquals(12, statistics.nodes());
+        assertEquals(5, statistics.maxDepth());
+        assertThat(statistics.subscriptionsByFirstLevel())
+            .containsOnlyKeys("sensors", "jobs", "deep")
+            .containsEntry("sensors", 2L)
+            .containsEntry("jobs", 2L);
+
+        //Exercise
+        sut.removeFromTree(deep);
+        sut.removeFromTree(shared1);
+
+        //Verify
+        assertEquals(3, statistics.maxDepth());
+        assertEquals(7, statistics.nodes());
+        assertEquals(1, statistics.sharedSubscriptions());
+        assertEquals(1, statistics.sharedGroups());
+        assertThat(statistics.subscriptionsByFirstLevel()).doesNotContainKey("deep").containsEntry("jobs", 1L);
+
+        //Exercise
+        sut.removeAllFromTree(Arrays.asList(shared2, clientSubOnTopic("Monitor", "sensors/+/temp"),
+            clientSubOnTopic("Sensor1", "sensors/1/temp")));
+
+        //Verify
+        assertEquals(0, statistics.subscriptions());
+        assertEquals(0, statistics.sharedSubscriptions());
+        assertEquals(0, statistics.sharedGroups());
+        assertEquals(0, statistics.nodes());
+        assertEquals(0, statistics.maxDepth());
+        assertThat(statistics.subscriptionsByFirstLevel()).isEmpty();
+    }
+
+    @Test
+    public void givenTopicsAsDeepAsAllowedWhenSubscribeMatchAndUnsubscribeThenTheTreeIsWalkedToTheLeaves() {
+        final StringBuilder levels = new StringBuilder("root");
+        for (int i = 1; i < BrokerConstants.MAX_TOPIC_DEPTH; i++) {
+            levels.append("/level-").append(i);
+        }
+        final String deepTopic = levels.toString();
+        final Subscription exact = clientSubOnTopic("Exact", deepTopic);
+        final Subscription wildcard = clientSubOnTopic("Wildcard", deepTopic.substring(0, deepTopic.lastIndexOf('/')) + "/+");
+        final Subscription multi = clientSubOnTopic("Multi", "root/#");
+        sut.addToTree(exact);
+        sut.addToTree(wildcard);
+        sut.addToTree(multi);
+
+        //Exercise
+        final List<Subscription> matching = sut.recursiveMatch(asTopic(deepTopic));
+
+        //Verify
+        assertThat(matching).containsExactlyInAnyOrder(exact, wildcard, multi);
+
+        //Exercise
+        sut.removeFromTree(exact);
+        sut.removeFromTree(wildcard);
+
+        //Verify
+        assertThat(sut.recursiveMatch(asTopic(deepTopic))).containsExactly(multi);
+        assertFalse(sut.lookup(asTopic("root/level-1")).isPresent(), "Emptied deep branch must be contracted");
+        // root, #
+        assertEquals(2, sut.statistics().nodes());
+    }
+
+    @Test
+    public void givenExactWildcardAndSharedSubscriptionsWhenMatchNotIndexedThenExactFiltersAreSkipped() {
+        final Subscription shared = new Subscription("Worker1", asTopic("sensors/1/temp"),
+            MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE), new ShareName("workers"));
+        final Subscription single = clientSubOnTopic("Monitor", "sensors/+/temp");
+        final Subscription multi = clientSubOnTopic("Logger", "sensors/#");
+        sut.addToTree(clientSubOnTopic("Sensor1", "sensors/1/temp"));
+        sut.addToTree(clientSubOnTopic("Sensor2", "sensors/2/temp"));
+        sut.addAllToTree(Arrays.asList(shared, single, multi));
+
+        //Exercise
+        final List<Subscription> notIndexed = new ArrayList<>();
+        sut.matchNotIndexed(asTopic("sensors/1/temp"), notIndexed);
+        final List<Subscription> notIndexedWithoutWildcardBranch = new ArrayList<>();
+        sut.matchNotIndexed(asTopic("sensors/2/temp"), notIndexedWithoutWildcardBranch);
+
+        //Verify
+        assertThat(notIndexed).containsExactlyInAnyOrder(shared, single, multi);
+        assertThat(notIndexedWithoutWildcardBranch).containsExactlyInAnyOrder(single, multi);
+        assertThat(sut.recursiveMatch(asTopic("sensors/2/temp")))
+            .containsExactlyInAnyOrder(clientSubOnTopic("Sensor2", "sensors/2/temp"), single, multi);
+    }
 }
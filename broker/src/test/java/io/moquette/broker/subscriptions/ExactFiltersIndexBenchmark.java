@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Compares the full walk of the tree with the directory, that matches the exact topic filters with the
+ * {@link ExactFiltersIndex} and walks only the branches with wildcards, when most of the subscriptions are exact
+ * and few wildcards are near the root.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExactFiltersIndexBenchmark {
+
+    private static final int SITES = 10;
+    private static final int DEVICES_PER_SITE = 1000;
+    private static final int SENSORS_PER_DEVICE = 10;
+
+    private CTrie tree;
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] topics;
+    private int topicIdx;
+    private final List<Subscription> accumulator = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        tree = new CTrie();
+        directory = new CTrieSubscriptionDirectory();
+        directory.init(new MemorySubscriptionsRepository());
+        final List<Subscription> subscriptions = new ArrayList<>();
+        subscriptions.add(clientSubOnTopic("archiver", "#"));
+        subscriptions.add(clientSubOnTopic("site-monitor", "site-0/#"));
+        final List<Topic> publishTopics = new ArrayList<>();
+        for (int site = 0; site < SITES; site++) {
+            for (int device = 0; device < DEVICES_PER_SITE; device++) {
+                for (int sensor = 0; sensor < SENSORS_PER_DEVICE; sensor++) {
+                    final String topicName = "site-" + site + "/plant/line-1/device-" + device + "/unit/sensor-" + sensor;
+                    subscriptions.add(clientSubOnTopic("client-" + site + "-" + device, topicName));
+                    final Topic topic = asTopic(topicName);
+                    // parse the tokens once, like it happens for a publish topic
+                    topic.getTokens();
+                    publishTopics.add(topic);
+                }
+            }
+        }
+        tree.addAllToTree(subscriptions);
+        directory.addAll(subscriptions);
+        topics = publishTopics.toArray(new Topic[0]);
+    }
+
+    private static Subscription clientSubOnTopic(String clientId, String topicFilter) {
+        return new Subscription(clientId, asTopic(topicFilter), MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE));
+    }
+
+    private Topic nextTopic() {
+        topicIdx = (topicIdx + 1) % topics.length;
+        return topics[topicIdx];
+    }
+
+    @Benchmark
+    public void treeWalk(Blackhole bh) {
+        accumulator.clear();
+        tree.match(nextTopic(), accumulator);
+        bh.consume(accumulator);
+    }
+
+    @Benchmark
+    public void indexAndWildcardWalk(Blackhole bh) {
+        bh.consume(directory.matchWithoutQosSharpening(nextTopic()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(ExactFiltersIndexBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MatchResultCacheTest {
+
+    private static final int MAX_SIZE = 16;
+
+    @Test
+    public void givenCachedMatchWhenInvalidatedThenItIsNotReturned() {
+        final MatchResultCache<String> sut = new MatchResultCache<>(MAX_SIZE);
+        sut.put(asTopic("finance/stock"), sut.currentGeneration(), "match");
+        assertEquals("match", sut.get(asTopic("finance/stock")));
+
+        sut.invalidate();
+
+        assertNull(sut.get(asTopic("finance/stock")));
+    }
+
+    @Test
+    public void givenMatchComputedBeforeAnInvalidationWhenPutThenItIsDiscarded() {
+        final MatchResultCache<String> sut = new MatchResultCache<>(MAX_SIZE);
+        final long generation = sut.currentGeneration();
+        sut.invalidate();
+
+        sut.put(asTopic("finance/stock"), generation, "stale match");
+
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void givenPutsConcurrentWithInvalidationsThenTheSizeStaysBounded() throws InterruptedException {
+        final MatchResultCache<String> sut = new MatchResultCache<>(MAX_SIZE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final int writers = 3;
+        final CountDownLatch done = new CountDownLatch(writers);
+        final List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    final Topic topic = asTopic("topic/" + ThreadLocalRandom.current().nextInt(1000));
+                    sut.put(topic, sut.currentGeneration(), topic.toString());
+                }
+                done.countDown();
+            }));
+        }
+        threads.forEach(Thread::start);
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < end) {
+            sut.invalidate();
+        }
+        running.set(false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // every entry left has to be tracked for eviction, else it would take the place of the new topics
+        for (int i = 0; i < MAX_SIZE; i++) {
+            sut.put(asTopic("fresh/" + i), sut.currentGeneration(), "fresh");
+        }
+        assertEquals(MAX_SIZE, sut.size());
+        for (int i = 0; i < MAX_SIZE; i++) {
+            assertEquals("fresh", sut.get(asTopic("fresh/" + i)), "Fresh topic evicted by an untracked entry");
+        }
+    }
+}
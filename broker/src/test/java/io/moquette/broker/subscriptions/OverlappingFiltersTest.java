@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.broker.subscriptions.CTrieSharedSubscriptionDirectoryMatchingTest.asOption;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OverlappingFiltersTest {
+
+    private OverlappingFilters sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new OverlappingFilters();
+    }
+
+    private static Subscription subscription(String clientId, String filter) {
+        return new Subscription(clientId, asTopic(filter), asOption(MqttQoS.AT_MOST_ONCE));
+    }
+
+    @Test
+    public void givenClientWithDisjointFiltersThenItIsNotOverlapping() {
+        sut.add(subscription("client1", "a"));
+        sut.add(subscription("client1", "b"));
+        sut.add(subscription("client1", "sensors/+/temperature"));
+        sut.add(subscription("client1", "sensors/+/humidity"));
+
+        assertFalse(sut.hasOverlaps(), "Disjoint filters can't match the same topic");
+    }
+
+    @Test
+    public void givenClientWithAWildcardThatCoversAnotherFilterThenItIsOverlapping() {
+        final Subscription exact = subscription("client1", "finance/stock");
+        sut.add(subscription("client1", "finance/+"));
+        sut.add(exact);
+
+        assertTrue(sut.isOverlapping(exact));
+    }
+
+    @Test
+    public void givenClientWithIntersectingWildcardsThenItIsOverlapping() {
+        final Subscription byLevel = subscription("client1", "a/+/c");
+        sut.add(byLevel);
+        sut.add(subscription("client1", "a/b/+"));
+
+        assertTrue(sut.isOverlapping(byLevel));
+    }
+
+    @Test
+    public void givenOverlappingClientWhenTheIntersectingFilterIsRemovedThenItIsNotOverlapping() {
+        final Subscription wildcard = subscription("client1", "finance/#");
+        sut.add(wildcard);
+        sut.add(subscription("client1", "finance/stock"));
+        sut.add(subscription("client1", "weather"));
+        assertTrue(sut.hasOverlaps());
+
+        sut.remove(wildcard);
+
+        assertFalse(sut.hasOverlaps());
+    }
+
+    @Test
+    public void givenOwnerWithTwoIntersectingPairsWhenOnlyOneIsRemovedThenItIsStillOverlapping() {
+        final Subscription exact = subscription("client1", "finance/stock");
+        final Subscription byLevel = subscription("client1", "finance/+");
+        sut.add(exact);
+        sut.add(byLevel);
+        sut.add(byLevel);
+        sut.add(subscription("client1", "finance/#"));
+
+        sut.remove(byLevel);
+        assertTrue(sut.isOverlapping(exact), "finance/# still covers finance/stock");
+
+        sut.remove(byLevel);
+        assertTrue(sut.isOverlapping(exact), "Removing an already removed filter must not change the count");
+
+        sut.remove(exact);
+        assertFalse(sut.hasOverlaps());
+    }
+
+    @Test
+    public void testIntersect() {
+        assertTrue(OverlappingFilters.intersect(asTopic("a/b"), asTopic("a/b")));
+        assertTrue(OverlappingFilters.intersect(asTopic("a/#"), asTopic("a")));
+        assertTrue(OverlappingFilters.intersect(asTopic("#"), asTopic("a/b")));
+        assertTrue(OverlappingFilters.intersect(asTopic("+/b/#"), asTopic("a/+")));
+        assertFalse(OverlappingFilters.intersect(asTopic("a/+"), asTopic("a")));
+        assertFalse(OverlappingFilters.intersect(asTopic("a/+"), asTopic("a/b/c")));
+        assertFalse(OverlappingFilters.intersect(asTopic("a/+/c"), asTopic("a/b/d")));
+        assertFalse(OverlappingFilters.intersect(asTopic("a/#"), asTopic("b/#")));
+    }
+}
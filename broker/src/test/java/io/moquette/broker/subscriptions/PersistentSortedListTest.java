@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentSortedListTest {
+
+    private static PersistentSortedList<Integer> listOf(int fromInclusive, int toExclusive) {
+        PersistentSortedList<Integer> list = PersistentSortedList.empty();
+        for (int i = fromInclusive; i < toExclusive; i++) {
+            list = list.with(i);
+        }
+        return list;
+    }
+
+    @Test
+    public void givenElementsAddedOutOfOrderWhenIteratedThenAreSorted() {
+        final int size = PersistentSortedList.MAX_CHUNK_SIZE * 5;
+        PersistentSortedList<Integer> list = PersistentSortedList.empty();
+        for (int i = 0; i < size; i++) {
+            // walks all the values with a stride coprime with the size
+            list = list.with((i * 7) % size);
+        }
+
+        assertThat(list.size()).isEqualTo(size);
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            expected.add(i);
+            assertThat(list.get(i)).isEqualTo(i);
+            assertThat(list.indexOf(i)).isEqualTo(i);
+        }
+        assertThat(list).containsExactlyElementsOf(expected);
+        assertThat(list.toList()).isEqualTo(expected);
+    }
+
+    @Test
+    public void givenAListWhenChangedThenThePreviousVersionIsUntouched() {
+        final PersistentSortedList<Integer> original = listOf(0, PersistentSortedList.MAX_CHUNK_SIZE * 3);
+
+        final PersistentSortedList<Integer> withoutTen = original.without(10);
+        final PersistentSortedList<Integer> withExtra = original.with(-1);
+
+        assertThat(original.size()).isEqualTo(PersistentSortedList.MAX_CHUNK_SIZE * 3);
+        assertThat(original.find(10)).isEqualTo(10);
+        assertThat(original.indexOf(-1)).isEqualTo(-1);
+        assertThat(withoutTen.find(10)).isNull();
+        assertThat(withoutTen.size()).isEqualTo(original.size() - 1);
+        assertThat(withExtra.get(0)).isEqualTo(-1);
+        assertThat(withExtra.size()).isEqualTo(original.size() + 1);
+    }
+
+    @Test
+    public void givenAListWhenAllElementsAreRemovedThenIsEmpty() {
+        final int size = PersistentSortedList.MAX_CHUNK_SIZE * 2 + 1;
+        PersistentSortedList<Integer> list = listOf(0, size);
+
+        for (int i = size - 1; i >= 0; i -= 2) {
+            list = list.without(i);
+        }
+        assertThat(list.size()).isEqualTo(size / 2);
+        assertThat(list.search(e -> Integer.compare(e, 5))).isEqualTo(2);
+        for (int i = 1; i < size; i += 2) {
+            list = list.without(i);
+        }
+
+        assertThat(list.isEmpty()).isTrue();
+        assertThat(list.without(1)).isSameAs(list);
+        assertThat(list).isEmpty();
+    }
+}
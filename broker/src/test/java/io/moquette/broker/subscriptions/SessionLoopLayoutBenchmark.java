@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.metrics.MetricsProviderNull;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Compares the flat match of a topic with many subscribers, that then has to be grouped hashing the client id of
+ * each subscription, with the match of the directory that keeps the subscriptions already bucketed by session loop.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionLoopLayoutBenchmark {
+
+    private static final int SESSION_LOOPS = 8;
+    private static final Topic TOPIC = asTopic("alerts/building-1/fire");
+
+    @Param({"10000", "100000"})
+    public int subscribers;
+
+    @Param({"0", "1024"})
+    public int matchCacheSize;
+
+    private CTrieSubscriptionDirectory flat;
+    private CTrieSubscriptionDirectory byLoop;
+
+    @Setup
+    public void setup() {
+        flat = new CTrieSubscriptionDirectory(matchCacheSize, false, new MetricsProviderNull());
+        flat.init(new MemorySubscriptionsRepository());
+        byLoop = new CTrieSubscriptionDirectory(matchCacheSize, false, new MetricsProviderNull());
+        byLoop.groupBySessionLoop(SESSION_LOOPS, SessionLoopLayoutBenchmark::loopOf);
+        byLoop.init(new MemorySubscriptionsRepository());
+        final List<Subscription> subscriptions = new ArrayList<>(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            subscriptions.add(new Subscription("client-" + i, TOPIC,
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE)));
+        }
+        flat.addAll(subscriptions);
+        byLoop.addAll(subscriptions);
+        // parse the tokens once, like it happens for a publish topic
+        TOPIC.getTokens();
+    }
+
+    // same hashing of SessionEventLoopGroup
+    private static int loopOf(String clientId) {
+        return Math.abs(clientId.hashCode()) % SESSION_LOOPS;
+    }
+
+    @Benchmark
+    public void matchThenGroup(Blackhole bh) {
+        final List<Subscription>[] batches = new List[SESSION_LOOPS];
+        for (Subscription sub : flat.matchQosSharpening(TOPIC)) {
+            final int loop = loopOf(sub.getClientId());
+            if (batches[loop] == null) {
+                batches[loop] = new ArrayList<>();
+            }
+            batches[loop].add(sub);
+        }
+        bh.consume(batches);
+    }
+
+    @Benchmark
+    public void matchBySessionLoop(Blackhole bh) {
+        bh.consume(byLoop.matchQosSharpeningBySessionLoop(TOPIC));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(SessionLoopLayoutBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
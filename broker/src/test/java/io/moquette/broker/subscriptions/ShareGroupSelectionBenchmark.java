@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+
+/**
+ * Matches a topic with a 64 members shared subscription group, comparing the selection strategies with the
+ * shared SecureRandom picker that was used before them.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ShareGroupSelectionBenchmark {
+
+    private static final int GROUP_MEMBERS = 64;
+    private static final String SECURE_RANDOM = "secure_random";
+    private static final Random SHARED_SECURE_RANDOM = new SecureRandom();
+
+    @Param({SECURE_RANDOM, ShareGroupSelectors.RANDOM, ShareGroupSelectors.ROUND_ROBIN,
+        ShareGroupSelectors.LEAST_INFLIGHT, ShareGroupSelectors.STICKY_TOPIC})
+    public String selection;
+
+    private CTrie tree;
+    private Topic topic;
+
+    @Setup
+    public void setup() {
+        tree = new CTrie();
+        final ShareName shareName = new ShareName("workers");
+        for (int i = 0; i < GROUP_MEMBERS; i++) {
+            tree.addToTree(new Subscription("worker-" + i, asTopic("jobs/+"),
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE), shareName));
+        }
+        if (SECURE_RANDOM.equals(selection)) {
+            tree.setShareGroupSelector((group, topicName) -> group.member(SHARED_SECURE_RANDOM.nextInt(group.size())));
+        } else {
+            tree.setShareGroupSelector(ShareGroupSelectors.forName(selection, new ISubscribersStatus() {
+                @Override
+                public boolean isConnected(String clientId) {
+                    return true;
+                }
+
+                @Override
+                public int availableSendSlots(String clientId) {
+                    // every member has a different amount of free slots
+                    return clientId.hashCode() & 0xF;
+                }
+
+                @Override
+                public int queuedMessages(String clientId) {
+                    return 0;
+                }
+            }));
+        }
+        topic = asTopic("jobs/resize");
+        topic.getTokens();
+    }
+
+    @Benchmark
+    public void matchSharedGroup(Blackhole bh) {
+        final List<Subscription> accumulator = new ArrayList<>(1);
+        tree.match(topic, accumulator);
+        bh.consume(accumulator);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(ShareGroupSelectionBenchmark.class.getSimpleName())
+            .build();
+        new Runner(opt).run();
+    }
+}
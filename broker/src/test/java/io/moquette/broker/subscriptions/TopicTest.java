@@ -30,6 +30,13 @@ public class TopicTest {
         assertThat(new Topic("/finance/stock/ibm")).containsToken(Token.EMPTY, "finance", "stock", "ibm");
 
         assertThat(new Topic("/")).containsToken(Token.EMPTY, Token.EMPTY);
+
+        // the trailing separators count as a single empty level
+        assertThat(new Topic("finance//")).containsToken("finance", Token.EMPTY);
+
+        assertThat(new Topic("//")).containsToken(Token.EMPTY, Token.EMPTY);
+
+        assertThat(new Topic("finance//stock/")).containsToken("finance", Token.EMPTY, "stock", Token.EMPTY);
     }
 
     @Test
@@ -65,6 +72,21 @@ public class TopicTest {
         assertThat(new Topic("finance/+/ibm")).containsToken("finance", Token.SINGLE, "ibm");
     }
 
+    @Test
+    public void testEqualLevelsShareTheSameToken() {
+        final Token first = new Topic("finance/stock/ibm").getTokens().get(1);
+        final Token second = new Topic("market/stock").getTokens().get(1);
+
+        Assertions.assertThat(first).isSameAs(second);
+    }
+
+    @Test
+    public void testReservedTokens() {
+        Assertions.assertThat(new Topic("$SYS/stock").headToken().isReserved()).isTrue();
+        Assertions.assertThat(new Topic("finance/$stock").getTokens().get(0).isReserved()).isFalse();
+        Assertions.assertThat(new Topic("finance/$stock").getTokens().get(1).isReserved()).isTrue();
+    }
+
     @Test
     public void testMatchTopics_simple() {
         assertThat(new Topic("/")).matches("/");
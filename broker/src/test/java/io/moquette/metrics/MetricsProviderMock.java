@@ -33,6 +33,11 @@ public class MetricsProviderMock extends AbstractMetricsProvider {
     private int sessionCount;
     private int publishCount;
     private int[][] messageCount;
+    private final AtomicInteger matchCacheHits = new AtomicInteger();
+    private final AtomicInteger matchCacheMisses = new AtomicInteger();
+    private final AtomicInteger compactions = new AtomicInteger();
+    private final AtomicInteger compactionReclaimedNodes = new AtomicInteger();
+    private SubscriptionsStatistics subscriptionsStatistics;
 
     @Override
     public void init(IConfig config) {
@@ -94,6 +99,47 @@ public class MetricsProviderMock extends AbstractMetricsProvider {
         getMessageCount()[queue][qos]++;
     }
 
+    @Override
+    public void addSubscriptionsMatchCacheHit() {
+        matchCacheHits.incrementAndGet();
+    }
+
+    @Override
+    public void addSubscriptionsMatchCacheMiss() {
+        matchCacheMisses.incrementAndGet();
+    }
+
+    @Override
+    public void addSubscriptionsCompaction(int reclaimedNodes) {
+        compactions.incrementAndGet();
+        compactionReclaimedNodes.addAndGet(reclaimedNodes);
+    }
+
+    @Override
+    public void initSubscriptionsStatistics(SubscriptionsStatistics statistics) {
+        this.subscriptionsStatistics = statistics;
+    }
+
+    public SubscriptionsStatistics getSubscriptionsStatistics() {
+        return subscriptionsStatistics;
+    }
+
+    public int getMatchCacheHits() {
+        return matchCacheHits.get();
+    }
+
+    public int getMatchCacheMisses() {
+        return matchCacheMisses.get();
+    }
+
+    public int getCompactions() {
+        return compactions.get();
+    }
+
+    public int getCompactionReclaimedNodes() {
+        return compactionReclaimedNodes.get();
+    }
+
     /**
      * @return the queueCount
      */
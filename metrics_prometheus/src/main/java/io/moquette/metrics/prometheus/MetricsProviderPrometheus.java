@@ -17,13 +17,16 @@ package io.moquette.metrics.prometheus;
 
 import io.moquette.broker.config.IConfig;
 import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.SubscriptionsStatistics;
 import io.prometheus.metrics.core.datapoints.CounterDataPoint;
 import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
 import io.prometheus.metrics.core.metrics.Gauge;
 import io.prometheus.metrics.core.metrics.GaugeWithCallback;
 import io.prometheus.metrics.exporter.httpserver.HTTPServer;
 import io.prometheus.metrics.instrumentation.jvm.JvmMetrics;
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +44,17 @@ public class MetricsProviderPrometheus implements MetricsProvider {
     public static final String METRIC_MOQUETTE_SESSION_MESSAGES_TOTAL = "moquette_session_messages_total";
     public static final String METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL = "moquette_session_queue_overruns_total";
     public static final String METRIC_MOQUETTE_SESSION_QUEUE_FILL = "moquette_session_queue_fill";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_MATCH_CACHE_HITS_TOTAL = "moquette_subscriptions_match_cache_hits_total";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_MATCH_CACHE_MISSES_TOTAL = "moquette_subscriptions_match_cache_misses_total";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS = "moquette_subscriptions";
+    public static final String METRIC_MOQUETTE_SHARED_SUBSCRIPTIONS = "moquette_shared_subscriptions";
+    public static final String METRIC_MOQUETTE_SHARED_SUBSCRIPTION_GROUPS = "moquette_shared_subscription_groups";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_NODES = "moquette_subscriptions_tree_nodes";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_MAX_DEPTH = "moquette_subscriptions_tree_max_depth";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_BY_FIRST_LEVEL = "moquette_subscriptions_by_first_level";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_RECLAIMED_NODES_TOTAL = "moquette_subscriptions_tree_reclaimed_nodes_total";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_COMPACTIONS_TOTAL = "moquette_subscriptions_tree_compactions_total";
+    public static final String METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_COMPACTION_RECLAIMED_NODES = "moquette_subscriptions_tree_compaction_reclaimed_nodes";
 
     private static final Logger LOG = LoggerFactory.getLogger(MetricsProviderPrometheus.class);
 
@@ -53,6 +67,10 @@ public class MetricsProviderPrometheus implements MetricsProvider {
     private CounterDataPoint[] sessionQueueOverrunCounters;
     private CounterDataPoint[][] messageCounters;
     private Counter publishCounter;
+    private Counter matchCacheHitCounter;
+    private Counter matchCacheMissCounter;
+    private Counter compactionsCounter;
+    private Gauge lastCompactionReclaimedNodesGauge;
 
     @Override
     public void init(IConfig config) {
@@ -79,6 +97,26 @@ public class MetricsProviderPrometheus implements MetricsProvider {
                 .name(METRIC_MOQUETTE_PUBLISHES_TOTAL)
                 .help("Number of publishes made on the broker")
                 .register();
+
+        matchCacheHitCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_MATCH_CACHE_HITS_TOTAL)
+                .help("Number of topic matches served by the subscriptions match cache")
+                .register();
+
+        matchCacheMissCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_MATCH_CACHE_MISSES_TOTAL)
+                .help("Number of topic matches not found in the subscriptions match cache")
+                .register();
+
+        compactionsCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_COMPACTIONS_TOTAL)
+                .help("Number of compactions of the subscriptions tree")
+                .register();
+
+        lastCompactionReclaimedNodesGauge = Gauge.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_COMPACTION_RECLAIMED_NODES)
+                .help("Number of nodes removed by the last compaction of the subscriptions tree")
+                .register();
     }
 
     @Override
@@ -197,4 +235,70 @@ public class MetricsProviderPrometheus implements MetricsProvider {
         messageCounters[queue][qos].inc();
     }
 
+    @Override
+    public void addSubscriptionsMatchCacheHit() {
+        matchCacheHitCounter.inc();
+    }
+
+    @Override
+    public void addSubscriptionsMatchCacheMiss() {
+        matchCacheMissCounter.inc();
+    }
+
+    @Override
+    public void addSubscriptionsCompaction(int reclaimedNodes) {
+        compactionsCounter.inc();
+        lastCompactionReclaimedNodesGauge.set(reclaimedNodes);
+    }
+
+    @Override
+    public void initSubscriptionsStatistics(SubscriptionsStatistics statistics) {
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS)
+                .help("Number of non shared subscriptions")
+                .callback(cb -> cb.call(statistics.subscriptions()))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SHARED_SUBSCRIPTIONS)
+                .help("Number of members of all the shared subscription groups")
+                .callback(cb -> cb.call(statistics.sharedSubscriptions()))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SHARED_SUBSCRIPTION_GROUPS)
+                .help("Number of shared subscription groups")
+                .callback(cb -> cb.call(statistics.sharedGroups()))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_NODES)
+                .help("Number of nodes of the subscriptions tree")
+                .callback(cb -> cb.call(statistics.nodes()))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_MAX_DEPTH)
+                .help("Number of levels of the deepest subscribed topic filter")
+                .callback(cb -> cb.call(statistics.maxDepth()))
+                .register();
+
+        CounterWithCallback.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_RECLAIMED_NODES_TOTAL)
+                .help("Number of nodes removed from the subscriptions tree because left without subscriptions")
+                .callback(cb -> cb.call(statistics.reclaimedNodes()))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_SUBSCRIPTIONS_BY_FIRST_LEVEL)
+                .help("Number of subscriptions, shared or not, by first level of the topic filter")
+                .labelNames("first_level")
+                .callback(cb -> {
+                    for (Map.Entry<String, Long> entry : statistics.subscriptionsByFirstLevel().entrySet()) {
+                        cb.call(entry.getValue(), entry.getKey());
+                    }
+                })
+                .register();
+    }
+
 }
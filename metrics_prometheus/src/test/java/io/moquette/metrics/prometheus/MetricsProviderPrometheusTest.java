@@ -25,6 +25,9 @@ import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MO
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_FILL;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SUBSCRIPTIONS;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_MAX_DEPTH;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_NODES;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.TAG_ENDPOINT_PORT;
 import java.io.IOException;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -132,6 +135,8 @@ public class MetricsProviderPrometheusTest {
         assertEquals("0.0", data.get(METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX + "{queue_id=\"queue-0\"}"));
         assertEquals("0.0", data.get(METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL + "{queue_name=\"queue-0\"}"));
         assertEquals("0.0", data.get(METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX));
+        assertEquals("0.0", data.get(METRIC_MOQUETTE_SUBSCRIPTIONS));
+        assertEquals("0.0", data.get(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_NODES));
 
         clientListener.connect();
         clientListener.subscribe("test/topic");
@@ -149,6 +154,9 @@ public class MetricsProviderPrometheusTest {
         assertEquals("0.0", data.get(METRIC_MOQUETTE_SESSION_QUEUE_FILL + "{queue_id=\"queue-0\"}"));
         assertEquals("0.0", data.get(METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL + "{queue_name=\"queue-0\"}"));
         assertTrue(Double.parseDouble(data.get(METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX)) > 0.0);
+        assertEquals("1.0", data.get(METRIC_MOQUETTE_SUBSCRIPTIONS));
+        assertEquals("2.0", data.get(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_NODES));
+        assertEquals("2.0", data.get(METRIC_MOQUETTE_SUBSCRIPTIONS_TREE_MAX_DEPTH));
 
         clientListener.disconnect();
         clientPublisher.disconnect();